@@ -0,0 +1,234 @@
+package org.emerse.fhir;
+
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An AIMD concurrency limit on upstream calls. Every success raises the limit by 1/limit, about one per round of
+ * calls; a 429 or 503 halves it, once per round, and is retried after the server's Retry-After or a jittered
+ * exponential backoff. While a Retry-After is pending no new calls are started.
+ */
+public class AdaptiveLimiter
+{
+	public int minLimit = 1;
+	public int maxLimit = 64;
+	public int maxRetries = 3;
+	public long baseBackoff = 250;
+	public long maxBackoff = 30_000;
+
+	private final LongAdder throttled = new LongAdder();
+	private final LongAdder retries = new LongAdder();
+	private double limit;
+	private int inFlight;
+	private long lastDecrease;
+	private long pausedUntil;
+
+	public AdaptiveLimiter(int initialLimit)
+	{
+		this.limit = initialLimit;
+		this.lastDecrease = System.nanoTime();
+	}
+
+	public <T> T call(Upstream<T> call) throws Exception
+	{
+		for (int attempt = 0; ; attempt++)
+		{
+			var start = acquire();
+			try
+			{
+				var result = call.call();
+				release(start, false);
+				return result;
+			}
+			catch (BaseServerResponseException e)
+			{
+				var throttle = isThrottle(e);
+				release(start, throttle);
+				if (!throttle || attempt >= maxRetries)
+				{
+					throw e;
+				}
+				throttled.increment();
+				retries.increment();
+				var retryAfter = retryAfter(e);
+				if (retryAfter > 0)
+				{
+					pause(retryAfter);
+				}
+				Thread.sleep(backoff(attempt, retryAfter));
+			}
+			catch (Exception | Error e)
+			{
+				release(start, false);
+				throw e;
+			}
+		}
+	}
+
+	public synchronized int limit()
+	{
+		return (int) limit;
+	}
+
+	public synchronized int inFlight()
+	{
+		return inFlight;
+	}
+
+	public long throttled()
+	{
+		return throttled.sum();
+	}
+
+	public long retries()
+	{
+		return retries.sum();
+	}
+
+	/**
+	 * Throws 429 and 503 responses with their Retry-After header attached; HAPI drops response headers when it turns an
+	 * error status into an exception. Register it on the client whose calls go through this limiter.
+	 */
+	public IClientInterceptor interceptor()
+	{
+		return new IClientInterceptor()
+		{
+			@Override
+			public void interceptRequest(IHttpRequest request)
+			{
+			}
+
+			@Override
+			public void interceptResponse(IHttpResponse response)
+			{
+				var status = response.getStatus();
+				if (status != 429 && status != 503)
+				{
+					return;
+				}
+				var e = BaseServerResponseException.newInstance(status, response.getStatusInfo());
+				var retryAfter = response.getHeaders("Retry-After");
+				if (retryAfter != null && !retryAfter.isEmpty())
+				{
+					e.addResponseHeader("Retry-After", retryAfter.get(0));
+				}
+				response.close();
+				throw e;
+			}
+		};
+	}
+
+	private synchronized long acquire() throws InterruptedException
+	{
+		while (true)
+		{
+			var paused = pausedUntil - System.currentTimeMillis();
+			if (paused > 0)
+			{
+				wait(paused);
+			}
+			else if (inFlight >= (int) limit)
+			{
+				wait();
+			}
+			else
+			{
+				inFlight++;
+				return System.nanoTime();
+			}
+		}
+	}
+
+	private synchronized void release(long start, boolean throttle)
+	{
+		inFlight--;
+		if (!throttle)
+		{
+			limit = Math.min(maxLimit, limit + 1 / limit);
+		}
+		else if (start - lastDecrease > 0)
+		{
+			// calls already in flight when the limit dropped report the same overload, so they don't cut it again
+			limit = Math.max(minLimit, limit / 2);
+			lastDecrease = System.nanoTime();
+		}
+		notifyAll();
+	}
+
+	private synchronized void pause(long millis)
+	{
+		pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + millis);
+	}
+
+	private long backoff(int attempt, long retryAfter)
+	{
+		var random = ThreadLocalRandom.current();
+		if (retryAfter > 0)
+		{
+			// spread the callers released together by the same Retry-After
+			return retryAfter + random.nextLong(baseBackoff + 1);
+		}
+		var cap = Math.min(maxBackoff, baseBackoff << Math.min(attempt, 20));
+		return random.nextLong(cap + 1);
+	}
+
+	static boolean isThrottle(BaseServerResponseException e)
+	{
+		return e.getStatusCode() == 429 || e.getStatusCode() == 503;
+	}
+
+	/**
+	 * The Retry-After of a response in milliseconds, given as delay seconds or an HTTP date, or -1 when absent.
+	 */
+	static long retryAfter(BaseServerResponseException e)
+	{
+		if (!e.hasResponseHeaders())
+		{
+			return -1;
+		}
+		for (var header : e.getResponseHeaders().entrySet())
+		{
+			if (header.getKey().equalsIgnoreCase("Retry-After") && !header.getValue().isEmpty())
+			{
+				return parseRetryAfter(header.getValue().get(0), System.currentTimeMillis());
+			}
+		}
+		return -1;
+	}
+
+	static long parseRetryAfter(String value, long now)
+	{
+		value = value.trim();
+		try
+		{
+			return Math.max(0, Long.parseLong(value) * 1000);
+		}
+		catch (NumberFormatException e)
+		{
+			// not delay seconds, so an HTTP date
+		}
+		try
+		{
+			var date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+			return Math.max(0, date.toInstant().toEpochMilli() - now);
+		}
+		catch (DateTimeParseException e)
+		{
+			return -1;
+		}
+	}
+
+	@FunctionalInterface
+	public interface Upstream<T>
+	{
+		T call() throws Exception;
+	}
+}
@@ -0,0 +1,360 @@
+package org.emerse.fhir;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Serves {@code /fhir} without holding a Jetty thread: the response is written from a queue of chunks as the client
+ * takes them. The extraction itself still blocks, since the FHIR client does, so the patient lookup and then the
+ * search, paging and Binary reads each run as one blocking stage on {@link #executor}. A slow server ties up that
+ * pool instead of Jetty's.
+ */
+public class AsyncFhirHandler extends AbstractHandler
+{
+	private static final int CHUNK_SIZE = 8192;
+	private static final int MAX_CHUNKS = 16;
+	private static final byte[] END = new byte[0];
+
+	public FhirHandler fhirHandler;
+	public ExecutorService executor;
+	public long timeoutMillis = 120_000;
+
+	@Override
+	protected void doHandle(
+		String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response
+	) throws Exception
+	{
+		baseRequest.setHandled(true);
+		var start = System.nanoTime();
+		var metrics = fhirHandler.metrics;
+		metrics.requests.increment();
+		var source = new ParameterSource(request);
+		var fhirId = source.getParameter("fhir_id", String.class);
+		var mrn = source.getParameter("mrn", String.class);
+		var after = source.getParameter("after", String.class);
+		var incremental = source.getParameter("incremental", Boolean.class);
+		var metadata = source.getParameter("metadata", Boolean.class);
+		var plain = fhirHandler.plainText(request);
+		if (plain == null)
+		{
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "text must be raw or plain");
+			return;
+		}
+		if (metadata && incremental)
+		{
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "metadata and incremental can't be combined");
+			return;
+		}
+		if (incremental && fhirHandler.watermarks == null)
+		{
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Incremental extraction needs --watermarks");
+			return;
+		}
+
+		var async = request.startAsync();
+		async.setTimeout(timeoutMillis);
+		var output = new AsyncOutput(async, response.getOutputStream(), metrics);
+		var sink = new FhirHandler.JsonNoteSink(() -> {
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.setContentType("application/json");
+			return fhirHandler.jsonFactory.createGenerator(output);
+		});
+		async.addListener(new AsyncListener()
+		{
+			@Override
+			public void onTimeout(AsyncEvent event)
+			{
+				output.abort();
+				if (!response.isCommitted())
+				{
+					response.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+				}
+				async.complete();
+			}
+
+			@Override
+			public void onError(AsyncEvent event)
+			{
+				output.abort();
+			}
+
+			@Override
+			public void onComplete(AsyncEvent event)
+			{
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event)
+			{
+			}
+		});
+
+		CompletableFuture
+			.supplyAsync(() -> call(() -> incremental
+				? new FhirHandler.Plan(fhirHandler.resolvePatient(fhirId, mrn), null)
+				: fhirHandler.plan(fhirId, mrn, after)), executor)
+			.thenAcceptAsync(plan -> call(() -> {
+				var patient = plan.patient();
+				if (incremental)
+				{
+					sink.ids = true;
+					sink.patient(patient.fhirId(), patient.names());
+					var out = plain ? fhirHandler.normalizer.sink(sink) : null;
+					var mark = fhirHandler.sync(patient.fhirId(), after, out != null ? out : sink);
+					if (out != null)
+						out.finish();
+					output.delivered = () -> {
+						fhirHandler.commit(patient.fhirId(), mark);
+						return null;
+					};
+				}
+				else
+				{
+					sink.patient(patient.fhirId(), patient.names());
+					if (metadata)
+						fhirHandler.listNotes(plan, after, sink);
+					else if (plain)
+					{
+						var out = fhirHandler.normalizer.sink(sink);
+						fhirHandler.writeNotes(plan, after, out);
+						out.finish();
+					}
+					else
+						fhirHandler.writeNotes(plan, after, sink);
+				}
+				sink.close();
+				return null;
+			}), executor)
+			.whenComplete((ignored, error) -> {
+				metrics.request.recordSince(start);
+				if (error == null)
+				{
+					output.finish();
+					return;
+				}
+				metrics.failedRequests.increment();
+				output.abort();
+				if (!response.isCommitted())
+				{
+					var cause = error instanceof CompletionException && error.getCause() != null
+								? error.getCause()
+								: error;
+					response.setStatus(
+						cause instanceof IllegalArgumentException
+						? HttpServletResponse.SC_NOT_FOUND
+						: HttpServletResponse.SC_BAD_GATEWAY
+					);
+				}
+				try
+				{
+					async.complete();
+				}
+				catch (IllegalStateException e)
+				{
+					// already completed by the timeout
+				}
+			});
+	}
+
+	private static <T> T call(Stage<T> stage)
+	{
+		try
+		{
+			return stage.call();
+		}
+		catch (RuntimeException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			throw new CompletionException(e);
+		}
+	}
+
+	@FunctionalInterface
+	private interface Stage<T>
+	{
+		T call() throws Exception;
+	}
+
+	/**
+	 * Buffers generator output into chunks on the worker thread and writes them to the servlet stream only while it
+	 * reports ready, so no container thread ever blocks on a slow client.
+	 */
+	private static class AsyncOutput extends OutputStream implements WriteListener
+	{
+		private final AsyncContext async;
+		private final ServletOutputStream out;
+		private final Metrics metrics;
+		private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(MAX_CHUNKS);
+		private final AtomicBoolean failed = new AtomicBoolean();
+		private byte[] buffer = new byte[CHUNK_SIZE];
+		private int count;
+		/**
+		 * Runs once the last chunk has been written to the client.
+		 */
+		volatile Stage<Void> delivered;
+
+		AsyncOutput(AsyncContext async, ServletOutputStream out, Metrics metrics)
+		{
+			this.async = async;
+			this.out = out;
+			this.metrics = metrics;
+			out.setWriteListener(this);
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			if (count == buffer.length)
+			{
+				flushChunk();
+			}
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			while (len > 0)
+			{
+				if (count == buffer.length)
+				{
+					flushChunk();
+				}
+				var n = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			flushChunk();
+		}
+
+		@Override
+		public void close()
+		{
+		}
+
+		void finish()
+		{
+			try
+			{
+				flushChunk();
+				enqueue(END);
+			}
+			catch (IOException e)
+			{
+				abort();
+			}
+		}
+
+		void abort()
+		{
+			failed.set(true);
+			chunks.clear();
+		}
+
+		private void flushChunk() throws IOException
+		{
+			if (count == 0)
+			{
+				return;
+			}
+			enqueue(Arrays.copyOf(buffer, count));
+			metrics.bytes.add(count);
+			count = 0;
+		}
+
+		private void enqueue(byte[] chunk) throws IOException
+		{
+			try
+			{
+				while (!chunks.offer(chunk, 100, TimeUnit.MILLISECONDS))
+				{
+					if (failed.get())
+					{
+						throw new IOException("Response aborted");
+					}
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+			if (failed.get())
+			{
+				throw new IOException("Response aborted");
+			}
+			onWritePossible();
+		}
+
+		@Override
+		public synchronized void onWritePossible() throws IOException
+		{
+			while (!failed.get() && out.isReady())
+			{
+				var chunk = chunks.poll();
+				if (chunk == null)
+				{
+					return;
+				}
+				if (chunk == END)
+				{
+					async.complete();
+					runDelivered();
+					return;
+				}
+				out.write(chunk);
+			}
+		}
+
+		@Override
+		public void onError(Throwable t)
+		{
+			abort();
+		}
+
+		private void runDelivered()
+		{
+			var stage = delivered;
+			if (stage == null)
+			{
+				return;
+			}
+			try
+			{
+				stage.call();
+			}
+			catch (Exception e)
+			{
+				// the client has its notes; the watermark stays put and the next run sends them again
+				metrics.failedCommits.increment();
+			}
+		}
+	}
+}
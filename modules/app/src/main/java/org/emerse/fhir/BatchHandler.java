@@ -0,0 +1,282 @@
+package org.emerse.fhir;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import jakarta.servlet.MultipartConfigElement;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BatchHandler extends AbstractHandler
+{
+	public FhirHandler fhirHandler;
+	public JsonFactory jsonFactory;
+	public ExecutorService executor;
+	public int parallelism = 8;
+
+	@Override
+	protected void doHandle(
+		String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response
+	) throws Exception
+	{
+		if (!"POST".equals(request.getMethod()))
+		{
+			response.setStatus(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+			return;
+		}
+		var source = new ParameterSource(request);
+		var after = source.getParameter("after", String.class);
+		var incremental = source.getParameter("incremental", Boolean.class);
+		if (incremental && fhirHandler.watermarks == null)
+		{
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Incremental extraction needs --watermarks");
+			return;
+		}
+		var plain = fhirHandler.plainText(request);
+		if (plain == null)
+		{
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "text must be raw or plain");
+			return;
+		}
+		var mrns = readMrns(baseRequest, request);
+		var marks = new ConcurrentHashMap<String, WatermarkStore.Mark>();
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType("application/x-ndjson; charset=utf-8");
+		var out = new PrintWriter(new OutputStreamWriter(
+			new FhirHandler.CountingOutputStream(response.getOutputStream(), fhirHandler.metrics),
+			StandardCharsets.UTF_8
+		));
+		var permits = new Semaphore(parallelism);
+		var tasks = new ArrayList<Future<?>>();
+		for (var mrn : mrns)
+		{
+			// a client that went away only shows as a write error, and the rest of the cohort isn't worth extracting
+			if (out.checkError())
+			{
+				break;
+			}
+			permits.acquire();
+			if (out.checkError())
+			{
+				break;
+			}
+			tasks.add(executor.submit(() -> {
+				try
+				{
+					extractPatient(mrn, after, incremental ? marks : null, plain, out);
+					out.flush();
+				}
+				finally
+				{
+					permits.release();
+				}
+			}));
+		}
+		if (out.checkError())
+		{
+			for (var task : tasks)
+			{
+				task.cancel(true);
+			}
+		}
+		for (var task : tasks)
+		{
+			try
+			{
+				task.get();
+			}
+			catch (CancellationException e)
+			{
+				// stopped with the client gone
+			}
+		}
+		out.flush();
+		// the marks only move for a batch the client received whole; otherwise the next run resends the deltas
+		if (incremental && !out.checkError())
+		{
+			fhirHandler.watermarks.commit(marks);
+		}
+	}
+
+	/**
+	 * Writes one patient's notes, or with {@code marks} its delta since the last incremental run, adding the
+	 * watermark to commit to {@code marks}, and with {@code plain} the notes as plain text. A failure is written as an
+	 * error line. Returns the number of notes written.
+	 */
+	int extractPatient(
+		String mrn, String after, Map<String, WatermarkStore.Mark> marks, boolean plain, PrintWriter out
+	)
+	{
+		try
+		{
+			return writePatient(mrn, after, marks, plain, out);
+		}
+		catch (Exception e)
+		{
+			try
+			{
+				writeError(out, mrn, String.valueOf(e.getMessage()));
+			}
+			catch (IOException ioe)
+			{
+				throw new RuntimeException(ioe);
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * {@link #extractPatient} without the error line: the failure is thrown, after whatever lines were written.
+	 */
+	int writePatient(String mrn, String after, Map<String, WatermarkStore.Mark> marks, PrintWriter out)
+		throws Exception
+	{
+		return writePatient(mrn, after, marks, false, out);
+	}
+
+	int writePatient(
+		String mrn, String after, Map<String, WatermarkStore.Mark> marks, boolean plain, PrintWriter out
+	) throws Exception
+	{
+		var written = new AtomicInteger();
+		FhirHandler.NoteSink lines = new FhirHandler.NoteSink()
+		{
+			@Override
+			public void patient(String fhirId, List<String> names)
+			{
+			}
+
+			@Override
+			public void note(NoteDocument doc, FhirHandler.Content content) throws Exception
+			{
+				writeLine(out, g -> {
+					g.writeStringField("mrn", mrn);
+					if (marks != null)
+					{
+						g.writeStringField("id", doc.id());
+						g.writeStringField("version", doc.version());
+					}
+					FhirHandler.writeNoteFields(g, doc, content);
+				});
+				written.incrementAndGet();
+			}
+
+			@Override
+			public void deleted(String id) throws Exception
+			{
+				writeLine(out, g -> {
+					g.writeStringField("mrn", mrn);
+					g.writeStringField("id", id);
+					g.writeBooleanField("deleted", true);
+				});
+			}
+		};
+		var normalized = plain ? fhirHandler.normalizer.sink(lines) : null;
+		var sink = normalized != null ? normalized : lines;
+		if (marks == null)
+		{
+			fhirHandler.extract(null, mrn, after, sink);
+		}
+		else
+		{
+			var fhirId = fhirHandler.resolvePatient(null, mrn).fhirId();
+			var mark = fhirHandler.sync(fhirId, after, sink);
+			if (mark != null)
+			{
+				marks.put(fhirId, mark);
+			}
+		}
+		if (normalized != null)
+		{
+			normalized.finish();
+		}
+		return written.get();
+	}
+
+	void writeError(PrintWriter out, String mrn, String message) throws IOException
+	{
+		writeLine(out, g -> {
+			g.writeStringField("mrn", mrn);
+			g.writeStringField("error", message);
+		});
+	}
+
+	void writeLine(PrintWriter out, LineWriter fields) throws IOException
+	{
+		var line = new StringWriter();
+		try (var g = jsonFactory.createGenerator(line))
+		{
+			g.writeStartObject();
+			fields.write(g);
+			g.writeEndObject();
+		}
+		synchronized (out)
+		{
+			out.write(line.toString());
+			out.write('\n');
+		}
+	}
+
+	static List<String> readMrns(Request baseRequest, HttpServletRequest request) throws Exception
+	{
+		BufferedReader reader;
+		var contentType = request.getContentType();
+		if (contentType != null && contentType.startsWith("multipart/form-data"))
+		{
+			baseRequest.setAttribute(
+				Request.__MULTIPART_CONFIG_ELEMENT,
+				new MultipartConfigElement(System.getProperty("java.io.tmpdir"))
+			);
+			var part = request.getPart("file");
+			if (part == null)
+			{
+				throw new IllegalArgumentException("Missing file part");
+			}
+			reader = new BufferedReader(new InputStreamReader(part.getInputStream(), StandardCharsets.UTF_8));
+		}
+		else
+		{
+			reader = request.getReader();
+		}
+		var mrns = new ArrayList<String>();
+		try (reader)
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				for (var mrn : line.split(","))
+				{
+					mrn = mrn.trim();
+					if (!mrn.isEmpty())
+					{
+						mrns.add(mrn);
+					}
+				}
+			}
+		}
+		return mrns;
+	}
+
+	@FunctionalInterface
+	interface LineWriter
+	{
+		void write(JsonGenerator g) throws IOException;
+	}
+}
@@ -0,0 +1,264 @@
+package org.emerse.fhir;
+
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * The client side of a FHIR Bulk Data export of DocumentReferences: a {@code Patient/$export} kick-off for a list of
+ * patients, polling the status URL it returns until the manifest is ready, and downloading the NDJSON files the
+ * manifest lists.
+ */
+public class BulkExport
+{
+	public long pollMillis = 2_000;
+	public long maxPollMillis = 60_000;
+
+	private final RawFhirClient client;
+	private final JsonFactory jsonFactory;
+
+	public BulkExport(RawFhirClient client, JsonFactory jsonFactory)
+	{
+		this.client = client;
+		this.jsonFactory = jsonFactory;
+	}
+
+	/**
+	 * Whether the server's CapabilityStatement offers {@code $export}, as an operation or by instantiating the Bulk Data
+	 * capability statement.
+	 */
+	public static boolean discover(IGenericClient client)
+	{
+		var capabilities = client.capabilities().ofType(CapabilityStatement.class).execute();
+		if (capabilities.getInstantiates().stream().anyMatch(c -> c.getValue().contains("bulk-data")))
+			return true;
+		for (var rest : capabilities.getRest())
+		{
+			if (rest.getOperation().stream().anyMatch(o -> o.getName().equals("export")))
+				return true;
+			for (var resource : rest.getResource())
+			{
+				if (resource.getType().equals("Patient")
+					&& resource.getOperation().stream().anyMatch(o -> o.getName().equals("export")))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Starts an export of the patients' DocumentReferences and returns the status URL to poll. A server without the
+	 * operation answers with an error status, thrown as a {@link BaseServerResponseException}.
+	 */
+	public String kickOff(List<String> fhirIds) throws Exception
+	{
+		var parameters = new Parameters();
+		parameters.addParameter().setName("_outputFormat").setValue(new StringType("application/fhir+ndjson"));
+		parameters.addParameter().setName("_type").setValue(new StringType("DocumentReference"));
+		for (var fhirId : fhirIds)
+			parameters.addParameter().setName("patient").setValue(new Reference("Patient/" + fhirId));
+		var body = client.client().getFhirContext().newJsonParser().encodeResourceToString(parameters);
+		return client.send(
+			RequestTypeEnum.POST,
+			"Patient/$export",
+			Map.of("Accept", "application/fhir+json", "Prefer", "respond-async"),
+			body,
+			response -> {
+				var location = header(response, "Content-Location");
+				if (response.getStatus() != 202 || location == null)
+					throw BaseServerResponseException.newInstance(
+						response.getStatus() == 202 ? 500 : response.getStatus(),
+						"Export was not started: " + response.getStatusInfo()
+					);
+				return location;
+			}
+		);
+	}
+
+	/**
+	 * Polls the status URL until the export is complete, passing each {@code X-Progress} on, and returns its manifest.
+	 * Waits for the server's Retry-After where it gives one, else backs off from {@link #pollMillis}.
+	 */
+	public Manifest await(String statusUrl, Consumer<String> progress) throws Exception
+	{
+		var delay = pollMillis;
+		while (true)
+		{
+			long wait;
+			try
+			{
+				var poll = client.send(
+					RequestTypeEnum.GET,
+					statusUrl,
+					Map.of("Accept", "application/json"),
+					null,
+					response -> {
+						if (response.getStatus() == 200)
+						{
+							try (var in = response.readEntity())
+							{
+								return new Poll(parseManifest(in), -1);
+							}
+						}
+						if (response.getStatus() != 202)
+							throw BaseServerResponseException.newInstance(response.getStatus(), response.getStatusInfo());
+						var xProgress = header(response, "X-Progress");
+						if (xProgress != null)
+							progress.accept(xProgress);
+						var retryAfter = header(response, "Retry-After");
+						return new Poll(null, retryAfter == null
+							? -1
+							: AdaptiveLimiter.parseRetryAfter(retryAfter, System.currentTimeMillis()));
+					}
+				);
+				if (poll.manifest() != null)
+					return poll.manifest();
+				wait = poll.retryAfter();
+			}
+			catch (BaseServerResponseException e)
+			{
+				if (!AdaptiveLimiter.isThrottle(e))
+					throw e;
+				wait = AdaptiveLimiter.retryAfter(e);
+			}
+			if (wait < 0)
+			{
+				wait = delay;
+				delay = Math.min(maxPollMillis, delay * 3 / 2);
+			}
+			Thread.sleep(Math.min(wait, maxPollMillis));
+		}
+	}
+
+	/**
+	 * Copies one output file of the manifest to {@code file}, returning its size. The server's credentials go along
+	 * only when the manifest requires an access token and the file is on the FHIR server itself; a file elsewhere,
+	 * like a pre-signed storage URL, is fetched without them.
+	 */
+	public long download(Manifest manifest, String url, Path file) throws Exception
+	{
+		return client.send(
+			RequestTypeEnum.GET,
+			url,
+			Map.of("Accept", "application/fhir+ndjson"),
+			null,
+			manifest.requiresAccessToken() && onServer(url),
+			response -> {
+				if (response.getStatus() >= 400)
+					throw BaseServerResponseException.newInstance(response.getStatus(), response.getStatusInfo());
+				try (var in = response.readEntity())
+				{
+					return Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+		);
+	}
+
+	/**
+	 * Tells the server the export is no longer needed, cancelling it or releasing its files.
+	 */
+	public void delete(String statusUrl)
+	{
+		try
+		{
+			client.send(RequestTypeEnum.DELETE, statusUrl, Map.of(), null, IHttpResponse::getStatus);
+		}
+		catch (Exception e)
+		{
+			// the server expires the export on its own
+		}
+	}
+
+	private boolean onServer(String url)
+	{
+		var file = URI.create(client.resolve(url));
+		var server = URI.create(client.client().getServerBase());
+		return file.getScheme().equalsIgnoreCase(server.getScheme())
+			&& file.getHost() != null
+			&& file.getHost().equalsIgnoreCase(server.getHost())
+			&& port(file) == port(server);
+	}
+
+	private static int port(URI uri)
+	{
+		if (uri.getPort() >= 0)
+			return uri.getPort();
+		return "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+	}
+
+	private Manifest parseManifest(InputStream in) throws Exception
+	{
+		var output = new ArrayList<Output>();
+		var error = new ArrayList<Output>();
+		var requiresAccessToken = false;
+		try (var p = jsonFactory.createParser(in))
+		{
+			if (p.nextToken() != JsonToken.START_OBJECT)
+				throw new IllegalStateException("Export manifest is not a JSON object");
+			while (p.nextToken() == JsonToken.FIELD_NAME)
+			{
+				var field = p.getCurrentName();
+				p.nextToken();
+				switch (field)
+				{
+					case "output" -> readOutputs(p, output);
+					case "error" -> readOutputs(p, error);
+					case "requiresAccessToken" -> requiresAccessToken = p.getValueAsBoolean();
+					default -> p.skipChildren();
+				}
+			}
+		}
+		return new Manifest(output, error, requiresAccessToken);
+	}
+
+	private static void readOutputs(JsonParser p, List<Output> outputs) throws Exception
+	{
+		while (p.nextToken() == JsonToken.START_OBJECT)
+		{
+			String type = null, url = null;
+			while (p.nextToken() == JsonToken.FIELD_NAME)
+			{
+				var field = p.getCurrentName();
+				p.nextToken();
+				switch (field)
+				{
+					case "type" -> type = p.getValueAsString();
+					case "url" -> url = p.getValueAsString();
+					default -> p.skipChildren();
+				}
+			}
+			if (url != null)
+				outputs.add(new Output(type, url));
+		}
+	}
+
+	private static String header(IHttpResponse response, String name)
+	{
+		var values = response.getHeaders(name);
+		return values == null || values.isEmpty() ? null : values.get(0);
+	}
+
+	public static record Manifest(List<Output> output, List<Output> error, boolean requiresAccessToken) {}
+
+	public static record Output(String type, String url) {}
+
+	private static record Poll(Manifest manifest, long retryAfter) {}
+}
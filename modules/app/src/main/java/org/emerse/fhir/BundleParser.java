@@ -0,0 +1,372 @@
+package org.emerse.fhir;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.InstantType;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the handful of DocumentReference and Binary fields the handlers use straight off the JSON token stream,
+ * skipping everything else without building HAPI model objects.
+ */
+public class BundleParser
+{
+	private final JsonFactory jsonFactory;
+
+	public BundleParser(JsonFactory jsonFactory)
+	{
+		this.jsonFactory = jsonFactory;
+	}
+
+	public DocumentPages.Page parseBundle(InputStream in) throws IOException
+	{
+		var documents = new ArrayList<NoteDocument>();
+		String next = null;
+		try (var p = jsonFactory.createParser(in))
+		{
+			expect(p, JsonToken.START_OBJECT);
+			while (p.nextToken() == JsonToken.FIELD_NAME)
+			{
+				var field = p.getCurrentName();
+				p.nextToken();
+				switch (field)
+				{
+					case "link" -> next = readNextLink(p);
+					case "entry" -> readEntries(p, documents);
+					default -> p.skipChildren();
+				}
+			}
+		}
+		return new DocumentPages.Page(documents, next);
+	}
+
+	/**
+	 * Reads a Binary's content type and data. The base64 is decoded off the stream without building its text, but the
+	 * decoded note is kept whole, since notes are fetched ahead of the writer and may go to the note cache.
+	 */
+	public FhirHandler.Content parseBinary(InputStream in) throws IOException
+	{
+		byte[] data = null;
+		String contentType = null;
+		try (var p = jsonFactory.createParser(in))
+		{
+			expect(p, JsonToken.START_OBJECT);
+			while (p.nextToken() == JsonToken.FIELD_NAME)
+			{
+				var field = p.getCurrentName();
+				p.nextToken();
+				switch (field)
+				{
+					case "contentType" -> contentType = p.getValueAsString();
+					case "data" -> data = p.getBinaryValue();
+					default -> p.skipChildren();
+				}
+			}
+		}
+		return data == null ? null : new FhirHandler.Content(data, contentType);
+	}
+
+	/**
+	 * Reads the DocumentReferences of an NDJSON stream one at a time, as a Bulk Data export writes them; lines that
+	 * are other resources are skipped.
+	 */
+	public Resources readNdjson(InputStream in) throws IOException
+	{
+		return new Resources(jsonFactory.createParser(in));
+	}
+
+	public static class Resources implements Iterator<NoteDocument>, Closeable
+	{
+		private final JsonParser p;
+		private NoteDocument next;
+
+		private Resources(JsonParser p)
+		{
+			this.p = p;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			try
+			{
+				while (next == null && p.nextToken() == JsonToken.START_OBJECT)
+				{
+					next = readDocument(p);
+				}
+				return next != null;
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public NoteDocument next()
+		{
+			if (!hasNext())
+			{
+				throw new NoSuchElementException();
+			}
+			var doc = next;
+			next = null;
+			return doc;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			p.close();
+		}
+	}
+
+	private static String readNextLink(JsonParser p) throws IOException
+	{
+		String next = null;
+		while (p.nextToken() == JsonToken.START_OBJECT)
+		{
+			String relation = null, url = null;
+			while (p.nextToken() == JsonToken.FIELD_NAME)
+			{
+				var field = p.getCurrentName();
+				p.nextToken();
+				switch (field)
+				{
+					case "relation" -> relation = p.getValueAsString();
+					case "url" -> url = p.getValueAsString();
+					default -> p.skipChildren();
+				}
+			}
+			if ("next".equals(relation))
+			{
+				next = url;
+			}
+		}
+		return next;
+	}
+
+	private static void readEntries(JsonParser p, List<NoteDocument> documents) throws IOException
+	{
+		while (p.nextToken() == JsonToken.START_OBJECT)
+		{
+			while (p.nextToken() == JsonToken.FIELD_NAME)
+			{
+				var field = p.getCurrentName();
+				p.nextToken();
+				if (field.equals("resource"))
+				{
+					var doc = readDocument(p);
+					if (doc != null)
+					{
+						documents.add(doc);
+					}
+				}
+				else
+				{
+					p.skipChildren();
+				}
+			}
+		}
+	}
+
+	private static NoteDocument readDocument(JsonParser p) throws IOException
+	{
+		String resourceType = null, id = null, version = null, date = null, noteType = null;
+		String contentType = null, url = null, lastUpdated = null, status = null, replaces = null, subject = null;
+		String periodStart = null, periodEnd = null;
+		Long size = null;
+		byte[] data = null;
+		var firstContent = true;
+		while (p.nextToken() == JsonToken.FIELD_NAME)
+		{
+			var field = p.getCurrentName();
+			p.nextToken();
+			switch (field)
+			{
+				case "resourceType" -> resourceType = p.getValueAsString();
+				case "id" -> id = p.getValueAsString();
+				case "date" -> date = p.getValueAsString();
+				case "meta" -> {
+					var meta = readFields(p, "versionId", "lastUpdated");
+					version = meta[0];
+					lastUpdated = meta[1];
+				}
+				case "status" -> status = p.getValueAsString();
+				case "relatesTo" -> {
+					while (p.nextToken() == JsonToken.START_OBJECT)
+					{
+						String code = null, target = null;
+						while (p.nextToken() == JsonToken.FIELD_NAME)
+						{
+							var relationField = p.getCurrentName();
+							p.nextToken();
+							switch (relationField)
+							{
+								case "code" -> code = p.getValueAsString();
+								case "target" -> target = readField(p, "reference");
+								default -> p.skipChildren();
+							}
+						}
+						if (replaces == null && "replaces".equals(code) && target != null)
+						{
+							replaces = target.substring(target.lastIndexOf('/') + 1);
+						}
+					}
+				}
+				case "type" -> noteType = readField(p, "text");
+				case "subject" -> subject = readField(p, "reference");
+				case "context" -> {
+					if (p.currentToken() != JsonToken.START_OBJECT)
+					{
+						p.skipChildren();
+					}
+					else
+					{
+						while (p.nextToken() == JsonToken.FIELD_NAME)
+						{
+							var contextField = p.getCurrentName();
+							p.nextToken();
+							if (contextField.equals("period"))
+							{
+								var period = readFields(p, "start", "end");
+								periodStart = period[0];
+								periodEnd = period[1];
+							}
+							else
+							{
+								p.skipChildren();
+							}
+						}
+					}
+				}
+				case "content" -> {
+					while (p.nextToken() == JsonToken.START_OBJECT)
+					{
+						while (p.nextToken() == JsonToken.FIELD_NAME)
+						{
+							var contentField = p.getCurrentName();
+							p.nextToken();
+							if (firstContent && contentField.equals("attachment"))
+							{
+								while (p.nextToken() == JsonToken.FIELD_NAME)
+								{
+									var attachmentField = p.getCurrentName();
+									p.nextToken();
+									switch (attachmentField)
+									{
+										case "contentType" -> contentType = p.getValueAsString();
+										case "url" -> url = p.getValueAsString();
+										case "size" -> size = p.getValueAsLong();
+										// Decodes base64 straight from the input buffer rather than via the text value
+										case "data" -> data = p.getBinaryValue();
+										default -> p.skipChildren();
+									}
+								}
+							}
+							else
+							{
+								p.skipChildren();
+							}
+						}
+						firstContent = false;
+					}
+				}
+				default -> p.skipChildren();
+			}
+		}
+		if (!"DocumentReference".equals(resourceType))
+		{
+			return null;
+		}
+		return new NoteDocument(
+			id,
+			version,
+			date == null ? null : new DateTimeType(date).getValue().getTime(),
+			noteType,
+			contentType,
+			url,
+			data,
+			lastUpdated == null ? null : new InstantType(lastUpdated).getValue().getTime(),
+			status,
+			replaces,
+			size,
+			subject == null ? null : subject.substring(subject.lastIndexOf('/') + 1),
+			NoteDocument.periodEnd(
+				periodStart == null ? null : new DateTimeType(periodStart),
+				periodEnd == null ? null : new DateTimeType(periodEnd)
+			)
+		);
+	}
+
+	private static String readField(JsonParser p, String name) throws IOException
+	{
+		String value = null;
+		if (p.currentToken() != JsonToken.START_OBJECT)
+		{
+			p.skipChildren();
+			return null;
+		}
+		while (p.nextToken() == JsonToken.FIELD_NAME)
+		{
+			var field = p.getCurrentName();
+			p.nextToken();
+			if (field.equals(name))
+			{
+				value = p.getValueAsString();
+			}
+			else
+			{
+				p.skipChildren();
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Reads several fields of one object in a single pass, null for those absent.
+	 */
+	private static String[] readFields(JsonParser p, String... names) throws IOException
+	{
+		var values = new String[names.length];
+		if (p.currentToken() != JsonToken.START_OBJECT)
+		{
+			p.skipChildren();
+			return values;
+		}
+		while (p.nextToken() == JsonToken.FIELD_NAME)
+		{
+			var field = p.getCurrentName();
+			p.nextToken();
+			var index = Arrays.asList(names).indexOf(field);
+			if (index >= 0)
+			{
+				values[index] = p.getValueAsString();
+			}
+			else
+			{
+				p.skipChildren();
+			}
+		}
+		return values;
+	}
+
+	private static void expect(JsonParser p, JsonToken token) throws IOException
+	{
+		if (p.nextToken() != token)
+		{
+			throw new IOException("Expected " + token + " but found " + p.currentToken());
+		}
+	}
+}
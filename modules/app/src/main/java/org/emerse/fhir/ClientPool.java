@@ -0,0 +1,128 @@
+package org.emerse.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+public class ClientPool
+{
+	public int maxConnections = 64;
+	public int maxConnectionsPerRoute = 64;
+	public int connectTimeout = 10_000;
+	public int socketTimeout = 60_000;
+	public int connectionRequestTimeout = 30_000;
+	public long keepAlive = 60_000;
+	public boolean gzip = true;
+	public boolean http2;
+
+	private PoolingHttpClientConnectionManager connectionManager;
+	private JdkRestfulClientFactory jdkFactory;
+
+	public void set(String name, String value)
+	{
+		switch (name)
+		{
+			case "max-connections" -> maxConnections = Integer.parseInt(value);
+			case "max-connections-per-route" -> maxConnectionsPerRoute = Integer.parseInt(value);
+			case "connect-timeout" -> connectTimeout = Integer.parseInt(value);
+			case "socket-timeout" -> socketTimeout = Integer.parseInt(value);
+			case "connection-request-timeout" -> connectionRequestTimeout = Integer.parseInt(value);
+			case "keep-alive" -> keepAlive = Long.parseLong(value);
+			case "gzip" -> gzip = Boolean.parseBoolean(value);
+			case "http2" -> http2 = Boolean.parseBoolean(value);
+			default -> throw new IllegalArgumentException("Unknown client setting: " + name);
+		}
+	}
+
+	public void load(String filePath) throws IOException
+	{
+		var props = new Properties();
+		try (var f = new FileInputStream(filePath))
+		{
+			props.load(f);
+		}
+		for (var name : props.stringPropertyNames())
+		{
+			set(name, props.getProperty(name).trim());
+		}
+	}
+
+	public void configure(FhirContext fhir)
+	{
+		if (http2)
+		{
+			jdkFactory = new JdkRestfulClientFactory(fhir, this);
+			fhir.setRestfulClientFactory(jdkFactory);
+			return;
+		}
+		// keepAlive is how long a connection may sit idle, not how long it may live, so it's left to the eviction below
+		connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+		var builder = HttpClientBuilder.create()
+			.setConnectionManager(connectionManager)
+			.setDefaultRequestConfig(RequestConfig.custom()
+				.setConnectTimeout(connectTimeout)
+				.setSocketTimeout(socketTimeout)
+				.setConnectionRequestTimeout(connectionRequestTimeout)
+				.build())
+			.setKeepAliveStrategy((response, context) -> keepAlive)
+			.evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS);
+		if (!gzip)
+		{
+			// HAPI always asks for gzip, so strip the header when compression is turned off
+			builder.disableContentCompression();
+			builder.addInterceptorLast((HttpRequestInterceptor) (request, context) -> request.removeHeaders("Accept-Encoding"));
+		}
+		var factory = new ApacheRestfulClientFactory(fhir);
+		factory.setConnectTimeout(connectTimeout);
+		factory.setSocketTimeout(socketTimeout);
+		factory.setConnectionRequestTimeout(connectionRequestTimeout);
+		factory.setPoolMaxTotal(maxConnections);
+		factory.setPoolMaxPerRoute(maxConnectionsPerRoute);
+		factory.setHttpClient(builder.build());
+		fhir.setRestfulClientFactory(factory);
+	}
+
+	/**
+	 * Sets the JDK HTTP client's idle keep-alive and pool size for {@link #http2}. The JDK reads these once, when the
+	 * first client is built, and they hold for every client in the JVM, so this is for startup only; values already
+	 * given with {@code -D} are kept.
+	 */
+	public void setJdkProperties()
+	{
+		System.getProperties().putIfAbsent(
+			"jdk.httpclient.keepalive.timeout",
+			String.valueOf(Math.max(1, keepAlive / 1000))
+		);
+		System.getProperties().putIfAbsent("jdk.httpclient.connectionPoolSize", String.valueOf(maxConnections));
+	}
+
+	/**
+	 * Upstream connections leased, idle, waited for and allowed; with {@link #http2}, request slots, since requests
+	 * share connections.
+	 */
+	public Stats stats()
+	{
+		if (jdkFactory != null)
+		{
+			return jdkFactory.requestSlots();
+		}
+		if (connectionManager == null)
+		{
+			return new Stats(0, 0, 0, 0);
+		}
+		var total = connectionManager.getTotalStats();
+		return new Stats(total.getLeased(), total.getAvailable(), total.getPending(), total.getMax());
+	}
+
+	public static record Stats(int leased, int available, int pending, int max) {}
+}
@@ -0,0 +1,260 @@
+package org.emerse.fhir;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DocumentReference;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Collectors;
+
+public class DocumentPages implements Iterator<NoteDocument>
+{
+	private final PageLoader loader;
+	private final ExecutorService executor;
+	private final Deque<CompletableFuture<DocumentPages>> parts;
+	private Iterator<NoteDocument> entries;
+	private CompletableFuture<Page> nextPage;
+
+	public DocumentPages(PageLoader loader, ExecutorService executor, Page first)
+	{
+		this.loader = loader;
+		this.executor = executor;
+		this.parts = new ArrayDeque<>();
+		open(first);
+	}
+
+	private DocumentPages(List<CompletableFuture<DocumentPages>> parts)
+	{
+		this.loader = null;
+		this.executor = null;
+		this.parts = new ArrayDeque<>(parts);
+		this.entries = Collections.emptyIterator();
+	}
+
+	/**
+	 * Reads searches that are already running side by side as a single sequence in timestamp order; each search must
+	 * be sorted by date. A note whose period crosses from one search's range into another's is read once.
+	 */
+	public static DocumentPages merge(List<CompletableFuture<DocumentPages>> parts)
+	{
+		return new DocumentPages(parts);
+	}
+
+	public static Page page(Bundle bundle)
+	{
+		var next = bundle.getLink(Bundle.LINK_NEXT);
+		return new Page(
+			bundle.getEntry().stream()
+				.filter(entry -> entry.getResource() instanceof DocumentReference)
+				.map(entry -> NoteDocument.of((DocumentReference) entry.getResource()))
+				.collect(Collectors.toList()),
+			next == null ? null : next.getUrl()
+		);
+	}
+
+	public static PageLoader hapiLoader(IGenericClient client)
+	{
+		return url -> page(client.loadPage().byUrl(url).andReturnBundle(Bundle.class).execute());
+	}
+
+	private void open(Page page)
+	{
+		entries = page.documents().iterator();
+		if (page.next() == null)
+		{
+			nextPage = null;
+		}
+		else if (executor == null)
+		{
+			nextPage = CompletableFuture.completedFuture(load(page.next()));
+		}
+		else
+		{
+			nextPage = CompletableFuture.supplyAsync(() -> load(page.next()), executor);
+		}
+	}
+
+	private Page load(String url)
+	{
+		try
+		{
+			return loader.load(url);
+		}
+		catch (RuntimeException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		while (!entries.hasNext())
+		{
+			if (nextPage == null && parts.isEmpty())
+			{
+				return false;
+			}
+			try
+			{
+				if (nextPage != null)
+				{
+					open(nextPage.join());
+				}
+				else
+				{
+					var sources = new ArrayList<DocumentPages>(parts.size());
+					for (var part : parts)
+					{
+						sources.add(part.join());
+					}
+					parts.clear();
+					entries = new Merge(sources);
+				}
+			}
+			catch (CompletionException e)
+			{
+				if (e.getCause() instanceof RuntimeException re)
+				{
+					throw re;
+				}
+				throw e;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public NoteDocument next()
+	{
+		if (!hasNext())
+		{
+			throw new NoSuchElementException();
+		}
+		return entries.next();
+	}
+
+	public void close()
+	{
+		if (nextPage != null)
+		{
+			nextPage.cancel(true);
+			nextPage = null;
+		}
+		if (entries instanceof Merge merge)
+		{
+			for (var source : merge.sources)
+			{
+				source.close();
+			}
+		}
+		for (var pending : parts)
+		{
+			// a running search can't be called off, so it's closed, prefetch and all, once it's done
+			pending.whenComplete((pages, e) -> {
+				if (pages != null)
+					pages.close();
+			});
+		}
+		parts.clear();
+	}
+
+	/**
+	 * Interleaves date-sorted searches, skipping a note that another search already gave at the same timestamp.
+	 */
+	private static class Merge implements Iterator<NoteDocument>
+	{
+		private final List<DocumentPages> sources;
+		private final PriorityQueue<Head> heads = new PriorityQueue<>(
+			Comparator.comparing(Head::timestamp, Comparator.nullsFirst(Comparator.<Long>naturalOrder()))
+				.thenComparingInt(Head::source)
+		);
+		private final Set<String> sameTime = new HashSet<>();
+		private Long time;
+		private NoteDocument next;
+
+		Merge(List<DocumentPages> sources)
+		{
+			this.sources = sources;
+			for (int i = 0; i < sources.size(); i++)
+			{
+				take(i);
+			}
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			while (next == null && !heads.isEmpty())
+			{
+				var head = heads.poll();
+				take(head.source());
+				var doc = head.doc();
+				if (!Objects.equals(doc.timestamp(), time))
+				{
+					time = doc.timestamp();
+					sameTime.clear();
+				}
+				if (sameTime.add(doc.id()))
+				{
+					next = doc;
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public NoteDocument next()
+		{
+			if (!hasNext())
+			{
+				throw new NoSuchElementException();
+			}
+			var doc = next;
+			next = null;
+			return doc;
+		}
+
+		private void take(int source)
+		{
+			if (sources.get(source).hasNext())
+			{
+				heads.add(new Head(sources.get(source).next(), source));
+			}
+		}
+	}
+
+	private static record Head(NoteDocument doc, int source)
+	{
+		Long timestamp()
+		{
+			return doc.timestamp();
+		}
+	}
+
+	public static record Page(List<NoteDocument> documents, String next) {}
+
+	@FunctionalInterface
+	public interface PageLoader
+	{
+		Page load(String url) throws Exception;
+	}
+}
@@ -0,0 +1,235 @@
+package org.emerse.fhir;
+
+import ca.uhn.fhir.parser.DataFormatException;
+import com.fasterxml.jackson.core.JsonFactory;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+import org.hl7.fhir.r4.model.DateTimeType;
+
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+
+/**
+ * Starts and follows cohort export jobs. {@code POST /export} takes MRNs as {@code /batch} does and answers 202 with
+ * the job's status URL; {@code GET /export?job=} reports its progress, {@code GET /export?job=&output=true} streams
+ * the finished NDJSON and {@code DELETE /export?job=} cancels the job and removes its output. {@code GET /export}
+ * lists the jobs and {@code POST /export?job=} runs a failed one again from where it stopped.
+ * <p>
+ * With {@code format=archive} the output is kept as a {@link NoteArchive}: {@code output=true} then takes
+ * {@code patient}, {@code type}, {@code from} and {@code to} filters, {@code index=true} lists the matching entries
+ * and {@code entry=} reads a single one.
+ */
+public class ExportHandler extends AbstractHandler
+{
+	public ExportJobs jobs;
+	public JsonFactory jsonFactory;
+
+	@Override
+	protected void doHandle(
+		String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response
+	) throws Exception
+	{
+		var source = new ParameterSource(request);
+		var id = source.getParameter("job", String.class);
+		switch (request.getMethod())
+		{
+			case "POST" -> {
+				if (id != null)
+				{
+					if (!jobs.resume(id))
+					{
+						response.sendError(HttpServletResponse.SC_CONFLICT, "Only a failed job can be resumed");
+						return;
+					}
+					response.setHeader("Content-Location", "/export?job=" + id);
+					writeStatus(response, HttpServletResponse.SC_ACCEPTED, jobs.get(id));
+					return;
+				}
+				var format = source.getParameter("format", String.class);
+				if (format != null && !format.equals("ndjson") && !format.equals("archive"))
+				{
+					response.sendError(HttpServletResponse.SC_BAD_REQUEST, "format must be ndjson or archive");
+					return;
+				}
+				var mrns = BatchHandler.readMrns(baseRequest, request);
+				var job = jobs.submit(
+					mrns,
+					source.getParameter("after", String.class),
+					"archive".equals(format) ? ExportJobs.Format.ARCHIVE : ExportJobs.Format.NDJSON
+				);
+				response.setHeader("Content-Location", "/export?job=" + job.id);
+				writeStatus(response, HttpServletResponse.SC_ACCEPTED, job);
+			}
+			case "GET" -> {
+				if (id == null)
+				{
+					response.setStatus(HttpServletResponse.SC_OK);
+					response.setContentType("application/json");
+					try (var g = jsonFactory.createGenerator(response.getWriter()))
+					{
+						g.writeStartArray();
+						for (var job : jobs.jobs())
+							job.writeStatus(g);
+						g.writeEndArray();
+					}
+					return;
+				}
+				var job = jobs.get(id);
+				if (job == null)
+				{
+					response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such job");
+					return;
+				}
+				var output = source.getParameter("output", Boolean.class);
+				var index = source.getParameter("index", Boolean.class);
+				var entry = request.getParameter("entry");
+				if (!output && !index && entry == null)
+				{
+					writeStatus(response, HttpServletResponse.SC_OK, job);
+					return;
+				}
+				if (job.format != ExportJobs.Format.ARCHIVE && (index || entry != null || filtered(request)))
+				{
+					response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Only an archive job can be indexed or filtered");
+					return;
+				}
+				switch (job.state)
+				{
+					case COMPLETE -> {
+						if (job.format == ExportJobs.Format.ARCHIVE)
+						{
+							writeArchive(source, request, response, job, index, entry);
+							return;
+						}
+						response.setStatus(HttpServletResponse.SC_OK);
+						response.setContentType("application/x-ndjson");
+						response.setContentLengthLong(Files.size(job.output));
+						Files.copy(job.output, response.getOutputStream());
+					}
+					case FAILED, CANCELLED -> response.sendError(HttpServletResponse.SC_CONFLICT, "Job " + job.state.name().toLowerCase());
+					default -> {
+						response.setHeader("Retry-After", "5");
+						writeStatus(response, HttpServletResponse.SC_ACCEPTED, job);
+					}
+				}
+			}
+			case "DELETE" -> {
+				if (id == null || !jobs.delete(id))
+				{
+					response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such job");
+					return;
+				}
+				response.setStatus(HttpServletResponse.SC_ACCEPTED);
+			}
+			default -> response.setStatus(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+		}
+	}
+
+	/**
+	 * Reads an archive job's output: one record with {@code entry=}, the index with {@code index=true}, or otherwise
+	 * the records of the {@code patient}s, {@code type}s and {@code from}/{@code to} dates asked for.
+	 */
+	private void writeArchive(
+		ParameterSource source,
+		HttpServletRequest request,
+		HttpServletResponse response,
+		ExportJobs.Job job,
+		boolean index,
+		String entry
+	) throws Exception
+	{
+		try (var archive = new NoteArchive(job.archive))
+		{
+			if (entry != null)
+			{
+				int i;
+				try
+				{
+					i = Integer.parseInt(entry);
+				}
+				catch (NumberFormatException e)
+				{
+					response.sendError(HttpServletResponse.SC_BAD_REQUEST, "entry must be a number");
+					return;
+				}
+				if (i < 0 || i >= archive.size())
+				{
+					response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such entry");
+					return;
+				}
+				var record = archive.read(archive.entry(i));
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.setContentType("application/json");
+				response.setContentLength(record.length);
+				response.getOutputStream().write(record);
+				return;
+			}
+			Long from, to;
+			try
+			{
+				from = date(request.getParameter("from"));
+				to = date(request.getParameter("to"));
+			}
+			catch (DataFormatException e)
+			{
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "from and to must be dates: " + e.getMessage());
+				return;
+			}
+			var selected = archive.select(
+				request.getParameter("patient") == null ? null : source.getParameterList("patient", String.class),
+				from,
+				to,
+				request.getParameter("type") == null ? null : source.getParameterList("type", String.class)
+			);
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.setContentType("application/x-ndjson");
+			if (index)
+			{
+				var out = response.getWriter();
+				for (var e : selected)
+				{
+					var g = jsonFactory.createGenerator(out);
+					g.writeStartObject();
+					g.writeNumberField("entry", e.index());
+					g.writeStringField("mrn", e.patient());
+					if (e.timestamp() != null)
+						g.writeNumberField("timestamp", e.timestamp());
+					else
+						g.writeNullField("timestamp");
+					g.writeStringField("noteType", e.type());
+					g.writeNumberField("length", e.length());
+					g.writeEndObject();
+					g.flush();
+					out.write('\n');
+				}
+				return;
+			}
+			var out = Channels.newChannel(response.getOutputStream());
+			archive.scan(selected, (e, record) -> out.write(record));
+		}
+	}
+
+	private static Long date(String value)
+	{
+		return value == null ? null : new DateTimeType(value).getValue().getTime();
+	}
+
+	private static boolean filtered(HttpServletRequest request)
+	{
+		return request.getParameter("patient") != null
+			|| request.getParameter("type") != null
+			|| request.getParameter("from") != null
+			|| request.getParameter("to") != null;
+	}
+
+	private void writeStatus(HttpServletResponse response, int status, ExportJobs.Job job) throws Exception
+	{
+		response.setStatus(status);
+		response.setContentType("application/json");
+		try (var g = jsonFactory.createGenerator(response.getWriter()))
+		{
+			job.writeStatus(g);
+		}
+	}
+}
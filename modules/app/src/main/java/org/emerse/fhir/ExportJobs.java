@@ -0,0 +1,683 @@
+package org.emerse.fhir;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonToken;
+import org.hl7.fhir.r4.model.DateTimeType;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Runs cohort extractions as background jobs that write the same NDJSON lines as {@code /batch} to a file. Where the
+ * server offers Bulk Data export, the cohort's DocumentReferences arrive as a few NDJSON files that are read from disk
+ * with their Binaries fetched in parallel; otherwise, or when the server refuses the kick-off, each patient is
+ * extracted as a batch would, with transient failures retried under a {@link RetryPolicy}. Each job keeps its cohort
+ * and a {@link JobJournal} in its directory, so jobs survive a restart and resume where they stopped. A job can
+ * keep its output as a compressed {@link NoteArchive} instead, built once the extraction is complete.
+ */
+public class ExportJobs
+{
+	public FhirHandler fhirHandler;
+	public BatchHandler batchHandler;
+	public BundleParser bundleParser;
+	public BulkExport bulkExport;
+	public RetryPolicy retry = new RetryPolicy();
+	public ExecutorService executor;
+	public Path dir;
+	public int parallelism = 8;
+
+	// statuses a server gives a kick-off it doesn't support, as opposed to one that failed
+	private static final Set<Integer> UNSUPPORTED = Set.of(400, 404, 405, 501);
+	private static final String COHORT = "mrns.txt";
+	private static final String JOURNAL = "journal.log";
+	private static final String ARCHIVE = "archive";
+
+	private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+	public Job submit(List<String> mrns, String after, Format format) throws IOException
+	{
+		var job = new Job(UUID.randomUUID().toString(), mrns.size(), after, format, System.currentTimeMillis(), dir);
+		Files.createDirectories(job.dir);
+		var cohort = job.dir.resolve(COHORT + ".tmp");
+		Files.write(cohort, mrns, StandardCharsets.UTF_8);
+		Files.move(cohort, job.dir.resolve(COHORT), StandardCopyOption.ATOMIC_MOVE);
+		try (var journal = new JobJournal(job.dir.resolve(JOURNAL)))
+		{
+			journal.start(after, format, job.created);
+		}
+		jobs.put(job.id, job);
+		start(job);
+		return job;
+	}
+
+	/**
+	 * Picks up the jobs a previous run left in {@link #dir}: finished ones are listed again and unfinished ones resume
+	 * from their journals. Returns the number resumed.
+	 */
+	public int recover() throws IOException
+	{
+		if (!Files.isDirectory(dir))
+			return 0;
+		var resumed = 0;
+		try (var dirs = Files.list(dir))
+		{
+			for (var jobDir : (Iterable<Path>) dirs::iterator)
+			{
+				var journalFile = jobDir.resolve(JOURNAL);
+				var cohort = jobDir.resolve(COHORT);
+				if (!Files.exists(journalFile) || !Files.exists(cohort))
+					continue;
+				int patients;
+				try (var lines = Files.lines(cohort, StandardCharsets.UTF_8))
+				{
+					patients = (int) lines.count();
+				}
+				try (var journal = new JobJournal(journalFile))
+				{
+					var job = new Job(
+						jobDir.getFileName().toString(), patients, journal.after(), journal.format(), journal.created(), dir
+					);
+					job.restore(journal);
+					jobs.put(job.id, job);
+					if (journal.ended() != null)
+					{
+						job.finish(journal.ended(), null);
+						job.finished = Files.getLastModifiedTime(journalFile).toMillis();
+						job.ended.countDown();
+						continue;
+					}
+				}
+				start(jobs.get(jobDir.getFileName().toString()));
+				resumed++;
+			}
+		}
+		return resumed;
+	}
+
+	public Job get(String id)
+	{
+		return jobs.get(id);
+	}
+
+	public Collection<Job> jobs()
+	{
+		var list = new ArrayList<>(jobs.values());
+		list.sort(Comparator.comparingLong(j -> j.created));
+		return list;
+	}
+
+	/**
+	 * Runs a failed job again from where its journal stopped.
+	 */
+	public boolean resume(String id)
+	{
+		var job = jobs.get(id);
+		if (job == null || job.state != State.FAILED)
+			return false;
+		job.message = null;
+		job.finished = 0;
+		job.state = State.QUEUED;
+		job.ended = new CountDownLatch(1);
+		start(job);
+		return true;
+	}
+
+	/**
+	 * Stops a job if it is still running and deletes it with its output.
+	 */
+	public boolean delete(String id) throws IOException
+	{
+		var job = jobs.remove(id);
+		if (job == null)
+			return false;
+		if (job.future != null)
+			job.future.cancel(true);
+		try
+		{
+			// a cancelled job still tells the server, which is quick
+			job.ended.await(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		deleteFiles(job);
+		return true;
+	}
+
+	public long running()
+	{
+		return jobs.values().stream().filter(j -> !j.state.done()).count();
+	}
+
+	private void start(Job job)
+	{
+		job.future = executor.submit(() -> run(job));
+	}
+
+	private void run(Job job)
+	{
+		try (var journal = new JobJournal(job.dir.resolve(JOURNAL));
+			 var output = FileChannel.open(job.output, StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+		{
+			if (journal.ended() != null)
+				journal.resume();
+			// lines past the last finished patient or file were written by a run that never vouched for them
+			output.truncate(journal.offset());
+			output.position(journal.offset());
+			job.restore(journal);
+			var mrns = Files.readAllLines(job.dir.resolve(COHORT), StandardCharsets.UTF_8);
+			try
+			{
+				if (bulkExport == null || "per-patient".equals(journal.mode()) || !runBulk(job, journal, mrns, output))
+					runPerPatient(job, journal, mrns, output);
+				if (job.format == Format.ARCHIVE)
+					archive(job);
+				journal.end(State.COMPLETE);
+				job.finish(State.COMPLETE, null);
+			}
+			catch (Exception e)
+			{
+				if (e instanceof InterruptedException || e instanceof ClosedByInterruptException || Thread.interrupted())
+				{
+					job.finish(State.CANCELLED, null);
+					return;
+				}
+				journal.end(State.FAILED);
+				job.finish(State.FAILED, String.valueOf(e.getMessage()));
+			}
+		}
+		catch (Exception e)
+		{
+			if (!job.state.done())
+				job.finish(State.FAILED, String.valueOf(e.getMessage()));
+		}
+		finally
+		{
+			job.ended.countDown();
+		}
+		if (job.state == State.COMPLETE && job.format == Format.ARCHIVE)
+		{
+			// the archive holds every line, and a restart with the journal ended won't need them
+			try
+			{
+				Files.deleteIfExists(job.output);
+			}
+			catch (IOException ignored)
+			{
+			}
+		}
+	}
+
+	/**
+	 * Packs the finished output into a {@link NoteArchive} indexed by each line's patient, date and note type. It is
+	 * built beside the job's {@code archive} directory and moved there whole.
+	 */
+	private void archive(Job job) throws IOException
+	{
+		job.state = State.ARCHIVING;
+		var tmp = job.dir.resolve(ARCHIVE + ".tmp");
+		deleteTree(tmp);
+		try (var reader = Files.newBufferedReader(job.output, StandardCharsets.UTF_8);
+			 var writer = new NoteArchive.Writer(tmp))
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				String mrn = null;
+				String type = null;
+				Long timestamp = null;
+				try (var p = fhirHandler.jsonFactory.createParser(line))
+				{
+					p.nextToken();
+					while (p.nextToken() == JsonToken.FIELD_NAME)
+					{
+						var name = p.getCurrentName();
+						var token = p.nextToken();
+						switch (name)
+						{
+							case "mrn" -> mrn = p.getText();
+							case "timestamp" -> timestamp = token == JsonToken.VALUE_NUMBER_INT ? p.getLongValue() : null;
+							case "noteType" -> type = token == JsonToken.VALUE_STRING ? p.getText() : null;
+							default -> p.skipChildren();
+						}
+					}
+				}
+				writer.add(mrn == null ? "" : mrn, timestamp, type, (line + "\n").getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		deleteTree(job.archive);
+		Files.move(tmp, job.archive, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Extracts the cohort through {@code Patient/$export}, returning false without writing anything when the server
+	 * turns the kick-off down. A resumed job polls the export it already started, skipping the files it finished, and
+	 * starts over only if the server no longer has it.
+	 */
+	private boolean runBulk(Job job, JobJournal journal, List<String> mrns, FileChannel output) throws Exception
+	{
+		job.state = State.RESOLVING;
+		var patients = new HashMap<String, String>();
+		var unknown = new ArrayList<String>();
+		new FetchWindow<String, String>(fhirHandler.fetchExecutor, null, parallelism).run(
+			mrns.iterator(),
+			mrn -> {
+				try
+				{
+					return fhirHandler.resolvePatient(null, mrn).fhirId();
+				}
+				catch (IllegalArgumentException e)
+				{
+					return null;
+				}
+			},
+			(mrn, fhirId) -> {
+				if (fhirId == null)
+					unknown.add(mrn);
+				else
+					patients.put(fhirId, mrn);
+				job.patientsDone.incrementAndGet();
+			}
+		);
+
+		job.state = State.EXPORTING;
+		var statusUrl = journal.statusUrl();
+		BulkExport.Manifest manifest = null;
+		if (statusUrl != null)
+		{
+			job.mode = "bulk";
+			try
+			{
+				manifest = bulkExport.await(statusUrl, progress -> job.progress = progress);
+			}
+			catch (BaseServerResponseException e)
+			{
+				if (e.getStatusCode() != 404 && e.getStatusCode() != 410)
+					throw e;
+				journal.reset();
+				output.truncate(0);
+				job.restore(journal);
+				statusUrl = null;
+			}
+		}
+		if (statusUrl == null)
+		{
+			try
+			{
+				statusUrl = bulkExport.kickOff(new ArrayList<>(patients.keySet()));
+			}
+			catch (BaseServerResponseException e)
+			{
+				if (!UNSUPPORTED.contains(e.getStatusCode()))
+					throw e;
+				job.patientsDone.set(0);
+				return false;
+			}
+			if (!"bulk".equals(journal.mode()))
+				journal.mode("bulk");
+			journal.bulk(statusUrl);
+			job.mode = "bulk";
+		}
+		try
+		{
+			if (manifest == null)
+				manifest = bulkExport.await(statusUrl, progress -> job.progress = progress);
+			job.upstreamErrors = manifest.error().size();
+			var files = manifest.output().stream().filter(o -> "DocumentReference".equals(o.type())).toList();
+			job.files = files.size();
+			var from = job.after == null ? null : new DateTimeType(job.after).getValue().getTime();
+			var out = new PrintWriter(Channels.newWriter(output, StandardCharsets.UTF_8));
+			for (int i = journal.filesDone(); i < files.size(); i++)
+			{
+				job.state = State.DOWNLOADING;
+				var file = job.dir.resolve("part-" + i + ".ndjson");
+				bulkExport.download(manifest, files.get(i).url(), file);
+				job.state = State.EXTRACTING;
+				var extracted = extract(job, journal, file, from, patients, out);
+				sync(out, output);
+				journal.file(output.position(), extracted.notes(), extracted.failed());
+				Files.deleteIfExists(file);
+				job.filesDone.incrementAndGet();
+			}
+			for (var mrn : unknown)
+				batchHandler.writeError(out, mrn, "Patient does not exist");
+			sync(out, output);
+		}
+		catch (InterruptedException | ClosedByInterruptException e)
+		{
+			bulkExport.delete(statusUrl);
+			throw e;
+		}
+		// a failed job keeps the export, so resuming it needn't ask for another
+		bulkExport.delete(statusUrl);
+		return true;
+	}
+
+	/**
+	 * Streams one downloaded file, fetching the content of the notes in it through the usual window of parallel
+	 * Binary reads. A note whose read still fails after its retries gets an error line in place of its own, so one
+	 * bad Binary doesn't fail the job. Notes are picked by period, as the per-patient search picks them.
+	 */
+	private Extracted extract(
+		Job job, JobJournal journal, Path file, Long from, Map<String, String> patients, PrintWriter out
+	) throws Exception
+	{
+		var written = new LongAdder();
+		var failed = new LongAdder();
+		try (var in = Files.newInputStream(file); var docs = bundleParser.readNdjson(in))
+		{
+			var wanted = filter(docs, doc -> patients.containsKey(doc.patient())
+				&& (from == null || doc.periodReaches(from)));
+			new FetchWindow<NoteDocument, Read>(
+				fhirHandler.fetchExecutor,
+				fhirHandler.windowPermits(),
+				fhirHandler.fetchWindow
+			).run(
+				wanted,
+				doc -> read(job, journal, patients.get(doc.patient()), doc),
+				(doc, read) -> {
+					var mrn = patients.get(doc.patient());
+					if (read.error() != null)
+					{
+						batchHandler.writeLine(out, g -> {
+							g.writeStringField("mrn", mrn);
+							g.writeStringField("id", doc.id());
+							g.writeStringField("error", read.error());
+						});
+						failed.increment();
+						job.failed.incrementAndGet();
+						return;
+					}
+					var content = read.content();
+					if (content == null)
+						return;
+					batchHandler.writeLine(out, g -> {
+						g.writeStringField("mrn", mrn);
+						FhirHandler.writeNoteFields(g, doc, content);
+					});
+					written.increment();
+					job.notes.increment();
+					fhirHandler.metrics.notes.increment();
+					fhirHandler.index(doc, content);
+				}
+			);
+		}
+		return new Extracted(written.sum(), failed.intValue());
+	}
+
+	/**
+	 * Reads a note's content, trying a failed read again the way a failed patient is; after the last attempt the
+	 * error is returned in place of the content.
+	 */
+	private Read read(Job job, JobJournal journal, String mrn, NoteDocument doc) throws Exception
+	{
+		for (int attempt = 1; ; attempt++)
+		{
+			try
+			{
+				return new Read(fhirHandler.readContent(doc), null);
+			}
+			catch (Exception e)
+			{
+				if (e instanceof InterruptedException || Thread.currentThread().isInterrupted())
+					throw e;
+				if (attempt >= retry.maxAttempts || !retry.retryable(e))
+					return new Read(null, String.valueOf(e.getMessage()));
+				journal.retry(mrn, attempt, e.getMessage());
+				job.retries.incrementAndGet();
+				Thread.sleep(retry.delay(attempt));
+			}
+		}
+	}
+
+	/**
+	 * Extracts the patients the journal hasn't finished the way {@code /batch} does. Each patient's lines are kept
+	 * until it succeeds or runs out of attempts and are then appended whole, so a retry or a crash leaves no partial
+	 * patient in the output.
+	 */
+	private void runPerPatient(Job job, JobJournal journal, List<String> mrns, FileChannel output) throws Exception
+	{
+		if (!"per-patient".equals(journal.mode()))
+			journal.mode("per-patient");
+		job.mode = "per-patient";
+		job.state = State.EXTRACTING;
+		var done = journal.done();
+		new FetchWindow<String, Patient>(batchHandler.executor, null, parallelism).run(
+			mrns.stream().filter(mrn -> !done.contains(mrn)).iterator(),
+			mrn -> attempt(job, journal, mrn),
+			(mrn, patient) -> {
+				var buffer = ByteBuffer.wrap(patient.lines());
+				while (buffer.hasRemaining())
+					output.write(buffer);
+				output.force(false);
+				journal.done(mrn, output.position(), patient.notes(), patient.ok());
+				job.notes.add(patient.notes());
+				job.patientsDone.incrementAndGet();
+				if (!patient.ok())
+					job.failed.incrementAndGet();
+			}
+		);
+	}
+
+	private Patient attempt(Job job, JobJournal journal, String mrn) throws Exception
+	{
+		for (int attempt = 1; ; attempt++)
+		{
+			var buffer = new StringWriter();
+			var out = new PrintWriter(buffer);
+			try
+			{
+				var notes = batchHandler.writePatient(mrn, job.after, null, out);
+				return new Patient(buffer.toString().getBytes(StandardCharsets.UTF_8), notes, true);
+			}
+			catch (Exception e)
+			{
+				if (e instanceof InterruptedException || Thread.currentThread().isInterrupted())
+					throw e;
+				if (attempt >= retry.maxAttempts || !retry.retryable(e))
+				{
+					var error = new StringWriter();
+					batchHandler.writeError(new PrintWriter(error), mrn, String.valueOf(e.getMessage()));
+					return new Patient(error.toString().getBytes(StandardCharsets.UTF_8), 0, false);
+				}
+				journal.retry(mrn, attempt, e.getMessage());
+				job.retries.incrementAndGet();
+				Thread.sleep(retry.delay(attempt));
+			}
+		}
+	}
+
+	private static void sync(PrintWriter out, FileChannel output) throws IOException
+	{
+		out.flush();
+		if (out.checkError())
+			throw new IOException("Could not write the job output");
+		output.force(false);
+	}
+
+	private static void deleteFiles(Job job) throws IOException
+	{
+		deleteTree(job.dir);
+	}
+
+	private static void deleteTree(Path root) throws IOException
+	{
+		if (!Files.exists(root))
+			return;
+		try (var files = Files.walk(root))
+		{
+			for (var file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+				Files.deleteIfExists(file);
+		}
+	}
+
+	private static <T> Iterator<T> filter(Iterator<T> source, Predicate<T> keep)
+	{
+		return new Iterator<>()
+		{
+			private T next;
+
+			@Override
+			public boolean hasNext()
+			{
+				while (next == null && source.hasNext())
+				{
+					var item = source.next();
+					if (keep.test(item))
+						next = item;
+				}
+				return next != null;
+			}
+
+			@Override
+			public T next()
+			{
+				if (!hasNext())
+					throw new NoSuchElementException();
+				var item = next;
+				next = null;
+				return item;
+			}
+		};
+	}
+
+	public enum State
+	{
+		QUEUED, RESOLVING, EXPORTING, DOWNLOADING, EXTRACTING, ARCHIVING, COMPLETE, FAILED, CANCELLED;
+
+		public boolean done()
+		{
+			return this == COMPLETE || this == FAILED || this == CANCELLED;
+		}
+	}
+
+	/**
+	 * How a job's output is kept: as the NDJSON lines {@code /batch} writes, or packed into a {@link NoteArchive}.
+	 */
+	public enum Format
+	{
+		NDJSON, ARCHIVE
+	}
+
+	private static record Patient(byte[] lines, long notes, boolean ok) {}
+
+	private static record Read(FhirHandler.Content content, String error) {}
+
+	private static record Extracted(long notes, int failed) {}
+
+	public static class Job
+	{
+		public final String id;
+		public final String after;
+		public final Format format;
+		public final int patients;
+		public final Path dir;
+		public final Path output;
+		public final Path archive;
+		public final long created;
+		public final AtomicInteger patientsDone = new AtomicInteger();
+		public final AtomicInteger failed = new AtomicInteger();
+		public final AtomicInteger retries = new AtomicInteger();
+		public final AtomicInteger filesDone = new AtomicInteger();
+		public final LongAdder notes = new LongAdder();
+		public volatile State state = State.QUEUED;
+		public volatile String mode;
+		public volatile String progress;
+		public volatile int files;
+		public volatile int upstreamErrors;
+		public volatile String message;
+		public volatile long finished;
+		volatile Future<?> future;
+		volatile CountDownLatch ended = new CountDownLatch(1);
+
+		Job(String id, int patients, String after, Format format, long created, Path root)
+		{
+			this.id = id;
+			this.patients = patients;
+			this.after = after;
+			this.format = format;
+			this.created = created;
+			this.dir = root.resolve(id);
+			this.output = dir.resolve("output.ndjson");
+			this.archive = dir.resolve(ARCHIVE);
+		}
+
+		/**
+		 * Takes the progress counters from the journal, as a resumed job starts where it stopped.
+		 */
+		void restore(JobJournal journal)
+		{
+			mode = journal.mode();
+			patientsDone.set(journal.done().size());
+			failed.set(journal.failed());
+			retries.set(journal.retries());
+			filesDone.set(journal.filesDone());
+			notes.reset();
+			notes.add(journal.notes());
+		}
+
+		void finish(State state, String message)
+		{
+			this.message = message;
+			this.finished = System.currentTimeMillis();
+			this.state = state;
+		}
+
+		public void writeStatus(JsonGenerator g) throws IOException
+		{
+			g.writeStartObject();
+			g.writeStringField("id", id);
+			g.writeStringField("state", state.name().toLowerCase());
+			g.writeStringField("mode", mode);
+			g.writeStringField("after", after);
+			g.writeStringField("format", format.name().toLowerCase());
+			g.writeNumberField("patients", patients);
+			g.writeNumberField("patientsDone", patientsDone.get());
+			g.writeNumberField("failed", failed.get());
+			g.writeNumberField("retries", retries.get());
+			g.writeNumberField("files", files);
+			g.writeNumberField("filesDone", filesDone.get());
+			g.writeNumberField("notes", notes.sum());
+			if (progress != null)
+				g.writeStringField("upstreamProgress", progress);
+			if (upstreamErrors > 0)
+				g.writeNumberField("upstreamErrors", upstreamErrors);
+			if (message != null)
+				g.writeStringField("message", message);
+			g.writeNumberField("created", created);
+			if (finished > 0)
+				g.writeNumberField("finished", finished);
+			g.writeEndObject();
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package org.emerse.fhir;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+public class FetchWindow<T, R>
+{
+	private final ExecutorService executor;
+	private final Semaphore permits;
+	private final int window;
+
+	public FetchWindow(ExecutorService executor, Semaphore permits, int window)
+	{
+		this.executor = executor;
+		this.permits = permits;
+		this.window = Math.max(1, window);
+	}
+
+	public void run(Iterator<T> source, Fetch<T, R> fetch, Sink<T, R> sink) throws Exception
+	{
+		if (executor == null)
+		{
+			while (source.hasNext())
+			{
+				var item = source.next();
+				sink.accept(item, fetch.fetch(item));
+			}
+			return;
+		}
+		var pending = new ArrayDeque<Pending<T, R>>();
+		try
+		{
+			while (true)
+			{
+				while (pending.size() < window && source.hasNext())
+				{
+					var item = source.next();
+					pending.add(new Pending<>(item, executor.submit(() -> fetchWithPermit(fetch, item))));
+				}
+				var head = pending.poll();
+				if (head == null)
+				{
+					return;
+				}
+				sink.accept(head.item, await(head.future));
+			}
+		}
+		finally
+		{
+			for (var p : pending)
+			{
+				p.future.cancel(true);
+			}
+		}
+	}
+
+	private R fetchWithPermit(Fetch<T, R> fetch, T item) throws Exception
+	{
+		if (permits == null)
+		{
+			return fetch.fetch(item);
+		}
+		permits.acquire();
+		try
+		{
+			return fetch.fetch(item);
+		}
+		finally
+		{
+			permits.release();
+		}
+	}
+
+	private static <R> R await(Future<R> future) throws Exception
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof Exception ex)
+			{
+				throw ex;
+			}
+			throw e;
+		}
+	}
+
+	private static record Pending<T, R>(T item, Future<R> future) {}
+
+	@FunctionalInterface
+	public interface Fetch<T, R>
+	{
+		R fetch(T item) throws Exception;
+	}
+
+	@FunctionalInterface
+	public interface Sink<T, R>
+	{
+		void accept(T item, R result) throws Exception;
+	}
+}
@@ -2,42 +2,165 @@ package org.emerse.fhir;
 
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.gclient.StringClientParam;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import ca.uhn.fhir.rest.param.DateParam;
 import ca.uhn.fhir.rest.param.DateRangeParam;
 import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
-import org.apache.commons.codec.binary.Base64;
 import org.eclipse.jetty.server.Request;
 import org.hl7.fhir.r4.model.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 
 public class FhirHandler extends AbstractHandler
 {
-	public static final Base64 decoder = new Base64();
-
 	public IGenericClient client;
 	public JsonFactory jsonFactory;
+	public ExecutorService fetchExecutor;
+	public Semaphore fetchPermits;
+	public int fetchWindow = 16;
+	public PatientCache patientCache;
+	public NoteCache noteCache;
+	public RawFhirClient rawClient;
+	public BundleParser bundleParser;
+	public Metrics metrics = new Metrics();
+	public SingleFlight singleFlight;
+	public AdaptiveLimiter limiter;
+	public Hedger hedger;
+	public QueryPlanner planner;
+	public PeriodPartitioner partitioner;
+	public WatermarkStore watermarks;
+	public NoteIndex index;
+	public TextNormalizer normalizer = new TextNormalizer();
+	public boolean plainText;
+
+	/**
+	 * Stands in for a note whose content didn't arrive before the deadline; it is written with {@code "missing": true}.
+	 */
+	public static final Content MISSING = new Content(new byte[0], null);
 
-	public static record Content(String text, String type) {}
+	private static final int LISTED_NOTES = 10_000;
 
-	private Content getDocumentContent(DocumentReference document) {
-		if (!document.getContent().isEmpty()) {
-			DocumentReference.DocumentReferenceContentComponent content = document.getContentFirstRep();
-			Attachment attachment = content.getAttachment();
+	// where the Binary-backed notes of recent metadata listings live, so reading one needs no DocumentReference read
+	private final Map<String, NoteDocument> listed = Collections.synchronizedMap(
+		new LinkedHashMap<>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, NoteDocument> eldest)
+			{
+				return size() > LISTED_NOTES;
+			}
+		}
+	);
+
+	/**
+	 * A note's decoded bytes. The whole note is held once in memory, so a request holds up to {@link #fetchWindow}
+	 * notes while they wait for the writer. Only the text field is written through a fixed-size buffer. Reading a
+	 * Binary through HAPI also holds its base64 text until it's parsed; {@link BundleParser} decodes straight off the
+	 * response stream.
+	 */
+	public static record Content(byte[] data, String type)
+	{
+		public Charset charset()
+		{
+			return charsetOf(type);
+		}
 
-			if (!attachment.getDataElement().isEmpty()) {
-				return new Content(new String(attachment.getData()), attachment.getContentType());
+		public static Charset charsetOf(String type)
+		{
+			if (type != null)
+			{
+				for (var param : type.split(";"))
+				{
+					var kv = param.trim().split("=", 2);
+					if (kv.length == 2 && kv[0].trim().equalsIgnoreCase("charset"))
+					{
+						try
+						{
+							return Charset.forName(kv[1].trim().replace("\"", ""));
+						}
+						catch (IllegalArgumentException e)
+						{
+							break;
+						}
+					}
+				}
 			}
+			return StandardCharsets.UTF_8;
+		}
+
+		public Reader reader()
+		{
+			return new InputStreamReader(new ByteArrayInputStream(data), charset());
+		}
+
+		public String text()
+		{
+			return new String(data, charset());
+		}
+	}
+
+	private Content getDocumentContent(NoteDocument document) throws Exception {
+		if (document.data() != null) {
+			return new Content(document.data(), document.contentType());
+		}
 
-			if (!attachment.getUrlElement().isEmpty()) {
-				Binary data = client.read().resource(Binary.class).withUrl(attachment.getUrl()).execute();
-				var base64Str = data.getContentAsBase64();
-				if(base64Str != null)
-				    return new Content(new String(decoder.decode(data.getContentAsBase64())), data.getContentType());
+		if (document.url() != null) {
+			var key = "url:" + document.url();
+			if (noteCache != null) {
+				var cached = noteCache.get(key);
+				if (cached != null)
+					return new Content(cached.data(), cached.type());
 			}
+			AdaptiveLimiter.Upstream<Content> read = () -> upstream(metrics.binary, () -> {
+				if (bundleParser != null) {
+					return rawClient.get(document.url(), bundleParser::parseBinary);
+				}
+				Binary data = client.read().resource(Binary.class).withUrl(document.url()).execute();
+				// getContent() hands back the bytes HAPI already decoded while parsing, so no re-encoding is needed
+				return data.getContent() == null ? null : new Content(data.getContent(), data.getContentType());
+			});
+			Content result;
+			try {
+				result = hedger == null ? read.call() : hedger.call(read);
+			}
+			catch (TimeoutException e) {
+				metrics.missingNotes.increment();
+				return MISSING;
+			}
+			if (result != null && noteCache != null)
+				noteCache.put(key, result.type(), result.data());
+			return result;
 		}
 
 		return null;
@@ -48,10 +171,579 @@ public class FhirHandler extends AbstractHandler
 		String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response
 	) throws Exception
 	{
-		var source = new ParameterSource(request);
-		var fhirId = source.getParameter("fhir_id", String.class);
-		var mrn = source.getParameter("mrn", String.class);
-		var after = source.getParameter("after", String.class);
+		var start = System.nanoTime();
+		metrics.requests.increment();
+		var sink = new JsonNoteSink(() -> {
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.setContentType("application/json");
+			return jsonFactory.createGenerator(new CountingOutputStream(response.getOutputStream(), metrics));
+		});
+		try
+		{
+			var plain = plainText(request);
+			if (plain == null)
+			{
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "text must be raw or plain");
+				return;
+			}
+			var source = new ParameterSource(request);
+			var fhirId = source.getParameter("fhir_id", String.class);
+			var mrn = source.getParameter("mrn", String.class);
+			var after = source.getParameter("after", String.class);
+			var metadata = source.getParameter("metadata", Boolean.class);
+			var incremental = source.getParameter("incremental", Boolean.class);
+			if (metadata && incremental)
+			{
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "metadata and incremental can't be combined");
+				return;
+			}
+			if (metadata)
+			{
+				var plan = plan(fhirId, mrn, after);
+				sink.patient(plan.patient().fhirId(), plan.patient().names());
+				listNotes(plan, after, sink);
+			}
+			else if (incremental)
+			{
+				if (watermarks == null)
+				{
+					response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Incremental extraction needs --watermarks");
+					return;
+				}
+				sink.ids = true;
+				var patient = resolvePatient(fhirId, mrn);
+				sink.patient(patient.fhirId(), patient.names());
+				var out = plain ? normalizer.sink(sink) : null;
+				var mark = sync(patient.fhirId(), after, out != null ? out : sink);
+				if (out != null)
+					out.finish();
+				// the watermark only moves once the delta has been handed to the client; a dropped connection fails the
+				// flush, and the exception skips the commit
+				sink.finish();
+				sink.close();
+				commit(patient.fhirId(), mark);
+			}
+			else if (plain)
+			{
+				var out = normalizer.sink(sink);
+				extract(fhirId, mrn, after, out);
+				out.finish();
+			}
+			else
+				extract(fhirId, mrn, after, sink);
+		}
+		catch (Exception e)
+		{
+			metrics.failedRequests.increment();
+			throw e;
+		}
+		finally
+		{
+			// closing fails too once the client has gone, and the request still counts
+			try
+			{
+				sink.close();
+			}
+			finally
+			{
+				metrics.request.recordSince(start);
+			}
+		}
+	}
+
+	public void extract(String fhirId, String mrn, String after, NoteSink sink) throws Exception
+	{
+		var plan = plan(fhirId, mrn, after);
+		try
+		{
+			sink.patient(plan.patient().fhirId(), plan.patient().names());
+		}
+		catch (Exception e)
+		{
+			if (plan.documents() != null)
+				plan.documents().close();
+			throw e;
+		}
+		writeNotes(plan, after, sink);
+	}
+
+	/**
+	 * Resolves the patient, and when the planner can do it in the same round trip, also reads the first page of notes.
+	 */
+	public Plan plan(String fhirId, String mrn, String after) throws Exception
+	{
+		// a combined search reads the first page of the whole period, which a split search would not use
+		if (planner != null && planner.combines(fhirId) && partitions(after).size() < 2)
+		{
+			var cached = patientCache == null ? null : patientCache.get(patientKey(fhirId, mrn));
+			if (cached != null)
+			{
+				if (cached.patient() == null)
+					throw new IllegalArgumentException("Patient does not exist");
+				return new Plan(cached.patient(), null);
+			}
+			try
+			{
+				return combinedSearch(fhirId, mrn, after);
+			}
+			catch (BaseServerResponseException e)
+			{
+				if (!planner.rejected(e, fhirId))
+					throw e;
+			}
+		}
+		return new Plan(resolvePatient(fhirId, mrn), null);
+	}
+
+	private Plan combinedSearch(String fhirId, String mrn, String after) throws Exception
+	{
+		var url = planner.combinedSearch(fhirId, mrn, after);
+		var bundle = upstream(metrics.search, () -> client.search().byUrl(url).returnBundle(Bundle.class).execute());
+		PatientCache.PatientInfo patient = null;
+		for (var entry : bundle.getEntry())
+		{
+			if (entry.getResource() instanceof Patient resource)
+			{
+				patient = patientInfo(resource, fhirId);
+				break;
+			}
+		}
+		if (patient == null)
+			// nothing matched, so nothing was included either; find out whether the patient exists
+			patient = resolvePatient(fhirId, mrn);
+		else if (patientCache != null)
+			patientCache.put(patientKey(fhirId, mrn), patient);
+		DocumentPages.PageLoader loader = bundleParser != null
+			? timed(next -> rawClient.get(next, bundleParser::parseBundle))
+			: timed(DocumentPages.hapiLoader(client));
+		return new Plan(patient, new DocumentPages(loader, fetchExecutor, DocumentPages.page(bundle)));
+	}
+
+	/**
+	 * Writes each note's metadata with null content, reading no Binary; {@link #readNote} and {@link #readContent}
+	 * then serve one note at a time.
+	 */
+	public void listNotes(Plan plan, String after, NoteSink sink) throws Exception
+	{
+		var docs = plan.documents() != null ? plan.documents() : searchDocuments(plan.patient().fhirId(), after);
+		var counted = counted(sink);
+		try
+		{
+			while (docs.hasNext())
+			{
+				var doc = docs.next();
+				if (doc.data() == null && doc.url() != null)
+					listed.put(doc.id(), doc);
+				counted.note(doc, null);
+			}
+		}
+		finally
+		{
+			docs.close();
+		}
+	}
+
+	/**
+	 * The DocumentReference of one note, from a recent listing or else read upstream.
+	 */
+	public NoteDocument readNote(String id) throws Exception
+	{
+		var doc = listed.get(id);
+		if (doc != null)
+			return doc;
+		try
+		{
+			return NoteDocument.of(upstream(
+				metrics.search,
+				() -> client.read().resource(DocumentReference.class).withId(id).execute()
+			));
+		}
+		catch (ResourceNotFoundException | ResourceGoneException e)
+		{
+			throw new IllegalArgumentException("Note does not exist");
+		}
+	}
+
+	/**
+	 * The content of one note, null when it has none or {@link #MISSING} past the Binary deadline.
+	 */
+	public Content readContent(NoteDocument doc) throws Exception
+	{
+		return getDocumentContent(doc);
+	}
+
+	public void writeNotes(Plan plan, String after, NoteSink sink) throws Exception
+	{
+		if (plan.documents() == null)
+			writeNotes(plan.patient().fhirId(), after, sink);
+		else
+			writeNotes(plan.documents(), counted(sink));
+	}
+
+	public void writeNotes(String fhirId, String after, NoteSink sink) throws Exception
+	{
+		if (singleFlight == null)
+		{
+			writeNotes(searchDocuments(fhirId, after), counted(sink));
+			return;
+		}
+		// followers replay the leader's notes, so they're indexed once, as the leader extracts them
+		singleFlight.run(
+			fhirId + "|" + after,
+			leader -> writeNotes(searchDocuments(fhirId, after), indexed(leader)),
+			counted(sink, false)
+		);
+	}
+
+	private NoteSink counted(NoteSink sink)
+	{
+		return counted(sink, true);
+	}
+
+	private NoteSink counted(NoteSink sink, boolean indexed)
+	{
+		return new NoteSink()
+		{
+			@Override
+			public void patient(String fhirId, List<String> names) throws Exception
+			{
+				sink.patient(fhirId, names);
+			}
+
+			@Override
+			public void note(NoteDocument doc, Content content) throws Exception
+			{
+				var start = System.nanoTime();
+				if (indexed && sink instanceof TextNormalizer.Pipeline pipeline)
+					// the text the pipeline converts for the client is the text that's indexed
+					pipeline.note(doc, content, FhirHandler.this::index);
+				else
+				{
+					sink.note(doc, content);
+					if (indexed)
+						index(doc, content);
+				}
+				metrics.write.recordSince(start);
+				metrics.notes.increment();
+			}
+		};
+	}
+
+	private NoteSink indexed(NoteSink sink)
+	{
+		return new NoteSink()
+		{
+			@Override
+			public void patient(String fhirId, List<String> names) throws Exception
+			{
+				sink.patient(fhirId, names);
+			}
+
+			@Override
+			public void note(NoteDocument doc, Content content) throws Exception
+			{
+				sink.note(doc, content);
+				index(doc, content);
+			}
+		};
+	}
+
+	/**
+	 * Adds a note that was handed to a client to the full-text index, when there is one, as plain text. Content that
+	 * isn't plain text yet is converted on the normalizer's pool rather than on the thread writing the note.
+	 */
+	void index(NoteDocument doc, Content content) throws IOException
+	{
+		if (index == null || content == null || content == MISSING)
+			return;
+		if (TextNormalizer.PLAIN_TEXT.equals(content.type()))
+		{
+			index.add(doc.id(), doc.patient(), doc.timestamp(), content.text());
+			return;
+		}
+		if (normalizer.executor == null)
+		{
+			index.add(doc.id(), doc.patient(), doc.timestamp(), normalizer.normalize(content).text());
+			return;
+		}
+		try
+		{
+			normalizer.executor.execute(() -> {
+				try
+				{
+					index.add(doc.id(), doc.patient(), doc.timestamp(), normalizer.normalize(content).text());
+				}
+				catch (IOException e)
+				{
+					System.err.println("Could not index note " + doc.id() + ": " + e.getMessage());
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			// shutting down; the note is indexed again when it's next extracted
+		}
+	}
+
+	/**
+	 * Whether a request wants its notes as plain text: its {@code text} parameter, {@code plain} or {@code raw}, or
+	 * {@link #plainText} without one. Null for any other value.
+	 */
+	Boolean plainText(HttpServletRequest request)
+	{
+		var text = request.getParameter("text");
+		if (text == null)
+			return plainText;
+		return switch (text)
+		{
+			case "plain" -> true;
+			case "raw" -> false;
+			default -> null;
+		};
+	}
+
+	/**
+	 * The fetch permits a window holds per note; with a hedger each read holds its own for as long as it runs.
+	 */
+	Semaphore windowPermits()
+	{
+		return hedger != null && hedger.permits != null ? null : fetchPermits;
+	}
+
+	public void writeNotes(DocumentPages docs, NoteSink sink) throws Exception
+	{
+		try
+		{
+			new FetchWindow<NoteDocument, Content>(fetchExecutor, windowPermits(), fetchWindow).run(
+				docs,
+				this::getDocumentContent,
+				(doc, content) -> {
+					if(content != null)
+						sink.note(doc, content);
+				}
+			);
+		}
+		finally
+		{
+			docs.close();
+		}
+	}
+
+	/**
+	 * Writes what changed for a patient since its watermark: notes created or updated since, with their ids and
+	 * versions, and tombstones for notes superseded, replaced or entered in error. The first sync is a full extraction
+	 * from {@code after}. Returns the watermark to {@link #commit} once the client has the delta, null if none moved.
+	 */
+	public WatermarkStore.Mark sync(String fhirId, String after, NoteSink sink) throws Exception
+	{
+		if (watermarks == null)
+			throw new IllegalStateException("Incremental extraction needs a watermark store");
+		var mark = watermarks.get(fhirId);
+		var progress = new WatermarkStore.Progress(mark);
+		// the search starts at the mark's instant, so what was already sent at exactly that instant comes back
+		Predicate<NoteDocument> sent = doc -> mark != null
+			&& doc.lastUpdated() != null
+			&& doc.lastUpdated() == mark.lastUpdated()
+			&& mark.frontier().contains(doc.id());
+		var counted = counted(sink);
+		var docs = searchDocuments(fhirId, after, null, mark == null ? null : mark.lastUpdated(), false, page -> page);
+		try
+		{
+			new FetchWindow<NoteDocument, Content>(fetchExecutor, windowPermits(), fetchWindow).run(
+				docs,
+				doc -> doc.retracted() || sent.test(doc) ? null : getDocumentContent(doc),
+				(doc, content) -> {
+					if (content == MISSING)
+						progress.miss(doc);
+					else
+						progress.see(doc);
+					if (sent.test(doc))
+						return;
+					if (doc.retracted())
+					{
+						// a first sync has nothing to retract
+						if (mark != null)
+							deleted(sink, doc.id());
+						return;
+					}
+					if (mark != null && doc.replaces() != null)
+						deleted(sink, doc.replaces());
+					if (content != null)
+						counted.note(doc, content);
+				}
+			);
+		}
+		finally
+		{
+			docs.close();
+		}
+		return progress.mark();
+	}
+
+	public void commit(String fhirId, WatermarkStore.Mark mark) throws IOException
+	{
+		if (mark != null)
+			watermarks.commit(Map.of(fhirId, mark));
+	}
+
+	private void deleted(NoteSink sink, String id) throws Exception
+	{
+		sink.deleted(id);
+		metrics.deletedNotes.increment();
+		if (index != null)
+			index.delete(id);
+	}
+
+	public DocumentPages searchDocuments(String fhirId, String after) throws Exception
+	{
+		var ranges = partitions(after);
+		if (ranges.size() < 2)
+			return searchDocuments(fhirId, after, null, null, false, page -> page);
+		metrics.splitSearches.increment();
+		metrics.rangeSearches.add(ranges.size());
+		var today = LocalDate.now(ZoneOffset.UTC);
+		var parts = new ArrayList<CompletableFuture<DocumentPages>>(ranges.size());
+		for (var range : ranges)
+		{
+			var seen = new AtomicInteger();
+			UnaryOperator<DocumentPages.Page> observe = page -> {
+				var count = seen.addAndGet(page.documents().size());
+				if (page.next() == null)
+					partitioner.observe(range, count, today);
+				return page;
+			};
+			parts.add(CompletableFuture.supplyAsync(() -> {
+				try
+				{
+					return searchDocuments(
+						fhirId,
+						range.from().toString(),
+						range.to() == null ? null : range.to().toString(),
+						null,
+						true,
+						observe
+					);
+				}
+				catch (RuntimeException e)
+				{
+					throw e;
+				}
+				catch (Exception e)
+				{
+					throw new RuntimeException(e);
+				}
+			}, fetchExecutor));
+		}
+		// a note whose period crosses a range boundary is found by both ranges; the merge reads it once
+		return DocumentPages.merge(parts);
+	}
+
+	/**
+	 * The period ranges a search from {@code after} is split into, at most one when it is searched in one go. Ranges
+	 * are merged by date, so a search is only split when the server says it supports {@code _sort}.
+	 */
+	private List<PeriodPartitioner.Range> partitions(String after)
+	{
+		var from = PeriodPartitioner.parse(after);
+		if (partitioner == null || fetchExecutor == null || from == null || planner == null || !planner.sort)
+			return List.of();
+		return partitioner.split(from, LocalDate.now(ZoneOffset.UTC));
+	}
+
+	private DocumentPages searchDocuments(
+		String fhirId, String after, String before, Long since, boolean sorted, UnaryOperator<DocumentPages.Page> observe
+	) throws Exception
+	{
+		if (bundleParser != null)
+		{
+			var url = planner != null
+					  ? planner.documentSearch(fhirId, after)
+					  : "DocumentReference?patient=" + URLEncoder.encode(fhirId, StandardCharsets.UTF_8)
+						+ "&period=ge" + URLEncoder.encode(after, StandardCharsets.UTF_8);
+			if (before != null)
+				url += "&period=lt" + URLEncoder.encode(before, StandardCharsets.UTF_8);
+			if (since != null)
+				url += "&_lastUpdated=ge" + URLEncoder.encode(Instant.ofEpochMilli(since).toString(), StandardCharsets.UTF_8);
+			if (sorted)
+				url += "&_sort=date";
+			DocumentPages.PageLoader loader = timed(next -> observe.apply(rawClient.get(next, bundleParser::parseBundle)));
+			return new DocumentPages(loader, fetchExecutor, loader.load(url));
+		}
+		var query = client
+							.search()
+							.forResource(DocumentReference.class)
+							//.lastUpdated(new DateRangeParam(new DateParam("ge" + after)))
+							.where(DocumentReference.PATIENT.hasId(fhirId))
+					.where(DocumentReference.PERIOD.afterOrEquals().day(after))
+					.returnBundle(Bundle.class);
+		if (before != null)
+			query = query.and(DocumentReference.PERIOD.before().day(before));
+		if (since != null)
+			query = query.lastUpdated(new DateRangeParam(new DateParam("ge" + Instant.ofEpochMilli(since))));
+		if (sorted)
+			query = query.sort().ascending(DocumentReference.DATE);
+		if (planner != null && planner.count)
+			query = query.count(planner.pageSize);
+		var docQuery = query;
+		var docBundle = upstream(metrics.search, docQuery::execute);
+		var hapi = DocumentPages.hapiLoader(client);
+		return new DocumentPages(
+			timed(next -> observe.apply(hapi.load(next))),
+			fetchExecutor,
+			observe.apply(DocumentPages.page(docBundle))
+		);
+	}
+
+	private DocumentPages.PageLoader timed(DocumentPages.PageLoader loader)
+	{
+		return url -> upstream(metrics.search, () -> loader.load(url));
+	}
+
+	/**
+	 * Runs one upstream call under the limiter, if there is one, recording its latency against {@code stage}.
+	 */
+	private <T> T upstream(Histogram stage, AdaptiveLimiter.Upstream<T> call) throws Exception
+	{
+		var start = System.nanoTime();
+		try
+		{
+			return limiter == null ? call.call() : limiter.call(call);
+		}
+		catch (Exception e)
+		{
+			metrics.upstreamErrors.increment();
+			throw e;
+		}
+		finally
+		{
+			if (stage != null)
+				stage.recordSince(start);
+		}
+	}
+
+	public PatientCache.PatientInfo resolvePatient(String fhirId, String mrn) throws Exception
+	{
+		var start = System.nanoTime();
+		try
+		{
+			return lookupPatient(fhirId, mrn);
+		}
+		finally
+		{
+			metrics.patient.recordSince(start);
+		}
+	}
+
+	private PatientCache.PatientInfo lookupPatient(String fhirId, String mrn) throws Exception
+	{
+		var key = patientKey(fhirId, mrn);
+		var cached = patientCache == null ? null : patientCache.get(key);
+		if (cached != null)
+		{
+			if (cached.patient() == null)
+				throw new IllegalArgumentException("Patient does not exist");
+			return cached.patient();
+		}
 		var query =  client
 				.search()
 				.forResource(Patient.class);
@@ -60,16 +752,27 @@ public class FhirHandler extends AbstractHandler
 		else if(mrn != null)
 			//query = query.where(new StringClientParam("identifier").matches().value("MRN|" + mrn));
 			query = query.where(new EpicMRNStringCriterion<StringClientParam>("identifier", "MRN|" + mrn));
-		var resource = query
-				.returnBundle(Bundle.class)
-				.execute()
-				.getEntryFirstRep()
-				.getResource();
-		if(!resource.getResourceType().name().equals("Patient"))
+		var search = query.returnBundle(Bundle.class);
+		var resource = upstream(null, search::execute).getEntryFirstRep().getResource();
+		if(resource == null || !resource.getResourceType().name().equals("Patient"))
+		{
+			if (patientCache != null)
+				patientCache.put(key, null);
 			throw new IllegalArgumentException("Patient does not exist");
-		var
-			patient =
-			(Patient) resource;
+		}
+		var info = patientInfo((Patient) resource, fhirId);
+		if (patientCache != null)
+			patientCache.put(key, info);
+		return info;
+	}
+
+	private static String patientKey(String fhirId, String mrn)
+	{
+		return fhirId != null ? "id:" + fhirId : "mrn:" + mrn;
+	}
+
+	private static PatientCache.PatientInfo patientInfo(Patient patient, String fhirId)
+	{
 		if(fhirId == null)
 		{
 			fhirId = patient.getIdentifier()
@@ -79,50 +782,173 @@ public class FhirHandler extends AbstractHandler
 											   && Optional.ofNullable(id.getType().getText()).orElse("").equals("FHIR")
 					)
 					.map(Identifier::getValue)
-					.findFirst().orElse(null);
+					.findFirst().orElse(patient.getIdElement().getIdPart());
 		}
-		var docBundle = client
-							.search()
-							.forResource(DocumentReference.class)
-							//.lastUpdated(new DateRangeParam(new DateParam("ge" + after)))
-							.where(DocumentReference.PATIENT.hasId(fhirId))
-					.where(DocumentReference.PERIOD.afterOrEquals().day(after))
-					.returnBundle(Bundle.class)
-					.execute();
-		var docList = docBundle.getEntry().stream()
-					.filter(entry -> entry.getResource() instanceof DocumentReference)
-					.map(entry -> (DocumentReference) entry.getResource())
-					.collect(Collectors.toList());
-		response.setStatus(HttpServletResponse.SC_OK);
-		try (
-			var w = response.getWriter();
-			var g = jsonFactory.createGenerator(w)
-		)
+		return new PatientCache.PatientInfo(
+			fhirId,
+			patient.getName().stream().map(HumanName::getText).collect(Collectors.toList())
+		);
+	}
+
+	public static void writeNoteMetadata(JsonGenerator g, NoteDocument doc) throws IOException
+	{
+		g.writeStringField("id", doc.id());
+		if (doc.timestamp() != null)
+			g.writeNumberField("timestamp", doc.timestamp());
+		else
+			g.writeNullField("timestamp");
+		g.writeStringField("noteType", doc.noteType());
+		g.writeStringField("contentType", doc.contentType());
+		var size = doc.contentSize();
+		if (size != null)
+			g.writeNumberField("size", size);
+		else
+			g.writeNullField("size");
+	}
+
+	public static void writeNoteFields(JsonGenerator g, NoteDocument doc, Content content) throws IOException
+	{
+		if (doc.timestamp() != null)
+			g.writeNumberField("timestamp", doc.timestamp());
+		else
+			g.writeNullField("timestamp");
+		g.writeStringField("noteType", doc.noteType());
+		if (content == MISSING)
 		{
+			g.writeStringField("contentType", doc.contentType());
+			g.writeBooleanField("missing", true);
+			return;
+		}
+		g.writeStringField("contentType", content.type);
+		g.writeFieldName("text");
+		g.writeString(content.reader(), -1);
+	}
+
+	public static class JsonNoteSink implements NoteSink
+	{
+		private final GeneratorFactory factory;
+		private JsonGenerator g;
+		/**
+		 * Writes each note's id and version, which an incremental consumer needs to apply a delta.
+		 */
+		public boolean ids;
+
+		public JsonNoteSink(GeneratorFactory factory)
+		{
+			this.factory = factory;
+		}
+
+		@Override
+		public void patient(String fhirId, List<String> names) throws Exception
+		{
+			g = factory.create();
 			g.writeStartObject();
 			g.writeFieldName("names");
 			g.writeStartArray();
-			for (HumanName humanName : patient.getName())
+			for (var name : names)
 			{
-				g.writeString(humanName.getText());
+				g.writeString(name);
 			}
 			g.writeEndArray();
 			g.writeFieldName("notes");
 			g.writeStartArray();
-			for (var doc : docList)
-			{
-				var content = getDocumentContent(doc);
-				if(content != null) {
-					g.writeStartObject();
-					g.writeNumberField("timestamp", doc.getDate().getTime());
-					g.writeStringField("noteType", doc.getType().getText());
-					g.writeStringField("contentType", content.type);
-					g.writeStringField("text", content.text);
-					g.writeEndObject();
-				}
+		}
+
+		@Override
+		public void note(NoteDocument doc, Content content) throws Exception
+		{
+			g.writeStartObject();
+			if (content == null)
+			{
+				writeNoteMetadata(g, doc);
+				g.writeEndObject();
+				return;
 			}
+			if (ids)
+			{
+				g.writeStringField("id", doc.id());
+				g.writeStringField("version", doc.version());
+			}
+			writeNoteFields(g, doc, content);
+			g.writeEndObject();
+		}
+
+		@Override
+		public void deleted(String id) throws Exception
+		{
+			g.writeStartObject();
+			g.writeStringField("id", id);
+			g.writeBooleanField("deleted", true);
+			g.writeEndObject();
+		}
+
+		/**
+		 * Ends the response and flushes it to the client, leaving the writer open.
+		 */
+		public void finish() throws IOException
+		{
 			g.writeEndArray();
 			g.writeEndObject();
+			g.flush();
+		}
+
+		public void close() throws IOException
+		{
+			if (g != null)
+			{
+				g.close();
+				g = null;
+			}
+		}
+	}
+
+	/**
+	 * Counts what reaches the response stream, so the bytes metric sees encoded bytes as it does for notes.
+	 */
+	static class CountingOutputStream extends FilterOutputStream
+	{
+		private final Metrics metrics;
+
+		CountingOutputStream(OutputStream out, Metrics metrics)
+		{
+			super(out);
+			this.metrics = metrics;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			metrics.bytes.increment();
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+			metrics.bytes.add(len);
+		}
+	}
+
+	public static record Plan(PatientCache.PatientInfo patient, DocumentPages documents) {}
+
+	@FunctionalInterface
+	public interface GeneratorFactory
+	{
+		JsonGenerator create() throws IOException;
+	}
+
+	public interface NoteSink
+	{
+		void patient(String fhirId, List<String> names) throws Exception;
+
+		void note(NoteDocument doc, Content content) throws Exception;
+
+		/**
+		 * A note the client has from an earlier incremental extraction that no longer stands.
+		 */
+		default void deleted(String id) throws Exception
+		{
 		}
 	}
 }
@@ -0,0 +1,181 @@
+package org.emerse.fhir;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds a call by a deadline and, optionally, hedges it: when the first attempt hasn't answered by the given
+ * percentile of recent latencies, a second identical attempt is started and whichever succeeds first is used. The
+ * attempts still running once the call returns, the losers and those past the deadline, are cancelled; each attempt
+ * holds one of {@link #permits} for as long as its read actually runs, so abandoned reads still count against it.
+ */
+public class Hedger
+{
+	public long deadline;
+	public boolean hedge;
+	public double percentile = 95;
+	public long minDelay = 50;
+	// below this many samples the percentile says little, so minDelay is used
+	public long minSamples = 100;
+	public Semaphore permits;
+
+	private final ExecutorService executor;
+	private final Histogram latency;
+	private final LongAdder hedges = new LongAdder();
+	private final LongAdder hedgeWins = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+
+	public Hedger(ExecutorService executor, Histogram latency)
+	{
+		this.executor = executor;
+		this.latency = latency;
+	}
+
+	/**
+	 * Runs {@code call}, throwing {@link TimeoutException} once the deadline passes without a result.
+	 */
+	public <T> T call(AdaptiveLimiter.Upstream<T> call) throws Exception
+	{
+		var result = new CompletableFuture<T>();
+		var attempts = new AtomicInteger(1);
+		var won = new AtomicBoolean();
+		var running = new ArrayList<Future<?>>(2);
+		attempt(call, result, attempts, won, running, false);
+		if (hedge)
+		{
+			CompletableFuture.delayedExecutor(delayMillis(), TimeUnit.MILLISECONDS, executor).execute(() -> {
+				attempts.incrementAndGet();
+				attempt(call, result, attempts, won, running, true);
+			});
+		}
+		try
+		{
+			return deadline > 0 ? result.get(deadline, TimeUnit.MILLISECONDS) : result.get();
+		}
+		catch (TimeoutException e)
+		{
+			timeouts.increment();
+			throw e;
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof Exception ex)
+			{
+				throw ex;
+			}
+			throw e;
+		}
+		finally
+		{
+			synchronized (running)
+			{
+				// done before the hedge starts, so a late hedge finds it and stays away
+				result.cancel(false);
+				for (var attempt : running)
+				{
+					attempt.cancel(true);
+				}
+			}
+		}
+	}
+
+	public long delayMillis()
+	{
+		if (latency.count() < minSamples)
+		{
+			return minDelay;
+		}
+		return Math.max(minDelay, latency.percentile(percentile) / 1000);
+	}
+
+	public long hedges()
+	{
+		return hedges.sum();
+	}
+
+	public long hedgeWins()
+	{
+		return hedgeWins.sum();
+	}
+
+	public long timeouts()
+	{
+		return timeouts.sum();
+	}
+
+	/**
+	 * Starts an attempt unless the call is already over.
+	 */
+	private <T> void attempt(
+		AdaptiveLimiter.Upstream<T> call, CompletableFuture<T> result, AtomicInteger attempts, AtomicBoolean won,
+		List<Future<?>> running, boolean hedged
+	)
+	{
+		synchronized (running)
+		{
+			if (result.isDone())
+			{
+				return;
+			}
+			// counted before it runs, so the caller never sees the hedge's result without it
+			if (hedged)
+			{
+				hedges.increment();
+			}
+			running.add(executor.submit(() -> run(call, result, attempts, won, hedged)));
+		}
+	}
+
+	private <T> void run(
+		AdaptiveLimiter.Upstream<T> call, CompletableFuture<T> result, AtomicInteger attempts, AtomicBoolean won,
+		boolean hedged
+	)
+	{
+		try
+		{
+			T value;
+			if (permits != null)
+			{
+				permits.acquire();
+			}
+			try
+			{
+				value = call.call();
+			}
+			finally
+			{
+				if (permits != null)
+				{
+					permits.release();
+				}
+			}
+			// count the win before completing, so the caller never sees the result without it
+			if (won.compareAndSet(false, true))
+			{
+				if (hedged)
+				{
+					hedgeWins.increment();
+				}
+				result.complete(value);
+			}
+		}
+		catch (Exception e)
+		{
+			// only fail once every attempt has; a hedge may still succeed
+			if (attempts.decrementAndGet() == 0)
+			{
+				result.completeExceptionally(e);
+			}
+		}
+	}
+}
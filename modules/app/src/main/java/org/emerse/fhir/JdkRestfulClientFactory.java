@@ -0,0 +1,409 @@
+package org.emerse.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.client.api.Header;
+import ca.uhn.fhir.rest.client.api.IHttpClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.api.UrlSourceEnum;
+import ca.uhn.fhir.rest.client.apache.BaseHttpClient;
+import ca.uhn.fhir.rest.client.impl.BaseHttpResponse;
+import ca.uhn.fhir.rest.client.impl.RestfulClientFactory;
+import ca.uhn.fhir.util.StopWatch;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A HAPI client factory on top of {@code java.net.http.HttpClient}, which negotiates HTTP/2 (ALPN over TLS) when the
+ * server offers it and multiplexes requests over a shared connection.
+ */
+public class JdkRestfulClientFactory extends RestfulClientFactory
+{
+	private final ClientPool settings;
+	private final Semaphore permits;
+	private HttpClient httpClient;
+	private ProxySelector proxy;
+
+	public JdkRestfulClientFactory(FhirContext fhir, ClientPool settings)
+	{
+		super(fhir);
+		this.settings = settings;
+		this.permits = new Semaphore(settings.maxConnectionsPerRoute, true);
+		setConnectTimeout(settings.connectTimeout);
+		setSocketTimeout(settings.socketTimeout);
+		setConnectionRequestTimeout(settings.connectionRequestTimeout);
+		setPoolMaxTotal(settings.maxConnections);
+		setPoolMaxPerRoute(settings.maxConnectionsPerRoute);
+	}
+
+	/**
+	 * The request slots in use, free and waited for. HTTP/2 multiplexes requests over a few connections, so these
+	 * count requests in flight rather than connections.
+	 */
+	public ClientPool.Stats requestSlots()
+	{
+		var leased = settings.maxConnectionsPerRoute - permits.availablePermits();
+		return new ClientPool.Stats(
+			leased,
+			permits.availablePermits(),
+			permits.getQueueLength(),
+			settings.maxConnectionsPerRoute
+		);
+	}
+
+	private synchronized HttpClient nativeClient()
+	{
+		if (httpClient == null)
+		{
+			var builder = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.connectTimeout(Duration.ofMillis(settings.connectTimeout))
+				.followRedirects(HttpClient.Redirect.NORMAL);
+			if (proxy != null)
+			{
+				builder.proxy(proxy);
+			}
+			httpClient = builder.build();
+		}
+		return httpClient;
+	}
+
+	@Override
+	protected IHttpClient getHttpClient(String serverBase)
+	{
+		return getHttpClient(new StringBuilder(serverBase), null, null, RequestTypeEnum.GET, new ArrayList<>());
+	}
+
+	@Override
+	public IHttpClient getHttpClient(
+		StringBuilder url,
+		Map<String, List<String>> ifNoneExistParams,
+		String ifNoneExistString,
+		RequestTypeEnum requestType,
+		List<Header> headers
+	)
+	{
+		return new JdkHttpClient(url, ifNoneExistParams, ifNoneExistString, requestType, headers);
+	}
+
+	@Override
+	protected synchronized void resetHttpClient()
+	{
+		httpClient = null;
+	}
+
+	@Override
+	public synchronized void setHttpClient(Object client)
+	{
+		httpClient = (HttpClient) client;
+	}
+
+	@Override
+	public synchronized void setProxy(String host, Integer port)
+	{
+		proxy = host == null ? null : ProxySelector.of(new InetSocketAddress(host, port == null ? 80 : port));
+		httpClient = null;
+	}
+
+	private class JdkHttpClient extends BaseHttpClient
+	{
+		JdkHttpClient(
+			StringBuilder url,
+			Map<String, List<String>> ifNoneExistParams,
+			String ifNoneExistString,
+			RequestTypeEnum requestType,
+			List<Header> headers
+		)
+		{
+			super(url, ifNoneExistParams, ifNoneExistString, requestType, headers);
+		}
+
+		@Override
+		protected IHttpRequest createHttpRequest()
+		{
+			return new JdkHttpRequest(myUrl.toString(), verb(), null, null);
+		}
+
+		@Override
+		protected IHttpRequest createHttpRequest(byte[] content)
+		{
+			return new JdkHttpRequest(myUrl.toString(), verb(), content, null);
+		}
+
+		@Override
+		protected IHttpRequest createHttpRequest(Map<String, List<String>> params)
+		{
+			var form = params.entrySet().stream()
+				.flatMap(e -> e.getValue().stream().map(v ->
+					URLEncoder.encode(e.getKey(), StandardCharsets.UTF_8) + "="
+					+ URLEncoder.encode(v, StandardCharsets.UTF_8)))
+				.collect(Collectors.joining("&"));
+			return new JdkHttpRequest(
+				myUrl.toString(),
+				verb(),
+				form.getBytes(StandardCharsets.UTF_8),
+				"application/x-www-form-urlencoded"
+			);
+		}
+
+		@Override
+		protected IHttpRequest createHttpRequest(String content)
+		{
+			return new JdkHttpRequest(myUrl.toString(), verb(), content.getBytes(StandardCharsets.UTF_8), null);
+		}
+
+		private String verb()
+		{
+			return myRequestType == null ? "GET" : myRequestType.name();
+		}
+	}
+
+	private class JdkHttpRequest implements IHttpRequest
+	{
+		private final String verb;
+		private final byte[] body;
+		private final Map<String, List<String>> headers = new LinkedHashMap<>();
+		private String uri;
+		private UrlSourceEnum urlSource;
+
+		JdkHttpRequest(String uri, String verb, byte[] body, String contentType)
+		{
+			this.uri = uri;
+			this.verb = verb;
+			this.body = body;
+			if (contentType != null)
+			{
+				addHeader("Content-Type", contentType);
+			}
+		}
+
+		@Override
+		public void addHeader(String name, String value)
+		{
+			headers.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+		}
+
+		@Override
+		public IHttpResponse execute() throws IOException
+		{
+			var builder = HttpRequest.newBuilder(URI.create(uri))
+				.timeout(Duration.ofMillis(settings.socketTimeout))
+				.method(
+					verb,
+					body == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofByteArray(body)
+				);
+			for (var header : headers.entrySet())
+			{
+				if (!settings.gzip && header.getKey().equalsIgnoreCase("Accept-Encoding"))
+				{
+					continue;
+				}
+				for (var value : header.getValue())
+				{
+					builder.header(header.getKey(), value);
+				}
+			}
+			var stopWatch = new StopWatch();
+			try
+			{
+				permits.acquire();
+				try
+				{
+					// the permit is held until the body is closed, like a leased pooled connection
+					return new JdkHttpResponse(
+						nativeClient().send(builder.build(), HttpResponse.BodyHandlers.ofInputStream()),
+						stopWatch,
+						permits
+					);
+				}
+				catch (IOException | InterruptedException | RuntimeException e)
+				{
+					permits.release();
+					throw e;
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(e.getMessage());
+			}
+		}
+
+		@Override
+		public Map<String, List<String>> getAllHeaders()
+		{
+			return headers;
+		}
+
+		@Override
+		public String getRequestBodyFromStream()
+		{
+			return body == null ? null : new String(body, StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public String getUri()
+		{
+			return uri;
+		}
+
+		@Override
+		public void setUri(String uri)
+		{
+			this.uri = uri;
+		}
+
+		@Override
+		public String getHttpVerbName()
+		{
+			return verb;
+		}
+
+		@Override
+		public void removeHeaders(String name)
+		{
+			headers.keySet().removeIf(k -> k.equalsIgnoreCase(name));
+		}
+
+		@Override
+		public UrlSourceEnum getUrlSource()
+		{
+			return urlSource;
+		}
+
+		@Override
+		public void setUrlSource(UrlSourceEnum urlSource)
+		{
+			this.urlSource = urlSource;
+		}
+	}
+
+	private static class JdkHttpResponse extends BaseHttpResponse
+	{
+		private final HttpResponse<InputStream> response;
+		private final Semaphore permits;
+		private final AtomicBoolean released = new AtomicBoolean();
+		private InputStream entity;
+		private byte[] buffered;
+
+		JdkHttpResponse(HttpResponse<InputStream> response, StopWatch stopWatch, Semaphore permits) throws IOException
+		{
+			super(stopWatch);
+			this.response = response;
+			this.permits = permits;
+			var encoding = response.headers().firstValue("Content-Encoding").orElse("");
+			entity = encoding.equalsIgnoreCase("gzip")
+					 ? new GZIPInputStream(response.body())
+					 : response.body();
+		}
+
+		@Override
+		public void bufferEntity() throws IOException
+		{
+			if (buffered == null)
+			{
+				try (var in = entity)
+				{
+					buffered = in.readAllBytes();
+				}
+			}
+		}
+
+		@Override
+		public void close()
+		{
+			try
+			{
+				entity.close();
+			}
+			catch (IOException e)
+			{
+				// nothing left to release
+			}
+			finally
+			{
+				if (released.compareAndSet(false, true))
+				{
+					permits.release();
+				}
+			}
+		}
+
+		@Override
+		public Reader createReader() throws IOException
+		{
+			return new InputStreamReader(readEntity(), charset());
+		}
+
+		@Override
+		public Map<String, List<String>> getAllHeaders()
+		{
+			return response.headers().map();
+		}
+
+		@Override
+		public List<String> getHeaders(String name)
+		{
+			return response.headers().allValues(name);
+		}
+
+		@Override
+		public String getMimeType()
+		{
+			return response.headers().firstValue("Content-Type").map(t -> t.split(";")[0].trim()).orElse(null);
+		}
+
+		@Override
+		public Object getResponse()
+		{
+			return response;
+		}
+
+		@Override
+		public int getStatus()
+		{
+			return response.statusCode();
+		}
+
+		@Override
+		public String getStatusInfo()
+		{
+			return "HTTP " + response.statusCode();
+		}
+
+		@Override
+		public InputStream readEntity()
+		{
+			return buffered != null ? new ByteArrayInputStream(buffered) : entity;
+		}
+
+		private Charset charset()
+		{
+			return FhirHandler.Content.charsetOf(response.headers().firstValue("Content-Type").orElse(null));
+		}
+	}
+}
@@ -0,0 +1,285 @@
+package org.emerse.fhir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The append-only progress log of an export job, one tab separated record per line, forced to disk as each patient or
+ * downloaded file is finished so a restarted server resumes the job where it stopped. Every finishing record carries
+ * the length of job output it covers; on resume the output is cut back to the last one, dropping lines written after
+ * it. A torn last record from a crash is dropped on open.
+ */
+public class JobJournal implements AutoCloseable
+{
+	private final Path file;
+	private FileChannel channel;
+
+	private String after;
+	private ExportJobs.Format format = ExportJobs.Format.NDJSON;
+	private long created;
+	private String mode;
+	private final Set<String> done = new HashSet<>();
+	private int failed;
+	private int retries;
+	private long offset;
+	private long notes;
+	private String statusUrl;
+	private int filesDone;
+	private String ended;
+
+	public JobJournal(Path file) throws IOException
+	{
+		this.file = file;
+		if (Files.exists(file))
+		{
+			load();
+		}
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	public synchronized void start(String after, ExportJobs.Format format, long created) throws IOException
+	{
+		this.after = after;
+		this.format = format;
+		this.created = created;
+		append("job", after == null ? "" : after, String.valueOf(created), format.name());
+	}
+
+	public synchronized void mode(String mode) throws IOException
+	{
+		this.mode = mode;
+		append("mode", mode);
+	}
+
+	/**
+	 * A patient is finished, its lines ending the output at {@code offset}; {@code ok} is false when what it wrote is
+	 * an error line after its last attempt.
+	 */
+	public synchronized void done(String mrn, long offset, long notes, boolean ok) throws IOException
+	{
+		append("done", mrn, String.valueOf(offset), String.valueOf(notes), ok ? "ok" : "error");
+		apply(mrn, offset, notes, ok);
+	}
+
+	public synchronized void retry(String mrn, int attempt, String message) throws IOException
+	{
+		retries++;
+		append("retry", mrn, String.valueOf(attempt), message == null ? "" : message.replaceAll("[\t\r\n]", " "));
+	}
+
+	public synchronized void bulk(String statusUrl) throws IOException
+	{
+		this.statusUrl = statusUrl;
+		append("bulk", statusUrl);
+	}
+
+	/**
+	 * The next downloaded file of a bulk export is finished, its lines ending the output at {@code offset};
+	 * {@code failed} of its notes got an error line after their last attempt.
+	 */
+	public synchronized void file(long offset, long notes, int failed) throws IOException
+	{
+		append("file", String.valueOf(offset), String.valueOf(notes), String.valueOf(failed));
+		filesDone++;
+		this.offset = offset;
+		this.notes += notes;
+		this.failed += failed;
+	}
+
+	/**
+	 * Forgets a bulk export the server no longer has, so it is started again with empty output.
+	 */
+	public synchronized void reset() throws IOException
+	{
+		append("reset");
+		statusUrl = null;
+		filesDone = 0;
+		offset = 0;
+		notes = 0;
+		failed = 0;
+	}
+
+	/**
+	 * Reopens an ended job, as when a failed job is run again.
+	 */
+	public synchronized void resume() throws IOException
+	{
+		ended = null;
+		append("resume");
+	}
+
+	public synchronized void end(ExportJobs.State state) throws IOException
+	{
+		ended = state.name();
+		append("end", ended);
+	}
+
+	public String after()
+	{
+		return after;
+	}
+
+	public ExportJobs.Format format()
+	{
+		return format;
+	}
+
+	public long created()
+	{
+		return created;
+	}
+
+	public String mode()
+	{
+		return mode;
+	}
+
+	public synchronized Set<String> done()
+	{
+		return Set.copyOf(done);
+	}
+
+	public synchronized int failed()
+	{
+		return failed;
+	}
+
+	public synchronized int retries()
+	{
+		return retries;
+	}
+
+	/**
+	 * The length of job output the journal vouches for.
+	 */
+	public synchronized long offset()
+	{
+		return offset;
+	}
+
+	public synchronized long notes()
+	{
+		return notes;
+	}
+
+	public synchronized String statusUrl()
+	{
+		return statusUrl;
+	}
+
+	public synchronized int filesDone()
+	{
+		return filesDone;
+	}
+
+	/**
+	 * How the job ended, or null while it is unfinished.
+	 */
+	public synchronized ExportJobs.State ended()
+	{
+		return ended == null ? null : ExportJobs.State.valueOf(ended);
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		channel.close();
+	}
+
+	private void apply(String mrn, long offset, long notes, boolean ok)
+	{
+		done.add(mrn);
+		this.offset = offset;
+		this.notes += notes;
+		if (!ok)
+			failed++;
+	}
+
+	private void append(String... fields) throws IOException
+	{
+		var buffer = ByteBuffer.wrap((String.join("\t", fields) + "\n").getBytes(StandardCharsets.UTF_8));
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+		channel.force(false);
+	}
+
+	private void load() throws IOException
+	{
+		var valid = 0L;
+		var size = Files.size(file);
+		try (var reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+		{
+			var position = 0L;
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				position += line.getBytes(StandardCharsets.UTF_8).length + 1;
+				if (position > size || !replay(line.split("\t", -1)))
+				{
+					break;
+				}
+				valid = position;
+			}
+		}
+		if (valid < size)
+		{
+			try (var ch = FileChannel.open(file, StandardOpenOption.WRITE))
+			{
+				ch.truncate(valid);
+			}
+		}
+	}
+
+	private boolean replay(String[] fields)
+	{
+		try
+		{
+			switch (fields[0])
+			{
+				case "job" -> {
+					after = fields[1].isEmpty() ? null : fields[1];
+					created = Long.parseLong(fields[2]);
+					if (fields.length > 3)
+						format = ExportJobs.Format.valueOf(fields[3]);
+				}
+				case "mode" -> mode = fields[1];
+				case "done" -> apply(fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4].equals("ok"));
+				case "retry" -> retries++;
+				case "bulk" -> statusUrl = fields[1];
+				case "file" -> {
+					filesDone++;
+					offset = Long.parseLong(fields[1]);
+					notes += Long.parseLong(fields[2]);
+					if (fields.length > 3)
+						failed += Integer.parseInt(fields[3]);
+				}
+				case "reset" -> {
+					statusUrl = null;
+					filesDone = 0;
+					offset = 0;
+					notes = 0;
+					failed = 0;
+				}
+				case "end" -> ended = ExportJobs.State.valueOf(fields[1]).name();
+				case "resume" -> ended = null;
+				default -> {
+					return false;
+				}
+			}
+			return true;
+		}
+		catch (RuntimeException e)
+		{
+			return false;
+		}
+	}
+}
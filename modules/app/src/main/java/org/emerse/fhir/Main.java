@@ -23,6 +23,11 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.stream.Collector;
 
@@ -35,17 +40,57 @@ public class Main
 	private static DefaultHandler fallbackHandler = new DefaultHandler();
 	private static IClientInterceptor basicAuth;
 	private static AdditionalRequestHeadersInterceptor headers;
+	private static int maxFetches = 32;
+	private static int fetchWindow = 16;
+	private static int batchParallelism = 8;
+	private static int patientCacheSize = 10000;
+	private static long patientCacheTtl = 3600;
+	private static long patientCacheNegativeTtl = 300;
+	private static String noteCacheDir;
+	private static long noteCacheSize = 1024;
+	private static boolean rawBundles;
+	private static boolean virtualThreads;
+	private static boolean async;
+	private static int asyncThreads = 64;
+	private static long requestTimeout = 120;
+	private static ClientPool clientPool = new ClientPool();
+	private static long poolStatsInterval;
+	private static boolean coalesce;
+	private static int upstreamLimit;
+	private static int upstreamLimitMax = 64;
+	private static int upstreamRetries = 3;
+	private static long binaryDeadline;
+	private static boolean hedge;
+	private static long hedgeMinDelay = 50;
+	private static String queryPlan = "auto";
+	private static int pageSize = 100;
+	private static int searchPartitions;
+	private static int partitionNotes = 500;
+	private static String watermarks;
+	private static long noteMaxAge = 3600;
+	private static String bulkExport = "auto";
+	private static String exportDir = Path.of(System.getProperty("java.io.tmpdir"), "fhir-export").toString();
+	private static int exportJobs = 2;
+	private static int exportAttempts = 3;
+	private static long exportRetryDelay = 1000;
+	private static String searchIndex;
+	private static int searchIndexFlush = 1000;
+	private static String text = "raw";
+	private static int normalizeThreads = Runtime.getRuntime().availableProcessors();
 
 	public static void main(String[] args) throws Exception
 	{
 		parseArguments(args);
+		if (clientPool.http2)
+			clientPool.setJdkProperties();
 
 		jsonFactory = new JsonFactory();
 
-		var server = new Server();
+		var server = virtualThreads ? new Server(VirtualThreads.newThreadPool()) : new Server();
 		var handlerMap = new HandlerMap();
 
 		var fhir = FhirContext.forR4();
+		clientPool.configure(fhir);
 		var fhirClient = fhir.getRestfulClientFactory().newGenericClient(fhirBaseUrl);
 		//https://hapifhir.io/hapi-fhir/docs/interceptors/built_in_client_interceptors.html
 		if(basicAuth != null)
@@ -53,11 +98,182 @@ public class Main
 		if(headers != null)
 			fhirClient.registerInterceptor(headers);
 
+		AdaptiveLimiter limiter = null;
+		if (upstreamLimit > 0)
+		{
+			limiter = new AdaptiveLimiter(upstreamLimit);
+			limiter.maxLimit = upstreamLimitMax;
+			limiter.maxRetries = upstreamRetries;
+			fhirClient.registerInterceptor(limiter.interceptor());
+		}
+
+		var metrics = new Metrics();
 		var fhirHandler = new FhirHandler();
+		fhirHandler.limiter = limiter;
+		fhirHandler.metrics = metrics;
 		fhirHandler.jsonFactory = jsonFactory;
 		fhirHandler.client = fhirClient;
+		fhirHandler.fetchExecutor = virtualThreads
+			? VirtualThreads.newExecutor()
+			: newDaemonPool("fhir-fetch-", maxFetches);
+		fhirHandler.fetchPermits = new Semaphore(maxFetches);
+		fhirHandler.fetchWindow = fetchWindow;
+		fhirHandler.plainText = text.equals("plain");
+		// markup is stripped on a pool of its own, so it neither waits behind nor holds up the fetches
+		fhirHandler.normalizer.executor = newDaemonPool("fhir-normalize-", normalizeThreads);
+		fhirHandler.normalizer.window = fetchWindow;
+		fhirHandler.normalizer.metrics = metrics;
+		if (patientCacheSize > 0)
+			fhirHandler.patientCache = new PatientCache(
+				patientCacheSize,
+				patientCacheTtl * 1000,
+				patientCacheNegativeTtl * 1000
+			);
+
+		if (rawBundles)
+		{
+			fhirHandler.rawClient = new RawFhirClient(fhirClient);
+			fhirHandler.bundleParser = new BundleParser(jsonFactory);
+		}
+		if (coalesce)
+			fhirHandler.singleFlight = new SingleFlight();
+		if (queryPlan.equals("auto"))
+		{
+			try
+			{
+				fhirHandler.planner = QueryPlanner.discover(fhirClient);
+				fhirHandler.planner.pageSize = pageSize;
+				System.out.println("Query planning: " + fhirHandler.planner);
+			}
+			catch (Exception e)
+			{
+				System.err.println("Could not read the server's CapabilityStatement, using basic queries: " + e.getMessage());
+			}
+		}
+		if (searchPartitions > 1)
+		{
+			if (fhirHandler.planner == null || !fhirHandler.planner.sort)
+				System.err.println("The server doesn't advertise _sort, so each patient's notes are searched in one go");
+			fhirHandler.partitioner = new PeriodPartitioner();
+			fhirHandler.partitioner.maxPartitions = searchPartitions;
+			fhirHandler.partitioner.targetNotes = partitionNotes;
+		}
+		if (binaryDeadline > 0 || hedge)
+		{
+			fhirHandler.hedger = new Hedger(
+				virtualThreads ? VirtualThreads.newExecutor() : newDaemonPool("fhir-hedge-", maxFetches),
+				metrics.binary
+			);
+			fhirHandler.hedger.permits = fhirHandler.fetchPermits;
+			fhirHandler.hedger.deadline = binaryDeadline;
+			fhirHandler.hedger.hedge = hedge;
+			fhirHandler.hedger.minDelay = hedgeMinDelay;
+		}
+		if (watermarks != null)
+			fhirHandler.watermarks = new WatermarkStore(Path.of(watermarks));
+		if (noteCacheDir != null)
+			fhirHandler.noteCache = new NoteCache(Path.of(noteCacheDir), noteCacheSize << 20, 64 << 20);
+		if (searchIndex != null)
+		{
+			var index = new NoteIndex(Path.of(searchIndex));
+			index.flushNotes = searchIndexFlush;
+			fhirHandler.index = index;
+			// notes still in memory are written out at shutdown, and otherwise within a minute
+			var flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+				var t = new Thread(r, "search-index-flush");
+				t.setDaemon(true);
+				return t;
+			});
+			index.flusher = flusher;
+			flusher.scheduleWithFixedDelay(() -> {
+				try
+				{
+					index.flush();
+				}
+				catch (IOException e)
+				{
+					System.err.println("Could not write the search index: " + e.getMessage());
+				}
+			}, 60, 60, TimeUnit.SECONDS);
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				try
+				{
+					index.close();
+				}
+				catch (IOException e)
+				{
+					System.err.println("Could not write the search index: " + e.getMessage());
+				}
+			}));
+		}
+
+		var batchHandler = new BatchHandler();
+		batchHandler.fhirHandler = fhirHandler;
+		batchHandler.jsonFactory = jsonFactory;
+		batchHandler.executor = virtualThreads
+			? VirtualThreads.newExecutor()
+			: newDaemonPool("fhir-batch-", batchParallelism);
+		batchHandler.parallelism = batchParallelism;
+
+		var jobs = new ExportJobs();
+		jobs.fhirHandler = fhirHandler;
+		jobs.batchHandler = batchHandler;
+		jobs.bundleParser = new BundleParser(jsonFactory);
+		jobs.executor = newDaemonPool("fhir-export-", exportJobs);
+		jobs.dir = Path.of(exportDir);
+		jobs.parallelism = batchParallelism;
+		jobs.retry.maxAttempts = exportAttempts;
+		jobs.retry.baseDelay = exportRetryDelay;
+		var bulkSupported = bulkExport.equals("on");
+		if (bulkExport.equals("auto"))
+		{
+			try
+			{
+				bulkSupported = BulkExport.discover(fhirClient);
+				System.out.println("Bulk Data export: " + (bulkSupported ? "supported" : "not offered, exports run per patient"));
+			}
+			catch (Exception e)
+			{
+				System.err.println("Could not read the server's CapabilityStatement, exports run per patient: " + e.getMessage());
+			}
+		}
+		if (bulkSupported)
+			jobs.bulkExport = new BulkExport(new RawFhirClient(fhirClient), jsonFactory);
+		var resumed = jobs.recover();
+		if (resumed > 0)
+			System.out.println("Resuming " + resumed + " unfinished export jobs");
+		var exportHandler = new ExportHandler();
+		exportHandler.jobs = jobs;
+		exportHandler.jsonFactory = jsonFactory;
+
+		var asyncHandler = new AsyncFhirHandler();
+		asyncHandler.fhirHandler = fhirHandler;
+		asyncHandler.timeoutMillis = requestTimeout * 1000;
+		if (async)
+			asyncHandler.executor = virtualThreads
+				? VirtualThreads.newExecutor()
+				: newDaemonPool("fhir-async-", asyncThreads);
+		var fhirRoute = async ? asyncHandler : fhirHandler;
+
+		var noteHandler = new NoteHandler();
+		noteHandler.fhirHandler = fhirHandler;
+		noteHandler.maxAge = noteMaxAge;
 
-		handlerMap.put("fhir", fhirHandler);
+		var searchHandler = new SearchHandler();
+		searchHandler.index = fhirHandler.index;
+		searchHandler.jsonFactory = jsonFactory;
+
+		var metricsHandler = new MetricsHandler();
+		metricsHandler.metrics = metrics;
+		registerGauges(metrics, fhirHandler);
+		metrics.gauge("emerse_fhir_export_jobs_running", "gauge", "Export jobs not yet finished", jobs::running);
+
+		handlerMap.put("fhir", fhirRoute);
+		handlerMap.put("batch", batchHandler);
+		handlerMap.put("note", noteHandler);
+		handlerMap.put("export", exportHandler);
+		handlerMap.put("search", searchHandler);
+		handlerMap.put("metrics", metricsHandler);
 
 		//server.setHandler(new HandlerList(handlerMap, new DefaultHandler()));
 
@@ -66,7 +282,12 @@ public class Main
 							  protected void doHandle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws Exception {
 								  try {
 									  switch (target) {
-										  case "/fhir" -> fhirHandler.doHandle(target, baseRequest, request, response);
+										  case "/fhir" -> fhirRoute.doHandle(target, baseRequest, request, response);
+										  case "/batch" -> batchHandler.doHandle(target, baseRequest, request, response);
+										  case "/note" -> noteHandler.doHandle(target, baseRequest, request, response);
+										  case "/export" -> exportHandler.doHandle(target, baseRequest, request, response);
+										  case "/search" -> searchHandler.doHandle(target, baseRequest, request, response);
+										  case "/metrics" -> metricsHandler.doHandle(target, baseRequest, request, response);
 										  default -> writeResource(baseRequest, request, response, target);
 									  }
 								  } catch (Exception e) {
@@ -90,6 +311,81 @@ public class Main
 		System.out.println("See page http://localhost:" + port + "/index.html");
 
 		server.start();
+
+		if (poolStatsInterval > 0)
+		{
+			var scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				var t = new Thread(r, "pool-stats");
+				t.setDaemon(true);
+				return t;
+			});
+			scheduler.scheduleAtFixedRate(
+				() -> System.out.println("Upstream pool: " + clientPool.stats()),
+				poolStatsInterval,
+				poolStatsInterval,
+				TimeUnit.SECONDS
+			);
+		}
+	}
+
+	private static void registerGauges(Metrics metrics, FhirHandler fhirHandler)
+	{
+		var patientCache = fhirHandler.patientCache;
+		if (patientCache != null)
+		{
+			metrics.gauge("emerse_fhir_patient_cache_hits_total", "counter", "Patient lookups answered from the cache", patientCache::hits);
+			metrics.gauge("emerse_fhir_patient_cache_misses_total", "counter", "Patient lookups sent upstream", patientCache::misses);
+			metrics.gauge("emerse_fhir_patient_cache_entries", "gauge", "Patients held in the cache", patientCache::size);
+		}
+		var noteCache = fhirHandler.noteCache;
+		if (noteCache != null)
+		{
+			metrics.gauge("emerse_fhir_note_cache_hits_total", "counter", "Note contents read from the cache", noteCache::hits);
+			metrics.gauge("emerse_fhir_note_cache_misses_total", "counter", "Note contents fetched upstream", noteCache::misses);
+			metrics.gauge("emerse_fhir_note_cache_bytes", "gauge", "Size of the note cache on disk", noteCache::sizeBytes);
+		}
+		var limiter = fhirHandler.limiter;
+		if (limiter != null)
+		{
+			metrics.gauge("emerse_fhir_upstream_limit", "gauge", "Current adaptive limit on concurrent upstream calls", limiter::limit);
+			metrics.gauge("emerse_fhir_upstream_in_flight", "gauge", "Upstream calls running under the limiter", limiter::inFlight);
+			metrics.gauge("emerse_fhir_upstream_throttled_total", "counter", "429 and 503 responses retried", limiter::throttled);
+		}
+		var hedger = fhirHandler.hedger;
+		if (hedger != null)
+		{
+			metrics.gauge("emerse_fhir_binary_hedges_total", "counter", "Duplicate Binary reads started after the hedge delay", hedger::hedges);
+			metrics.gauge("emerse_fhir_binary_hedge_wins_total", "counter", "Binary reads answered first by the duplicate", hedger::hedgeWins);
+			metrics.gauge("emerse_fhir_binary_hedge_delay_ms", "gauge", "Current delay before a Binary read is hedged", hedger::delayMillis);
+		}
+		var index = fhirHandler.index;
+		if (index != null)
+		{
+			metrics.gauge("emerse_fhir_search_index_notes", "gauge", "Notes in the search index", index::size);
+			metrics.gauge("emerse_fhir_search_index_segments", "gauge", "Segment files of the search index", index::segments);
+			metrics.gauge("emerse_fhir_searches_total", "counter", "Searches served from the index", index::searches);
+			metrics.gauge("emerse_fhir_search_index_flush_failures_total", "counter", "Search index segments that could not be written", index::flushFailures);
+		}
+		var singleFlight = fhirHandler.singleFlight;
+		if (singleFlight != null)
+		{
+			metrics.gauge("emerse_fhir_coalesced_requests_total", "counter", "Requests served by another request's extraction", singleFlight::shared);
+			metrics.gauge("emerse_fhir_extractions_in_flight", "gauge", "Coalescable extractions running", singleFlight::inFlight);
+		}
+		metrics.gauge("emerse_fhir_upstream_connections_leased", "gauge", "Upstream connections in use", () -> clientPool.stats().leased());
+		metrics.gauge("emerse_fhir_upstream_connections_available", "gauge", "Idle upstream connections", () -> clientPool.stats().available());
+		metrics.gauge("emerse_fhir_upstream_connections_pending", "gauge", "Requests waiting for an upstream connection", () -> clientPool.stats().pending());
+		metrics.gauge("emerse_fhir_fetch_permits_available", "gauge", "Attachment fetch slots free across all requests", fhirHandler.fetchPermits::availablePermits);
+	}
+
+	private static ExecutorService newDaemonPool(String prefix, int size)
+	{
+		var count = new AtomicInteger();
+		return Executors.newFixedThreadPool(size, r -> {
+			var t = new Thread(r, prefix + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
 	}
 
 	private static void writeResource(Request baseRequest, HttpServletRequest request, HttpServletResponse response, String resource)
@@ -169,6 +465,51 @@ public class Main
 				case "--fhir-url" -> fhirBaseUrl = args[++i];
 				case "--port" -> port = Integer.parseInt(args[++i]);
 				case "--html-root" -> htmlRoot = args[++i];
+				case "--max-fetches" -> maxFetches = Integer.parseInt(args[++i]);
+				case "--fetch-window" -> fetchWindow = Integer.parseInt(args[++i]);
+				case "--batch-parallelism" -> batchParallelism = Integer.parseInt(args[++i]);
+				case "--patient-cache-size" -> patientCacheSize = Integer.parseInt(args[++i]);
+				case "--patient-cache-ttl" -> patientCacheTtl = Long.parseLong(args[++i]);
+				case "--patient-cache-negative-ttl" -> patientCacheNegativeTtl = Long.parseLong(args[++i]);
+				case "--note-cache" -> noteCacheDir = args[++i];
+				case "--note-cache-size" -> noteCacheSize = Long.parseLong(args[++i]);
+				case "--raw-bundles" -> rawBundles = true;
+				case "--virtual-threads" -> virtualThreads = true;
+				case "--async" -> async = true;
+				case "--async-threads" -> asyncThreads = Integer.parseInt(args[++i]);
+				case "--request-timeout" -> requestTimeout = Long.parseLong(args[++i]);
+				case "--client-config" -> clientPool.load(args[++i]);
+				case "--max-connections",
+					"--max-connections-per-route",
+					"--connect-timeout",
+					"--socket-timeout",
+					"--connection-request-timeout",
+					"--keep-alive",
+					"--gzip" -> clientPool.set(args[i].substring(2), args[++i]);
+				case "--http2" -> clientPool.http2 = true;
+				case "--pool-stats-interval" -> poolStatsInterval = Long.parseLong(args[++i]);
+				case "--coalesce" -> coalesce = true;
+				case "--query-plan" -> queryPlan = args[++i];
+				case "--page-size" -> pageSize = Integer.parseInt(args[++i]);
+				case "--search-partitions" -> searchPartitions = Integer.parseInt(args[++i]);
+				case "--partition-notes" -> partitionNotes = Integer.parseInt(args[++i]);
+				case "--watermarks" -> watermarks = args[++i];
+				case "--note-max-age" -> noteMaxAge = Long.parseLong(args[++i]);
+				case "--bulk-export" -> bulkExport = args[++i];
+				case "--export-dir" -> exportDir = args[++i];
+				case "--export-jobs" -> exportJobs = Integer.parseInt(args[++i]);
+				case "--export-attempts" -> exportAttempts = Integer.parseInt(args[++i]);
+				case "--export-retry-delay" -> exportRetryDelay = Long.parseLong(args[++i]);
+				case "--search-index" -> searchIndex = args[++i];
+				case "--search-index-flush" -> searchIndexFlush = Integer.parseInt(args[++i]);
+				case "--text" -> text = args[++i];
+				case "--normalize-threads" -> normalizeThreads = Integer.parseInt(args[++i]);
+				case "--binary-deadline" -> binaryDeadline = Long.parseLong(args[++i]);
+				case "--hedge" -> hedge = true;
+				case "--hedge-min-delay" -> hedgeMinDelay = Long.parseLong(args[++i]);
+				case "--upstream-limit" -> upstreamLimit = Integer.parseInt(args[++i]);
+				case "--upstream-limit-max" -> upstreamLimitMax = Integer.parseInt(args[++i]);
+				case "--upstream-retries" -> upstreamRetries = Integer.parseInt(args[++i]);
 				case "--credentials" -> {
 					var fa = loadCredentials(args[++i]);
 					if(fa != null)
@@ -180,6 +521,26 @@ public class Main
 				case "--help" -> printHelp();
 			}
 			}
+		if (!queryPlan.equals("auto") && !queryPlan.equals("basic"))
+		{
+			System.err.println("--query-plan must be auto or basic");
+			System.exit(1);
+		}
+		if (!bulkExport.equals("auto") && !bulkExport.equals("on") && !bulkExport.equals("off"))
+		{
+			System.err.println("--bulk-export must be auto, on or off");
+			System.exit(1);
+		}
+		if (!text.equals("raw") && !text.equals("plain"))
+		{
+			System.err.println("--text must be raw or plain");
+			System.exit(1);
+		}
+		if (virtualThreads && !VirtualThreads.isSupported())
+		{
+			System.err.println("--virtual-threads needs Java 21 or newer");
+			System.exit(1);
+		}
 			if (fhirBaseUrl == null)
 			{
 			System.err.println("--fhir-url must be set");
@@ -196,6 +557,51 @@ public class Main
 			  --credentials <credential>	the credential file containing info of basic auth and header parameters
 			  --port <port>          	    the url to listen on
 			  --html-root <root>	 		the html root absolute path
+			  --max-fetches <n>			the maximum number of attachment fetches in flight across all requests (default 32)
+			  --fetch-window <n>			the maximum number of attachment fetches in flight per request (default 16)
+			  --batch-parallelism <n>		the number of patients extracted in parallel by /batch (default 8)
+			  --patient-cache-size <n>		the number of MRN to patient lookups kept in memory, 0 disables (default 10000)
+			  --patient-cache-ttl <sec>		how long a resolved patient stays cached (default 3600)
+			  --patient-cache-negative-ttl <sec>	how long an unknown MRN stays cached (default 300)
+			  --note-cache <dir>			the directory of the on-disk note content cache, off when unset
+			  --note-cache-size <mb>		the size the note content cache is trimmed to (default 1024)
+			  --raw-bundles				read DocumentReference and Binary JSON with the streaming parser instead of HAPI
+			  --virtual-threads			handle requests and upstream fetches on virtual threads (Java 21+)
+			  --async				serve /fhir with servlet async and non-blocking writes
+			  --async-threads <n>			the number of worker threads running async /fhir stages (default 64)
+			  --request-timeout <sec>		the async /fhir timeout before a 504 is returned (default 120)
+			  --client-config <file>		a properties file with any of the upstream client settings below, without the dashes
+			  --max-connections <n>			the upstream connection pool size (default 64)
+			  --max-connections-per-route <n>	the upstream connections allowed to the FHIR host (default 64)
+			  --connect-timeout <ms>		the upstream connect timeout (default 10000)
+			  --socket-timeout <ms>			the upstream read timeout (default 60000)
+			  --connection-request-timeout <ms>	how long to wait for a pooled upstream connection (default 30000)
+			  --keep-alive <ms>			how long idle upstream connections are kept (default 60000)
+			  --gzip <true|false>			accept gzip encoded upstream responses (default true)
+			  --http2				use the JDK HTTP client, negotiating HTTP/2 with the FHIR server
+			  --pool-stats-interval <sec>		print upstream pool usage at this interval, off when unset
+			  --upstream-limit <n>			start an adaptive limit on concurrent upstream calls at n, backing off on 429/503, off when unset
+			  --upstream-limit-max <n>		the highest the adaptive upstream limit may grow (default 64)
+			  --upstream-retries <n>		retries of a 429/503 upstream response under the adaptive limit (default 3)
+			  --binary-deadline <ms>		give up on a Binary read after this long and mark the note missing, off when unset
+			  --hedge				start a duplicate Binary read once the first is slower than the p95 and use whichever answers first
+			  --hedge-min-delay <ms>		the shortest wait before a Binary read is hedged (default 50)
+			  --query-plan <auto|basic>		auto reads the server's CapabilityStatement at startup and combines the patient and note searches when it can (default auto)
+			  --page-size <n>			the _count asked for on DocumentReference searches when the server supports it (default 100)
+			  --search-partitions <n>		split long note histories into up to n period ranges searched in parallel, off when unset
+			  --partition-notes <n>			the notes each period range is sized to hold, learned from earlier searches (default 500)
+			  --note-max-age <sec>			how long browsers may keep a note read from /note (default 3600)
+			  --watermarks <file>			the per-patient watermark log that lets /fhir and /batch take incremental=true, off when unset
+			  --bulk-export <auto|on|off>		run /export jobs through the server's Bulk Data $export, auto when its CapabilityStatement offers it (default auto)
+			  --export-dir <dir>			where /export jobs keep their journals, downloads and output; unfinished jobs resume at startup (default <tmp>/fhir-export)
+			  --export-jobs <n>			the number of /export jobs run at once (default 2)
+			  --export-attempts <n>			how often an export job tries a patient that fails on a transient upstream error (default 3)
+			  --export-retry-delay <ms>		the wait before a patient's first retry, doubled for each one after (default 1000)
+			  --search-index <dir>			index the text of extracted notes in this directory and serve /search over it, off when unset
+			  --search-index-flush <n>		the notes the search index gathers in memory before writing a segment (default 1000)
+			  --text <raw|plain>			serve notes as the server holds them or converted from HTML and RTF to plain text, unless a request asks with text= (default raw)
+			  --normalize-threads <n>		the threads that convert notes to plain text (default the number of processors)
+			  --coalesce				share one upstream extraction between concurrent requests for the same patient and date
 			""");
 		System.exit(1);
 	}
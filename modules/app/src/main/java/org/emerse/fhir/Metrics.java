@@ -0,0 +1,104 @@
+package org.emerse.fhir;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Stage latencies and counters for note extraction, written in the Prometheus text format by {@link #write}.
+ */
+public class Metrics
+{
+	private static final double[] QUANTILES = {0.5, 0.9, 0.95, 0.99};
+
+	public final Histogram request = new Histogram();
+	public final Histogram patient = new Histogram();
+	public final Histogram search = new Histogram();
+	public final Histogram binary = new Histogram();
+	public final Histogram write = new Histogram();
+	public final Histogram normalize = new Histogram();
+
+	public final LongAdder requests = new LongAdder();
+	public final LongAdder failedRequests = new LongAdder();
+	public final LongAdder notes = new LongAdder();
+	public final LongAdder bytes = new LongAdder();
+	public final LongAdder upstreamErrors = new LongAdder();
+	public final LongAdder missingNotes = new LongAdder();
+	public final LongAdder splitSearches = new LongAdder();
+	public final LongAdder rangeSearches = new LongAdder();
+	public final LongAdder deletedNotes = new LongAdder();
+	public final LongAdder failedCommits = new LongAdder();
+
+	private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Exports a value owned elsewhere, such as cache or pool statistics, read each time the metrics are written.
+	 */
+	public void gauge(String name, String type, String help, LongSupplier value)
+	{
+		gauges.add(new Gauge(name, type, help, value));
+	}
+
+	public void write(Writer out) throws IOException
+	{
+		writeSummary(out, "emerse_fhir_request_seconds", "Time to serve a /fhir request", null, request);
+		out.write("# HELP emerse_fhir_stage_seconds Time spent in each extraction stage\n");
+		out.write("# TYPE emerse_fhir_stage_seconds summary\n");
+		writeSummary(out, "emerse_fhir_stage_seconds", null, "stage=\"patient\"", patient);
+		writeSummary(out, "emerse_fhir_stage_seconds", null, "stage=\"search\"", search);
+		writeSummary(out, "emerse_fhir_stage_seconds", null, "stage=\"binary\"", binary);
+		writeSummary(out, "emerse_fhir_stage_seconds", null, "stage=\"write\"", write);
+		writeSummary(out, "emerse_fhir_stage_seconds", null, "stage=\"normalize\"", normalize);
+		writeCounter(out, "emerse_fhir_requests_total", "Requests served", requests.sum());
+		writeCounter(out, "emerse_fhir_failed_requests_total", "Requests that ended in an error", failedRequests.sum());
+		writeCounter(out, "emerse_fhir_notes_total", "Notes written to clients", notes.sum());
+		writeCounter(out, "emerse_fhir_response_bytes_total", "Response bytes written to clients", bytes.sum());
+		writeCounter(out, "emerse_fhir_upstream_errors_total", "Failed calls to the FHIR server", upstreamErrors.sum());
+		writeCounter(out, "emerse_fhir_missing_notes_total", "Notes written as missing after their deadline", missingNotes.sum());
+		writeCounter(out, "emerse_fhir_split_searches_total", "DocumentReference searches split into period ranges", splitSearches.sum());
+		writeCounter(out, "emerse_fhir_range_searches_total", "Period ranges searched in parallel", rangeSearches.sum());
+		writeCounter(out, "emerse_fhir_deleted_notes_total", "Tombstones written by incremental extractions", deletedNotes.sum());
+		writeCounter(out, "emerse_fhir_failed_commits_total", "Watermarks that could not be committed after a delivered delta", failedCommits.sum());
+		for (var gauge : gauges)
+		{
+			out.write("# HELP " + gauge.name + " " + gauge.help + "\n");
+			out.write("# TYPE " + gauge.name + " " + gauge.type + "\n");
+			out.write(gauge.name + " " + gauge.value.getAsLong() + "\n");
+		}
+	}
+
+	private static void writeSummary(Writer out, String name, String help, String labels, Histogram histogram)
+		throws IOException
+	{
+		if (help != null)
+		{
+			out.write("# HELP " + name + " " + help + "\n");
+			out.write("# TYPE " + name + " summary\n");
+		}
+		var prefix = labels == null ? "" : labels + ",";
+		for (var q : QUANTILES)
+		{
+			out.write(name + "{" + prefix + "quantile=\"" + q + "\"} " + seconds(histogram.percentile(q * 100)) + "\n");
+		}
+		var suffix = labels == null ? "" : "{" + labels + "}";
+		out.write(name + "_sum" + suffix + " " + seconds(histogram.sum()) + "\n");
+		out.write(name + "_count" + suffix + " " + histogram.count() + "\n");
+	}
+
+	private static void writeCounter(Writer out, String name, String help, long value) throws IOException
+	{
+		out.write("# HELP " + name + " " + help + "\n");
+		out.write("# TYPE " + name + " counter\n");
+		out.write(name + " " + value + "\n");
+	}
+
+	private static String seconds(long micros)
+	{
+		return String.valueOf(micros / 1e6);
+	}
+
+	private static record Gauge(String name, String type, String help, LongSupplier value) {}
+}
@@ -0,0 +1,24 @@
+package org.emerse.fhir;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+
+import java.io.StringWriter;
+
+public class MetricsHandler extends AbstractHandler
+{
+	public Metrics metrics;
+
+	@Override
+	protected void doHandle(
+		String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response
+	) throws Exception
+	{
+		var out = new StringWriter();
+		metrics.write(out);
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+		response.getWriter().write(out.toString());
+	}
+}
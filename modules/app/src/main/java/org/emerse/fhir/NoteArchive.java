@@ -0,0 +1,442 @@
+package org.emerse.fhir;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A read-only archive of extracted notes: the records, one NDJSON line each, are packed into blocks of about
+ * {@link Writer#blockBytes} that are deflated separately and appended to segment files, with a sidecar index sorted
+ * by patient and timestamp that says which block and where in it each record is. The index and segments are memory
+ * mapped, so reading one note inflates just its block and scanning a selection inflates each block it touches once.
+ */
+public class NoteArchive implements AutoCloseable
+{
+	private static final String INDEX = "index.dat";
+	private static final String SEGMENT = "segment-%05d.dat";
+	private static final int MAGIC = 0x4E544152;
+	private static final int VERSION = 1;
+	private static final int BLOCK = 20;
+	private static final int ENTRY = 28;
+	private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+	private final Path dir;
+	private final ByteBuffer index;
+	private final String[] patients;
+	private final String[] types;
+	private final MappedByteBuffer[] segments;
+	private final int blocksAt;
+	private final int blocks;
+	private final int entriesAt;
+	private final int entries;
+	private final LongAdder inflated = new LongAdder();
+
+	public NoteArchive(Path dir) throws IOException
+	{
+		this.dir = dir;
+		try (var ch = FileChannel.open(dir.resolve(INDEX), StandardOpenOption.READ))
+		{
+			index = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		}
+		if (index.getInt(0) != MAGIC || index.getInt(4) != VERSION)
+		{
+			throw new IOException("Not a note archive: " + dir);
+		}
+		segments = new MappedByteBuffer[index.getInt(8)];
+		var position = 12;
+		patients = new String[index.getInt(position)];
+		position = readStrings(patients, position + 4);
+		types = new String[index.getInt(position)];
+		position = readStrings(types, position + 4);
+		blocks = index.getInt(position);
+		blocksAt = position + 4;
+		entries = index.getInt(blocksAt + blocks * BLOCK);
+		entriesAt = blocksAt + blocks * BLOCK + 4;
+	}
+
+	public int size()
+	{
+		return entries;
+	}
+
+	public Entry entry(int i)
+	{
+		if (i < 0 || i >= entries)
+		{
+			throw new IndexOutOfBoundsException(i);
+		}
+		var at = entriesAt + i * ENTRY;
+		var timestamp = index.getLong(at + 4);
+		var type = index.getInt(at + 12);
+		return new Entry(
+			i,
+			patients[index.getInt(at)],
+			timestamp == NO_TIMESTAMP ? null : timestamp,
+			type < 0 ? null : types[type],
+			index.getInt(at + 16),
+			index.getInt(at + 20),
+			index.getInt(at + 24)
+		);
+	}
+
+	/**
+	 * The entries of {@code patients} dated within {@code [from, to)} and of one of {@code types}, in archive order;
+	 * a null argument doesn't filter, and a note with no date only passes when neither bound is given.
+	 */
+	public List<Entry> select(Collection<String> patients, Long from, Long to, Collection<String> types)
+	{
+		var selected = new ArrayList<Entry>();
+		if (patients == null)
+		{
+			for (int i = 0; i < entries; i++)
+			{
+				addIfMatches(selected, i, from, to, types);
+			}
+		}
+		else
+		{
+			for (var patient : new TreeSet<>(patients))
+			{
+				var p = Arrays.binarySearch(this.patients, patient);
+				if (p < 0)
+				{
+					continue;
+				}
+				// the entries are sorted by patient then timestamp, so a patient's are a run found by two searches
+				var end = firstEntry(p + 1, NO_TIMESTAMP);
+				for (int i = firstEntry(p, from == null ? NO_TIMESTAMP : from); i < end; i++)
+				{
+					addIfMatches(selected, i, from, to, types);
+				}
+			}
+		}
+		selected.sort(Comparator.comparingInt(Entry::block).thenComparingInt(Entry::offset));
+		return selected;
+	}
+
+	/**
+	 * Reads one record, inflating only the block that holds it.
+	 */
+	public byte[] read(Entry entry) throws IOException
+	{
+		return Arrays.copyOfRange(inflate(entry.block()), entry.offset(), entry.offset() + entry.length());
+	}
+
+	/**
+	 * Hands {@code visitor} each record of {@code entries} in archive order, inflating every block they touch once and
+	 * no other.
+	 */
+	public void scan(List<Entry> entries, Visitor visitor) throws Exception
+	{
+		var sorted = new ArrayList<>(entries);
+		sorted.sort(Comparator.comparingInt(Entry::block).thenComparingInt(Entry::offset));
+		var block = -1;
+		byte[] data = null;
+		for (var entry : sorted)
+		{
+			if (entry.block() != block)
+			{
+				block = entry.block();
+				data = inflate(block);
+			}
+			visitor.visit(entry, ByteBuffer.wrap(data, entry.offset(), entry.length()).slice());
+		}
+	}
+
+	/**
+	 * The number of blocks inflated so far.
+	 */
+	public long inflated()
+	{
+		return inflated.sum();
+	}
+
+	@Override
+	public void close()
+	{
+		// the mappings go with the buffers
+		Arrays.fill(segments, null);
+	}
+
+	private void addIfMatches(List<Entry> selected, int i, Long from, Long to, Collection<String> types)
+	{
+		var at = entriesAt + i * ENTRY;
+		var timestamp = index.getLong(at + 4);
+		if ((from != null || to != null) && timestamp == NO_TIMESTAMP)
+			return;
+		if (from != null && timestamp < from || to != null && timestamp >= to)
+			return;
+		var type = index.getInt(at + 12);
+		if (types != null && (type < 0 || !types.contains(this.types[type])))
+			return;
+		selected.add(entry(i));
+	}
+
+	/**
+	 * The first entry at or after patient {@code p} and {@code timestamp}.
+	 */
+	private int firstEntry(int p, long timestamp)
+	{
+		int low = 0, high = entries;
+		while (low < high)
+		{
+			var mid = (low + high) >>> 1;
+			var at = entriesAt + mid * ENTRY;
+			var patient = index.getInt(at);
+			if (patient < p || patient == p && index.getLong(at + 4) < timestamp)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	private byte[] inflate(int block) throws IOException
+	{
+		var at = blocksAt + block * BLOCK;
+		var segment = segment(index.getInt(at));
+		var compressed = segment.slice((int) index.getLong(at + 4), index.getInt(at + 12));
+		var data = new byte[index.getInt(at + 16)];
+		var inflater = new Inflater();
+		try
+		{
+			inflater.setInput(compressed);
+			var n = 0;
+			while (n < data.length && !inflater.finished())
+			{
+				n += inflater.inflate(data, n, data.length - n);
+				if (inflater.needsInput())
+					break;
+			}
+			if (n != data.length)
+			{
+				throw new IOException("Block " + block + " of " + dir + " is truncated");
+			}
+		}
+		catch (DataFormatException e)
+		{
+			throw new IOException("Block " + block + " of " + dir + " is corrupt", e);
+		}
+		finally
+		{
+			inflater.end();
+		}
+		inflated.increment();
+		return data;
+	}
+
+	private synchronized MappedByteBuffer segment(int i) throws IOException
+	{
+		if (segments[i] == null)
+		{
+			try (var ch = FileChannel.open(dir.resolve(String.format(SEGMENT, i)), StandardOpenOption.READ))
+			{
+				segments[i] = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			}
+		}
+		return segments[i];
+	}
+
+	private int readStrings(String[] strings, int position)
+	{
+		for (int i = 0; i < strings.length; i++)
+		{
+			var length = index.getInt(position);
+			var bytes = new byte[length];
+			index.get(position + 4, bytes);
+			strings[i] = new String(bytes, StandardCharsets.UTF_8);
+			position += 4 + length;
+		}
+		return position;
+	}
+
+	public static record Entry(
+		int index, String patient, Long timestamp, String type, int block, int offset, int length
+	) {}
+
+	@FunctionalInterface
+	public interface Visitor
+	{
+		void visit(Entry entry, ByteBuffer record) throws Exception;
+	}
+
+	/**
+	 * Builds an archive in an empty directory. The index is written last, by {@link #close}, so a directory without one
+	 * holds an unfinished archive.
+	 */
+	public static class Writer implements AutoCloseable
+	{
+		public int blockBytes = 64 * 1024;
+		public long segmentBytes = 256L * 1024 * 1024;
+		public int level = Deflater.DEFAULT_COMPRESSION;
+
+		private final Path dir;
+		private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+		private final List<long[]> blocks = new ArrayList<>();
+		private final List<Pending> pending = new ArrayList<>();
+		private final byte[] buffer = new byte[64 * 1024];
+		private FileChannel segment;
+		private int segmentCount;
+		private long rawBytes;
+		private long compressedBytes;
+
+		public Writer(Path dir) throws IOException
+		{
+			this.dir = dir;
+			Files.createDirectories(dir);
+		}
+
+		public void add(String patient, Long timestamp, String type, byte[] record) throws IOException
+		{
+			if (block.size() > 0 && block.size() + record.length > blockBytes)
+			{
+				flushBlock();
+			}
+			pending.add(new Pending(
+				patient, timestamp == null ? NO_TIMESTAMP : timestamp, type, blocks.size(), block.size(), record.length
+			));
+			block.write(record);
+		}
+
+		public long rawBytes()
+		{
+			return rawBytes + block.size();
+		}
+
+		public long compressedBytes()
+		{
+			return compressedBytes;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			if (block.size() > 0)
+			{
+				flushBlock();
+			}
+			if (segment != null)
+			{
+				segment.force(false);
+				segment.close();
+			}
+			writeIndex();
+		}
+
+		private void flushBlock() throws IOException
+		{
+			var deflater = new Deflater(level);
+			var compressed = new ByteArrayOutputStream(block.size() / 4);
+			try
+			{
+				deflater.setInput(block.toByteArray());
+				deflater.finish();
+				while (!deflater.finished())
+				{
+					compressed.write(buffer, 0, deflater.deflate(buffer));
+				}
+			}
+			finally
+			{
+				deflater.end();
+			}
+			if (segment == null || segment.position() > 0 && segment.position() + compressed.size() > segmentBytes)
+			{
+				if (segment != null)
+				{
+					segment.force(false);
+					segment.close();
+				}
+				segment = FileChannel.open(
+					dir.resolve(String.format(SEGMENT, segmentCount++)),
+					StandardOpenOption.CREATE_NEW,
+					StandardOpenOption.WRITE
+				);
+			}
+			blocks.add(new long[] {segmentCount - 1, segment.position(), compressed.size(), block.size()});
+			var bytes = ByteBuffer.wrap(compressed.toByteArray());
+			while (bytes.hasRemaining())
+			{
+				segment.write(bytes);
+			}
+			rawBytes += block.size();
+			compressedBytes += compressed.size();
+			block.reset();
+		}
+
+		private void writeIndex() throws IOException
+		{
+			var patients = pending.stream().map(Pending::patient).distinct().sorted().toArray(String[]::new);
+			var types = pending.stream().map(Pending::type).filter(t -> t != null).distinct().sorted()
+				.toArray(String[]::new);
+			pending.sort(Comparator.comparing(Pending::patient)
+				.thenComparingLong(Pending::timestamp)
+				.thenComparingInt(Pending::block)
+				.thenComparingInt(Pending::offset));
+			var tmp = dir.resolve(INDEX + ".tmp");
+			try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp))))
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(segmentCount);
+				writeStrings(out, patients);
+				writeStrings(out, types);
+				out.writeInt(blocks.size());
+				for (var b : blocks)
+				{
+					out.writeInt((int) b[0]);
+					out.writeLong(b[1]);
+					out.writeInt((int) b[2]);
+					out.writeInt((int) b[3]);
+				}
+				out.writeInt(pending.size());
+				for (var p : pending)
+				{
+					out.writeInt(Arrays.binarySearch(patients, p.patient()));
+					out.writeLong(p.timestamp());
+					out.writeInt(p.type() == null ? -1 : Arrays.binarySearch(types, p.type()));
+					out.writeInt(p.block());
+					out.writeInt(p.offset());
+					out.writeInt(p.length());
+				}
+			}
+			try (var ch = FileChannel.open(tmp, StandardOpenOption.WRITE))
+			{
+				ch.force(false);
+			}
+			Files.move(tmp, dir.resolve(INDEX), StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		private static void writeStrings(DataOutputStream out, String[] strings) throws IOException
+		{
+			out.writeInt(strings.length);
+			for (var s : strings)
+			{
+				var bytes = s.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		}
+
+		private static record Pending(String patient, long timestamp, String type, int block, int offset, int length) {}
+	}
+}
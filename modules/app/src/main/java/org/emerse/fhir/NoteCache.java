@@ -0,0 +1,314 @@
+package org.emerse.fhir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Caches note content in append-only segment files. Each record carries a CRC of its lengths, key, type and data, so
+ * a tail torn or zero-filled by a crash is dropped on recovery. Closed segments are read through a mapping; the
+ * active one is still growing, so it's read through its channel instead.
+ */
+public class NoteCache implements AutoCloseable
+{
+	private static final String SUFFIX = ".seg";
+	private static final int HEADER = 16;
+
+	private final Path dir;
+	private final long maxBytes;
+	private final long segmentBytes;
+	private final Map<String, Location> index = new ConcurrentHashMap<>();
+	private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private Segment active;
+
+	public NoteCache(Path dir, long maxBytes, long segmentBytes) throws IOException
+	{
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		this.segmentBytes = segmentBytes;
+		Files.createDirectories(dir);
+		List<Path> files;
+		try (var list = Files.list(dir))
+		{
+			files = list.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).sorted().toList();
+		}
+		for (var file : files)
+		{
+			var name = file.getFileName().toString();
+			var segment = new Segment(Integer.parseInt(name.substring(0, name.length() - SUFFIX.length())), file);
+			segment.lastAccess = Files.getLastModifiedTime(file).toMillis();
+			recover(segment);
+			segments.put(segment.id, segment);
+		}
+		roll();
+	}
+
+	public Entry get(String key) throws IOException
+	{
+		var loc = index.get(key);
+		if (loc == null)
+		{
+			misses.increment();
+			return null;
+		}
+		var data = new byte[loc.length];
+		if (!readActive(loc.segment, loc.offset, data))
+		{
+			var buf = loc.segment.map();
+			if (buf == null)
+			{
+				misses.increment();
+				return null;
+			}
+			buf.get(Math.toIntExact(loc.offset), data);
+		}
+		loc.segment.lastAccess = System.currentTimeMillis();
+		hits.increment();
+		return new Entry(loc.type, data);
+	}
+
+	public synchronized void put(String key, String type, byte[] data) throws IOException
+	{
+		if (active.size >= segmentBytes)
+		{
+			roll();
+		}
+		else if (!active.channel.isOpen())
+		{
+			// an interrupted read or write closes the channel for everyone
+			active.channel = open(active.path);
+		}
+		var k = key.getBytes(StandardCharsets.UTF_8);
+		var t = type == null ? new byte[0] : type.getBytes(StandardCharsets.UTF_8);
+		var record = ByteBuffer.allocate(HEADER + k.length + t.length + data.length);
+		record.putInt(k.length).putInt(t.length).putInt(data.length);
+		var crc = new CRC32();
+		crc.update(record.array(), 0, record.position());
+		crc.update(k);
+		crc.update(t);
+		crc.update(data);
+		record.putInt((int) crc.getValue()).put(k).put(t).put(data).flip();
+		var start = active.size;
+		while (record.hasRemaining())
+		{
+			active.channel.write(record, active.size + record.position());
+		}
+		active.size += record.limit();
+		active.lastAccess = System.currentTimeMillis();
+		index.put(key, new Location(active, start + HEADER + k.length + t.length, data.length, type));
+		evict();
+	}
+
+	public long hits()
+	{
+		return hits.sum();
+	}
+
+	public long misses()
+	{
+		return misses.sum();
+	}
+
+	public long sizeBytes()
+	{
+		return segments.values().stream().mapToLong(s -> s.size).sum();
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if (active != null)
+		{
+			active.channel.close();
+		}
+	}
+
+	private void recover(Segment segment) throws IOException
+	{
+		try (var channel = FileChannel.open(segment.path, StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			var fileSize = channel.size();
+			var header = ByteBuffer.allocate(HEADER);
+			long pos = 0;
+			while (pos + HEADER <= fileSize)
+			{
+				header.clear();
+				channel.read(header, pos);
+				header.flip();
+				int kl = header.getInt(), tl = header.getInt(), dl = header.getInt(), sum = header.getInt();
+				if (kl < 0 || tl < 0 || dl < 0 || pos + HEADER + kl + tl + dl > fileSize)
+				{
+					break;
+				}
+				var body = ByteBuffer.allocate(kl + tl + dl);
+				while (body.hasRemaining())
+				{
+					if (channel.read(body, pos + HEADER + body.position()) < 0)
+					{
+						break;
+					}
+				}
+				var crc = new CRC32();
+				crc.update(header.array(), 0, HEADER - 4);
+				crc.update(body.array());
+				// a torn or zero-filled tail can pass the length check, but not the checksum
+				if (body.hasRemaining() || (int) crc.getValue() != sum)
+				{
+					break;
+				}
+				var key = new String(body.array(), 0, kl, StandardCharsets.UTF_8);
+				var type = tl == 0 ? null : new String(body.array(), kl, tl, StandardCharsets.UTF_8);
+				index.put(key, new Location(segment, pos + HEADER + kl + tl, dl, type));
+				pos += HEADER + kl + tl + dl;
+			}
+			if (pos < fileSize)
+			{
+				channel.truncate(pos);
+			}
+			segment.size = pos;
+		}
+	}
+
+	private void roll() throws IOException
+	{
+		if (active != null)
+		{
+			// cleared first, so readers fall back to mapping the now finished segment
+			var channel = active.channel;
+			active.channel = null;
+			channel.close();
+		}
+		var id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+		var segment = new Segment(id, dir.resolve(String.format("%08d", id) + SUFFIX));
+		segment.channel = open(segment.path);
+		segment.lastAccess = System.currentTimeMillis();
+		segments.put(id, segment);
+		active = segment;
+	}
+
+	private static FileChannel open(Path path) throws IOException
+	{
+		return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Reads from the segment's channel while it is the active one, returning false once it has been rolled.
+	 */
+	private static boolean readActive(Segment segment, long offset, byte[] data) throws IOException
+	{
+		var channel = segment.channel;
+		if (channel == null)
+		{
+			return false;
+		}
+		var buf = ByteBuffer.wrap(data);
+		try
+		{
+			while (buf.hasRemaining())
+			{
+				if (channel.read(buf, offset + buf.position()) < 0)
+				{
+					throw new IOException("Truncated cache segment " + segment.path);
+				}
+			}
+			return true;
+		}
+		catch (ClosedByInterruptException e)
+		{
+			throw e;
+		}
+		catch (ClosedChannelException e)
+		{
+			return false;
+		}
+	}
+
+	private void evict() throws IOException
+	{
+		var total = sizeBytes();
+		if (total <= maxBytes)
+		{
+			return;
+		}
+		var candidates = new ArrayList<>(segments.values());
+		candidates.remove(active);
+		candidates.sort(Comparator.comparingLong(s -> s.lastAccess));
+		for (var segment : candidates)
+		{
+			if (total <= maxBytes)
+			{
+				break;
+			}
+			segments.remove(segment.id);
+			index.values().removeIf(loc -> loc.segment == segment);
+			segment.mapped = null;
+			Files.deleteIfExists(segment.path);
+			total -= segment.size;
+		}
+	}
+
+	public static record Entry(String type, byte[] data) {}
+
+	private static record Location(Segment segment, long offset, int length, String type) {}
+
+	private static class Segment
+	{
+		final int id;
+		final Path path;
+		volatile FileChannel channel;
+		volatile MappedByteBuffer mapped;
+		volatile long size;
+		volatile long lastAccess;
+
+		Segment(int id, Path path)
+		{
+			this.id = id;
+			this.path = path;
+		}
+
+		/**
+		 * Maps the segment once it is closed; it no longer grows, so one mapping covers every record.
+		 */
+		ByteBuffer map() throws IOException
+		{
+			var m = mapped;
+			if (m == null)
+			{
+				synchronized (this)
+				{
+					m = mapped;
+					if (m == null)
+					{
+						if (!Files.exists(path))
+						{
+							return null;
+						}
+						try (var ch = FileChannel.open(path, StandardOpenOption.READ))
+						{
+							m = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+						}
+						mapped = m;
+					}
+				}
+			}
+			return m;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package org.emerse.fhir;
+
+import org.hl7.fhir.r4.model.BaseDateTimeType;
+import org.hl7.fhir.r4.model.DocumentReference;
+
+public record NoteDocument(
+	String id,
+	String version,
+	Long timestamp,
+	String noteType,
+	String contentType,
+	String url,
+	byte[] data,
+	Long lastUpdated,
+	String status,
+	String replaces,
+	Long size,
+	String patient,
+	Long periodEnd
+)
+{
+	public NoteDocument(
+		String id, String version, Long timestamp, String noteType, String contentType, String url, byte[] data
+	)
+	{
+		this(id, version, timestamp, noteType, contentType, url, data, null, null, null, null, null, null);
+	}
+
+	public static NoteDocument of(DocumentReference doc)
+	{
+		var attachment = doc.getContent().isEmpty() ? null : doc.getContentFirstRep().getAttachment();
+		return new NoteDocument(
+			doc.getIdElement().getIdPart(),
+			doc.getMeta().getVersionId(),
+			doc.getDate() == null ? null : doc.getDate().getTime(),
+			doc.getType().getText(),
+			attachment == null ? null : attachment.getContentType(),
+			attachment == null || attachment.getUrlElement().isEmpty() ? null : attachment.getUrl(),
+			attachment == null || attachment.getDataElement().isEmpty() ? null : attachment.getData(),
+			doc.getMeta().getLastUpdated() == null ? null : doc.getMeta().getLastUpdated().getTime(),
+			doc.getStatus() == null ? null : doc.getStatus().toCode(),
+			doc.getRelatesTo().stream()
+				.filter(r -> r.getCode() == DocumentReference.DocumentRelationshipType.REPLACES)
+				.map(r -> r.getTarget().getReferenceElement().getIdPart())
+				.findFirst().orElse(null),
+			attachment == null || attachment.getSizeElement().isEmpty() ? null : (long) attachment.getSize(),
+			doc.getSubject().getReferenceElement().getIdPart(),
+			periodEnd(doc.getContext().getPeriod().getStartElement(), doc.getContext().getPeriod().getEndElement())
+		);
+	}
+
+	/**
+	 * The end of a context period for {@link #periodEnd}: the end, unbounded when only the start is given, and null
+	 * without a period.
+	 */
+	static Long periodEnd(BaseDateTimeType start, BaseDateTimeType end)
+	{
+		if (end != null && end.getValue() != null)
+			return end.getValue().getTime();
+		return start != null && start.getValue() != null ? Long.MAX_VALUE : null;
+	}
+
+	/**
+	 * The content size in bytes as the attachment declares it or as inlined, null when neither says.
+	 */
+	public Long contentSize()
+	{
+		return size != null ? size : data != null ? Long.valueOf(data.length) : null;
+	}
+
+	/**
+	 * Whether a {@code period=ge} search from {@code from} finds the note: its context period reaches that far, or
+	 * is still open. A note without a period is never found by one.
+	 */
+	public boolean periodReaches(long from)
+	{
+		return periodEnd != null && periodEnd >= from;
+	}
+
+	/**
+	 * Whether the note no longer stands: replaced by a newer document or entered in error.
+	 */
+	public boolean retracted()
+	{
+		return "superseded".equals(status) || "entered-in-error".equals(status);
+	}
+}
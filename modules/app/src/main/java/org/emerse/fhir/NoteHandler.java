@@ -0,0 +1,138 @@
+package org.emerse.fhir;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+
+/**
+ * Serves the content of one note, {@code /note?id=<DocumentReference id>}, for readers that list notes with
+ * {@code /fhir?metadata=true}. A note version's content never changes, so it is tagged with the id and version and
+ * may be kept by the browser, though not by shared caches. {@code text=plain} serves it as plain text.
+ */
+public class NoteHandler extends AbstractHandler
+{
+	public FhirHandler fhirHandler;
+	public long maxAge = 3600;
+
+	@Override
+	protected void doHandle(
+		String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response
+	) throws Exception
+	{
+		var start = System.nanoTime();
+		var metrics = fhirHandler.metrics;
+		metrics.requests.increment();
+		try
+		{
+			var plain = fhirHandler.plainText(request);
+			if (plain == null)
+			{
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "text must be raw or plain");
+				return;
+			}
+			var id = new ParameterSource(request).getParameter("id", String.class);
+			if (id == null || id.isBlank())
+			{
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "id is required");
+				return;
+			}
+			NoteDocument doc;
+			try
+			{
+				doc = fhirHandler.readNote(id);
+			}
+			catch (IllegalArgumentException e)
+			{
+				response.sendError(HttpServletResponse.SC_NOT_FOUND, e.getMessage());
+				return;
+			}
+			var etag = etag(doc, plain);
+			if (etag != null)
+			{
+				response.setHeader("ETag", etag);
+				response.setHeader("Cache-Control", "private, max-age=" + maxAge);
+				if (matches(request.getHeader("If-None-Match"), etag))
+				{
+					response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+					return;
+				}
+			}
+			else
+			{
+				response.setHeader("Cache-Control", "private, no-cache");
+			}
+			if (doc.lastUpdated() != null)
+			{
+				response.setDateHeader("Last-Modified", doc.lastUpdated());
+			}
+			var content = fhirHandler.readContent(doc);
+			if (plain)
+			{
+				content = fhirHandler.normalizer.normalize(content);
+			}
+			if (content == null)
+			{
+				response.sendError(HttpServletResponse.SC_NOT_FOUND, "Note has no content");
+				return;
+			}
+			if (content == FhirHandler.MISSING)
+			{
+				response.setHeader("Cache-Control", "no-store");
+				response.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT, "Note content did not arrive in time");
+				return;
+			}
+			response.setStatus(HttpServletResponse.SC_OK);
+			var type = content.type() != null ? content.type() : doc.contentType();
+			response.setContentType(type != null ? type : "application/octet-stream");
+			response.setContentLength(content.data().length);
+			response.getOutputStream().write(content.data());
+			metrics.notes.increment();
+			metrics.bytes.add(content.data().length);
+		}
+		catch (Exception e)
+		{
+			metrics.failedRequests.increment();
+			throw e;
+		}
+		finally
+		{
+			metrics.request.recordSince(start);
+		}
+	}
+
+	static String etag(NoteDocument doc, boolean plain)
+	{
+		// the plain text of a note is another representation, so it gets its own tag
+		var suffix = plain ? ".txt" : "";
+		if (doc.version() != null)
+		{
+			return "\"" + doc.id() + "." + doc.version() + suffix + "\"";
+		}
+		if (doc.lastUpdated() != null)
+		{
+			return "\"" + doc.id() + "@" + doc.lastUpdated() + suffix + "\"";
+		}
+		return null;
+	}
+
+	static boolean matches(String ifNoneMatch, String etag)
+	{
+		if (ifNoneMatch == null)
+		{
+			return false;
+		}
+		for (var candidate : ifNoneMatch.split(","))
+		{
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/"))
+			{
+				candidate = candidate.substring(2);
+			}
+			if (candidate.equals("*") || candidate.equals(etag))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+}
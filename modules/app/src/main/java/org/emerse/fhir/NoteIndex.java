@@ -0,0 +1,977 @@
+package org.emerse.fhir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A full-text index of the notes the service extracts, for term search without a separate search cluster. Note text
+ * is split into lower-cased runs of letters and digits and gathered in memory, then written as an immutable segment
+ * of about {@link #flushNotes} notes holding their deflated text and each term's postings as varint deltas of note
+ * numbers with term frequencies; {@link #mergeFactor} segments of one size are merged into one of the next. Every
+ * note and deletion carries a sequence number, so the latest version of a note wins however its segments merged.
+ * <p>
+ * A full buffer is handed to {@link #flusher} and stays searchable until its segment is in place; segments are
+ * written and merged outside the lock, which is taken only to swap them in. No segment grows past
+ * {@link #maxSegmentBytes}, so each one maps as a single buffer.
+ */
+public class NoteIndex implements AutoCloseable
+{
+	public int flushNotes = 1000;
+	public int mergeFactor = 8;
+	public int snippetChars = 160;
+	// where full buffers are written out; without one the thread filling the buffer writes it
+	public Executor flusher;
+	public long maxSegmentBytes = 1L << 30;
+
+	private static final String SUFFIX = ".idx";
+	private static final int MAGIC = 0x4E494458;
+	private static final int VERSION = 1;
+	private static final int TRAILER = 40;
+	private static final int MAX_TERM = 64;
+	private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+	private final Path dir;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final List<Segment> segments = new ArrayList<>();
+	// full buffers waiting for their segment, oldest first
+	private final List<Buffer> sealed = new ArrayList<>();
+	// one flush or merge at a time
+	private final Object flushing = new Object();
+	private final Map<String, Location> live = new HashMap<>();
+	private final Map<String, Long> tombstones = new HashMap<>();
+	private final LongAdder indexed = new LongAdder();
+	private final LongAdder searches = new LongAdder();
+	private final LongAdder flushFailures = new LongAdder();
+	private Buffer buffer = new Buffer();
+	private long seq;
+	private int nextSegment;
+
+	public NoteIndex(Path dir) throws IOException
+	{
+		this.dir = dir;
+		Files.createDirectories(dir);
+		List<Path> files;
+		try (var list = Files.list(dir))
+		{
+			files = list.sorted().toList();
+		}
+		for (var file : files)
+		{
+			var name = file.getFileName().toString();
+			if (name.endsWith(".tmp"))
+			{
+				Files.delete(file);
+				continue;
+			}
+			if (!name.endsWith(SUFFIX))
+				continue;
+			nextSegment = Math.max(nextSegment, Integer.parseInt(name.substring(0, name.length() - SUFFIX.length())) + 1);
+			var segment = new Segment(file);
+			segments.add(segment);
+			// a crash during a merge leaves the merged notes in two segments with the same sequence numbers
+			for (int i = 0; i < segment.ids.length; i++)
+				resolve(segment.ids[i], segment.seqs[i], new Location(segment, i, segment.seqs[i]));
+			for (int i = 0; i < segment.deletes.length; i++)
+				resolve(segment.deletes[i], segment.deleteSeqs[i], null);
+		}
+	}
+
+	/**
+	 * Indexes a note, replacing any earlier version with the same id.
+	 */
+	public void add(String id, String patient, Long timestamp, String text)
+	{
+		var terms = terms(text);
+		boolean full;
+		lock.writeLock().lock();
+		try
+		{
+			var note = new Note(id, patient, timestamp == null ? NO_TIMESTAMP : timestamp, ++seq, text);
+			live.put(id, new Location(buffer, buffer.add(note, terms), note.seq()));
+			tombstones.remove(id);
+			buffer.deletes.remove(id);
+			indexed.increment();
+			// a buffer's segment is kept small enough that merging a level of them stays under the limit
+			full = buffer.notes.size() >= flushNotes || buffer.bytes >= maxSegmentBytes / mergeFactor;
+			if (full)
+				seal();
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+		if (!full)
+			return;
+		if (flusher == null)
+		{
+			tryFlush();
+			return;
+		}
+		try
+		{
+			flusher.execute(this::tryFlush);
+		}
+		catch (RejectedExecutionException e)
+		{
+			// shutting down; close() writes it
+		}
+	}
+
+	/**
+	 * Drops a note that no longer stands, as when it was superseded or entered in error.
+	 */
+	public void delete(String id)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			if (live.remove(id) == null)
+				return;
+			tombstones.put(id, ++seq);
+			buffer.deletes.put(id, seq);
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * The notes holding every term of {@code query}, of one of {@code patients} when given, best first by tf-idf and
+	 * then newest first.
+	 */
+	public Result search(String query, Collection<String> patients, int limit) throws IOException
+	{
+		var terms = new ArrayList<>(terms(query).keySet());
+		if (terms.isEmpty())
+			return new Result(0, List.of());
+		searches.increment();
+		lock.readLock().lock();
+		try
+		{
+			var parts = new ArrayList<Part>(segments);
+			parts.addAll(sealed);
+			parts.add(buffer);
+			var postings = new ArrayList<Postings[]>();
+			var df = new long[terms.size()];
+			for (var part : parts)
+			{
+				var lists = new Postings[terms.size()];
+				for (int t = 0; t < lists.length; t++)
+				{
+					lists[t] = part.postings(terms.get(t));
+					if (lists[t] != null)
+						df[t] += lists[t].docs().length;
+				}
+				postings.add(lists);
+			}
+			var idf = new double[terms.size()];
+			for (int t = 0; t < idf.length; t++)
+				idf[t] = Math.log(1 + (double) Math.max(live.size(), 1) / Math.max(df[t], 1));
+
+			var matches = new ArrayList<Match>();
+			for (int p = 0; p < parts.size(); p++)
+			{
+				var part = parts.get(p);
+				var lists = postings.get(p);
+				if (Arrays.stream(lists).anyMatch(l -> l == null))
+					continue;
+				var shortest = Arrays.stream(lists).min(Comparator.comparingInt(l -> l.docs().length)).orElseThrow();
+				candidates:
+				for (var doc : shortest.docs())
+				{
+					var score = 0.0;
+					for (int t = 0; t < lists.length; t++)
+					{
+						var i = Arrays.binarySearch(lists[t].docs(), doc);
+						if (i < 0)
+							continue candidates;
+						score += (1 + Math.log(lists[t].freqs()[i])) * idf[t];
+					}
+					var location = live.get(part.id(doc));
+					if (location == null || location.part() != part || location.doc() != doc)
+						continue;
+					if (patients != null && !patients.contains(part.patient(doc)))
+						continue;
+					matches.add(new Match(part, doc, score, part.timestamp(doc)));
+				}
+			}
+			matches.sort(Comparator.comparingDouble(Match::score).reversed()
+				.thenComparing(Comparator.comparingLong(Match::timestamp).reversed()));
+			var hits = new ArrayList<Hit>();
+			for (var match : matches.subList(0, Math.min(limit, matches.size())))
+			{
+				var part = match.part();
+				hits.add(new Hit(
+					part.id(match.doc()),
+					part.patient(match.doc()),
+					match.timestamp() == NO_TIMESTAMP ? null : match.timestamp(),
+					match.score(),
+					snippet(part.text(match.doc()), terms, snippetChars)
+				));
+			}
+			return new Result(matches.size(), hits);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes the notes gathered in memory as segments and merges where a size has filled up.
+	 */
+	public void flush() throws IOException
+	{
+		synchronized (flushing)
+		{
+			lock.writeLock().lock();
+			try
+			{
+				seal();
+			}
+			finally
+			{
+				lock.writeLock().unlock();
+			}
+			while (true)
+			{
+				Buffer next;
+				boolean[] keep;
+				lock.readLock().lock();
+				try
+				{
+					if (sealed.isEmpty())
+						break;
+					next = sealed.get(0);
+					keep = new boolean[next.notes.size()];
+					for (int i = 0; i < keep.length; i++)
+						keep[i] = current(next, i, next.notes.get(i).id());
+				}
+				finally
+				{
+					lock.readLock().unlock();
+				}
+				// a sealed buffer no longer changes, so it is read without the lock
+				var writer = new SegmentWriter(0);
+				try
+				{
+					var sources = new ArrayList<Location>();
+					for (int i = 0; i < keep.length; i++)
+					{
+						if (!keep[i])
+							continue;
+						var note = next.notes.get(i);
+						writer.add(note.id(), note.patient(), note.timestamp(), note.seq(), note.text(), next.terms(i));
+						sources.add(new Location(next, i, note.seq()));
+					}
+					for (var delete : next.deletes.entrySet())
+						writer.delete(delete.getKey(), delete.getValue());
+					var segment = writer.finish();
+					lock.writeLock().lock();
+					try
+					{
+						install(segment, sources, List.of());
+						sealed.remove(0);
+					}
+					finally
+					{
+						lock.writeLock().unlock();
+					}
+				}
+				finally
+				{
+					writer.abandon();
+				}
+			}
+			merge();
+		}
+	}
+
+	public long size()
+	{
+		lock.readLock().lock();
+		try
+		{
+			return live.size();
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	public int segments()
+	{
+		lock.readLock().lock();
+		try
+		{
+			return segments.size();
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	public long indexed()
+	{
+		return indexed.sum();
+	}
+
+	public long searches()
+	{
+		return searches.sum();
+	}
+
+	public long flushFailures()
+	{
+		return flushFailures.sum();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		flush();
+	}
+
+	/**
+	 * The terms of {@code text} with how often each occurs.
+	 */
+	static Map<String, Integer> terms(String text)
+	{
+		var terms = new LinkedHashMap<String, Integer>();
+		tokenize(text, (start, end) -> terms.merge(text.substring(start, end).toLowerCase(Locale.ROOT), 1, Integer::sum));
+		return terms;
+	}
+
+	/**
+	 * About {@code width} characters of {@code text} around the first of {@code terms} in it, cut at spaces.
+	 */
+	static String snippet(String text, Collection<String> terms, int width)
+	{
+		var match = new int[] {-1, -1};
+		tokenize(text, (start, end) -> {
+			if (match[0] < 0 && terms.contains(text.substring(start, end).toLowerCase(Locale.ROOT)))
+			{
+				match[0] = start;
+				match[1] = end;
+			}
+		});
+		if (match[0] < 0)
+			match[0] = match[1] = 0;
+		var from = Math.max(0, match[0] - width / 2);
+		var to = Math.min(text.length(), Math.max(match[1], from + width));
+		while (from > 0 && from < match[0] && !Character.isWhitespace(text.charAt(from - 1)))
+			from++;
+		while (to < text.length() && to > match[1] && !Character.isWhitespace(text.charAt(to)))
+			to--;
+		return (from > 0 ? "..." : "") + text.substring(from, to).replaceAll("\\s+", " ").trim()
+			+ (to < text.length() ? "..." : "");
+	}
+
+	private static void tokenize(String text, TokenConsumer consumer)
+	{
+		var start = -1;
+		for (int i = 0; i <= text.length(); i++)
+		{
+			var letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (letter && start < 0)
+				start = i;
+			else if (!letter && start >= 0)
+			{
+				if (i - start <= MAX_TERM)
+					consumer.accept(start, i);
+				start = -1;
+			}
+		}
+	}
+
+	private void tryFlush()
+	{
+		try
+		{
+			flush();
+		}
+		catch (IOException e)
+		{
+			// the notes stay searchable in memory and go out with the next flush
+			flushFailures.increment();
+		}
+	}
+
+	/**
+	 * Merges the segments of any size that has {@link #mergeFactor} of them into one of the next size, dropping the
+	 * notes and deletions that later ones replaced. Segments too large to merge under {@link #maxSegmentBytes} are
+	 * left as they are.
+	 */
+	private void merge() throws IOException
+	{
+		while (true)
+		{
+			List<Segment> full;
+			boolean[][] keep;
+			boolean[][] keepDeletes;
+			lock.readLock().lock();
+			try
+			{
+				var byLevel = new HashMap<Integer, List<Segment>>();
+				for (var segment : segments)
+				{
+					if (segment.size() <= maxSegmentBytes / mergeFactor)
+						byLevel.computeIfAbsent(segment.level, l -> new ArrayList<>()).add(segment);
+				}
+				full = byLevel.values().stream().filter(l -> l.size() >= mergeFactor).findFirst().orElse(null);
+				if (full == null)
+					return;
+				full = new ArrayList<>(full.subList(0, mergeFactor));
+				keep = new boolean[full.size()][];
+				keepDeletes = new boolean[full.size()][];
+				for (int s = 0; s < full.size(); s++)
+				{
+					var segment = full.get(s);
+					keep[s] = new boolean[segment.ids.length];
+					for (int i = 0; i < segment.ids.length; i++)
+						keep[s][i] = current(segment, i, segment.ids[i]);
+					keepDeletes[s] = new boolean[segment.deletes.length];
+					for (int i = 0; i < segment.deletes.length; i++)
+						keepDeletes[s][i] = Long.valueOf(segment.deleteSeqs[i]).equals(tombstones.get(segment.deletes[i]));
+				}
+			}
+			finally
+			{
+				lock.readLock().unlock();
+			}
+			var writer = new SegmentWriter(full.get(0).level + 1);
+			try
+			{
+				var sources = new ArrayList<Location>();
+				for (int s = 0; s < full.size(); s++)
+				{
+					var segment = full.get(s);
+					for (int i = 0; i < segment.ids.length; i++)
+					{
+						if (!keep[s][i])
+							continue;
+						var text = segment.text(i);
+						writer.add(segment.ids[i], segment.patients[i], segment.timestamps[i], segment.seqs[i], text, terms(text));
+						sources.add(new Location(segment, i, segment.seqs[i]));
+					}
+					for (int i = 0; i < segment.deletes.length; i++)
+					{
+						if (keepDeletes[s][i])
+							writer.delete(segment.deletes[i], segment.deleteSeqs[i]);
+					}
+				}
+				var merged = writer.finish();
+				lock.writeLock().lock();
+				try
+				{
+					install(merged, sources, full);
+				}
+				finally
+				{
+					lock.writeLock().unlock();
+				}
+			}
+			finally
+			{
+				writer.abandon();
+			}
+		}
+	}
+
+	/**
+	 * Swaps a written segment in for the parts its notes came from. A note replaced or deleted while the segment was
+	 * being written stays behind in it, unreachable, and is dropped by the next merge.
+	 */
+	private void install(Segment segment, List<Location> sources, List<Segment> replaced) throws IOException
+	{
+		for (int i = 0; i < segment.ids.length; i++)
+		{
+			var source = sources.get(i);
+			if (current(source.part(), source.doc(), segment.ids[i]))
+				live.put(segment.ids[i], new Location(segment, i, segment.seqs[i]));
+		}
+		segments.removeAll(replaced);
+		segments.add(segment);
+		for (var old : replaced)
+			Files.deleteIfExists(old.path);
+	}
+
+	private void seal()
+	{
+		if (buffer.notes.isEmpty() && buffer.deletes.isEmpty())
+			return;
+		sealed.add(buffer);
+		buffer = new Buffer();
+	}
+
+	private boolean current(Part part, int doc, String id)
+	{
+		var location = live.get(id);
+		return location != null && location.part() == part && location.doc() == doc;
+	}
+
+	private void resolve(String id, long seq, Location location)
+	{
+		this.seq = Math.max(this.seq, seq);
+		var current = live.get(id);
+		var latest = current != null ? current.seq() : tombstones.getOrDefault(id, Long.MIN_VALUE);
+		if (seq <= latest)
+			return;
+		if (location == null)
+		{
+			live.remove(id);
+			tombstones.put(id, seq);
+		}
+		else
+		{
+			tombstones.remove(id);
+			live.put(id, location);
+		}
+	}
+
+	public static record Result(int total, List<Hit> hits) {}
+
+	public static record Hit(String id, String patient, Long timestamp, double score, String snippet) {}
+
+	private static record Note(String id, String patient, long timestamp, long seq, String text) {}
+
+	private static record Location(Part part, int doc, long seq) {}
+
+	private static record Match(Part part, int doc, double score, long timestamp) {}
+
+	private static record Postings(int[] docs, int[] freqs) {}
+
+	@FunctionalInterface
+	private interface TokenConsumer
+	{
+		void accept(int start, int end);
+	}
+
+	private abstract static class Part
+	{
+		abstract String id(int doc);
+
+		abstract String patient(int doc);
+
+		abstract long timestamp(int doc);
+
+		abstract String text(int doc) throws IOException;
+
+		/**
+		 * The notes holding {@code term} in ascending order, null when none does.
+		 */
+		abstract Postings postings(String term);
+	}
+
+	private static class PostingsBuilder
+	{
+		int[] docs = new int[4];
+		int[] freqs = new int[4];
+		int size;
+
+		void add(int doc, int freq)
+		{
+			if (size == docs.length)
+			{
+				docs = Arrays.copyOf(docs, size * 2);
+				freqs = Arrays.copyOf(freqs, size * 2);
+			}
+			docs[size] = doc;
+			freqs[size++] = freq;
+		}
+
+		Postings build()
+		{
+			return new Postings(Arrays.copyOf(docs, size), Arrays.copyOf(freqs, size));
+		}
+	}
+
+	/**
+	 * The notes indexed since the last flush, searched in place.
+	 */
+	private static class Buffer extends Part
+	{
+		final List<Note> notes = new ArrayList<>();
+		final List<Map<String, Integer>> noteTerms = new ArrayList<>();
+		final Map<String, PostingsBuilder> postings = new HashMap<>();
+		final Map<String, Long> deletes = new LinkedHashMap<>();
+		// at least the size of the segment written from the buffer
+		long bytes;
+
+		int add(Note note, Map<String, Integer> terms)
+		{
+			var doc = notes.size();
+			notes.add(note);
+			// UTF-8 text, which deflating won't grow by much, a table row, and a posting and dictionary entry a term
+			bytes += 3L * note.text().length() + 64 + note.id().length()
+				+ (note.patient() == null ? 0 : note.patient().length());
+			for (var term : terms.keySet())
+				bytes += term.length() + 32;
+			noteTerms.add(terms);
+			for (var term : terms.entrySet())
+				postings.computeIfAbsent(term.getKey(), t -> new PostingsBuilder()).add(doc, term.getValue());
+			return doc;
+		}
+
+		Map<String, Integer> terms(int doc)
+		{
+			return noteTerms.get(doc);
+		}
+
+		@Override
+		String id(int doc)
+		{
+			return notes.get(doc).id();
+		}
+
+		@Override
+		String patient(int doc)
+		{
+			return notes.get(doc).patient();
+		}
+
+		@Override
+		long timestamp(int doc)
+		{
+			return notes.get(doc).timestamp();
+		}
+
+		@Override
+		String text(int doc)
+		{
+			return notes.get(doc).text();
+		}
+
+		@Override
+		Postings postings(String term)
+		{
+			var builder = postings.get(term);
+			return builder == null ? null : builder.build();
+		}
+	}
+
+	/**
+	 * An immutable segment file: the deflated note texts, then the note table, the deletions, the postings and the
+	 * term dictionary, and a trailer locating them. The file is memory mapped; the tables are read into memory.
+	 * Segments are kept under {@link #maxSegmentBytes}, so every offset in one fits an int.
+	 */
+	private static class Segment extends Part
+	{
+		final Path path;
+		final ByteBuffer map;
+		final int level;
+		final String[] ids;
+		final String[] patients;
+		final long[] timestamps;
+		final long[] seqs;
+		final long[] textAt;
+		final int[] textLength;
+		final int[] rawLength;
+		final String[] deletes;
+		final long[] deleteSeqs;
+		final Map<String, long[]> terms = new HashMap<>();
+
+		Segment(Path path) throws IOException
+		{
+			this.path = path;
+			try (var ch = FileChannel.open(path, StandardOpenOption.READ))
+			{
+				map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			}
+			var trailer = map.limit() - TRAILER;
+			if (trailer < 0 || map.getInt(trailer + 36) != MAGIC || map.getInt(trailer + 32) != VERSION)
+				throw new IOException("Not an index segment: " + path);
+			var notesAt = map.getLong(trailer);
+			var deletesAt = map.getLong(trailer + 8);
+			var termsAt = map.getLong(trailer + 16);
+			level = map.getInt(trailer + 24);
+			var count = map.getInt(trailer + 28);
+
+			var in = section(notesAt, deletesAt);
+			ids = new String[count];
+			patients = new String[count];
+			timestamps = new long[count];
+			seqs = new long[count];
+			textAt = new long[count];
+			textLength = new int[count];
+			rawLength = new int[count];
+			for (int i = 0; i < count; i++)
+			{
+				ids[i] = in.readUTF();
+				patients[i] = in.readUTF();
+				timestamps[i] = in.readLong();
+				seqs[i] = in.readLong();
+				textAt[i] = in.readLong();
+				textLength[i] = in.readInt();
+				rawLength[i] = in.readInt();
+			}
+			in = section(deletesAt, termsAt);
+			deletes = new String[in.readInt()];
+			deleteSeqs = new long[deletes.length];
+			for (int i = 0; i < deletes.length; i++)
+			{
+				deletes[i] = in.readUTF();
+				deleteSeqs[i] = in.readLong();
+			}
+			in = section(termsAt, trailer);
+			var termCount = in.readInt();
+			for (int i = 0; i < termCount; i++)
+				terms.put(in.readUTF(), new long[] {in.readLong(), in.readInt(), in.readInt()});
+		}
+
+		long size()
+		{
+			return map.capacity();
+		}
+
+		@Override
+		String id(int doc)
+		{
+			return ids[doc];
+		}
+
+		@Override
+		String patient(int doc)
+		{
+			return patients[doc];
+		}
+
+		@Override
+		long timestamp(int doc)
+		{
+			return timestamps[doc];
+		}
+
+		@Override
+		String text(int doc) throws IOException
+		{
+			var data = new byte[rawLength[doc]];
+			var inflater = new Inflater();
+			try
+			{
+				inflater.setInput(map.slice((int) textAt[doc], textLength[doc]));
+				var n = 0;
+				while (n < data.length && !inflater.finished() && !inflater.needsInput())
+					n += inflater.inflate(data, n, data.length - n);
+				if (n != data.length)
+					throw new IOException("Note " + ids[doc] + " in " + path + " is truncated");
+			}
+			catch (DataFormatException e)
+			{
+				throw new IOException("Note " + ids[doc] + " in " + path + " is corrupt", e);
+			}
+			finally
+			{
+				inflater.end();
+			}
+			return new String(data, StandardCharsets.UTF_8);
+		}
+
+		@Override
+		Postings postings(String term)
+		{
+			var entry = terms.get(term);
+			if (entry == null)
+				return null;
+			var in = map.slice((int) entry[0], (int) entry[1]);
+			var docs = new int[(int) entry[2]];
+			var freqs = new int[docs.length];
+			var doc = 0;
+			for (int i = 0; i < docs.length; i++)
+			{
+				doc += readVarint(in);
+				docs[i] = doc;
+				freqs[i] = readVarint(in);
+			}
+			return new Postings(docs, freqs);
+		}
+
+		private DataInputStream section(long from, long to)
+		{
+			var bytes = new byte[(int) (to - from)];
+			map.get((int) from, bytes);
+			return new DataInputStream(new ByteArrayInputStream(bytes));
+		}
+
+		private static int readVarint(ByteBuffer in)
+		{
+			int value = 0;
+			for (int shift = 0; ; shift += 7)
+			{
+				var b = in.get();
+				value |= (b & 0x7f) << shift;
+				if (b >= 0)
+					return value;
+			}
+		}
+	}
+
+	/**
+	 * Streams notes into a new segment file, keeping only their table and postings in memory, and moves it into place
+	 * when finished.
+	 */
+	private class SegmentWriter
+	{
+		final int level;
+		final Path tmp;
+		final FileChannel out;
+		final ByteArrayOutputStream notes = new ByteArrayOutputStream();
+		final DataOutputStream notesOut = new DataOutputStream(notes);
+		final ByteArrayOutputStream deletes = new ByteArrayOutputStream();
+		final DataOutputStream deletesOut = new DataOutputStream(deletes);
+		final Map<String, PostingsBuilder> postings = new HashMap<>();
+		final byte[] buffer = new byte[16 * 1024];
+		int count;
+		int deleteCount;
+		boolean finished;
+
+		SegmentWriter(int level) throws IOException
+		{
+			this.level = level;
+			this.tmp = dir.resolve(String.format("%08d", nextSegment) + SUFFIX + ".tmp");
+			this.out = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		}
+
+		void add(String id, String patient, long timestamp, long seq, String text, Map<String, Integer> terms)
+			throws IOException
+		{
+			var raw = text.getBytes(StandardCharsets.UTF_8);
+			var compressed = new ByteArrayOutputStream(raw.length / 3 + 16);
+			var deflater = new Deflater();
+			try
+			{
+				deflater.setInput(raw);
+				deflater.finish();
+				while (!deflater.finished())
+					compressed.write(buffer, 0, deflater.deflate(buffer));
+			}
+			finally
+			{
+				deflater.end();
+			}
+			notesOut.writeUTF(id);
+			notesOut.writeUTF(patient == null ? "" : patient);
+			notesOut.writeLong(timestamp);
+			notesOut.writeLong(seq);
+			notesOut.writeLong(out.position());
+			notesOut.writeInt(compressed.size());
+			notesOut.writeInt(raw.length);
+			write(compressed.toByteArray());
+			for (var term : terms.entrySet())
+				postings.computeIfAbsent(term.getKey(), t -> new PostingsBuilder()).add(count, term.getValue());
+			count++;
+		}
+
+		void delete(String id, long seq) throws IOException
+		{
+			deletesOut.writeUTF(id);
+			deletesOut.writeLong(seq);
+			deleteCount++;
+		}
+
+		Segment finish() throws IOException
+		{
+			var notesAt = out.position();
+			write(notes.toByteArray());
+			var deletesAt = out.position();
+			var header = new ByteArrayOutputStream();
+			new DataOutputStream(header).writeInt(deleteCount);
+			write(header.toByteArray());
+			write(deletes.toByteArray());
+
+			var dictionary = new ByteArrayOutputStream();
+			var dictionaryOut = new DataOutputStream(dictionary);
+			var sorted = new ArrayList<>(postings.keySet());
+			sorted.sort(null);
+			dictionaryOut.writeInt(sorted.size());
+			var encoded = new ByteArrayOutputStream();
+			for (var term : sorted)
+			{
+				var list = postings.get(term);
+				encoded.reset();
+				var previous = 0;
+				for (int i = 0; i < list.size; i++)
+				{
+					writeVarint(encoded, list.docs[i] - previous);
+					writeVarint(encoded, list.freqs[i]);
+					previous = list.docs[i];
+				}
+				dictionaryOut.writeUTF(term);
+				dictionaryOut.writeLong(out.position());
+				dictionaryOut.writeInt(encoded.size());
+				dictionaryOut.writeInt(list.size);
+				write(encoded.toByteArray());
+			}
+			var termsAt = out.position();
+			write(dictionary.toByteArray());
+			var trailer = ByteBuffer.allocate(TRAILER);
+			trailer.putLong(notesAt).putLong(deletesAt).putLong(termsAt).putInt(level).putInt(count)
+				.putInt(VERSION).putInt(MAGIC).flip();
+			while (trailer.hasRemaining())
+				out.write(trailer);
+			out.force(false);
+			out.close();
+			var path = dir.resolve(String.format("%08d", nextSegment++) + SUFFIX);
+			Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+			finished = true;
+			return new Segment(path);
+		}
+
+		/**
+		 * Removes the unfinished file of a segment that failed.
+		 */
+		void abandon() throws IOException
+		{
+			if (finished)
+				return;
+			out.close();
+			Files.deleteIfExists(tmp);
+		}
+
+		private void write(byte[] bytes) throws IOException
+		{
+			var b = ByteBuffer.wrap(bytes);
+			while (b.hasRemaining())
+				out.write(b);
+		}
+
+		private static void writeVarint(ByteArrayOutputStream out, int value)
+		{
+			while ((value & ~0x7f) != 0)
+			{
+				out.write((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			out.write(value);
+		}
+	}
+}
@@ -34,6 +34,10 @@ public class ParameterSource
 		{
 			return (T) Integer.valueOf(v);
 		}
+		if (cls == Boolean.class || cls == boolean.class)
+		{
+			return (T) Boolean.valueOf(v);
+		}
 		if (cls == String.class)
 		{
 			return (T) v;
@@ -0,0 +1,86 @@
+package org.emerse.fhir;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+public class PatientCache
+{
+	private final int maxSize;
+	private final long ttlMillis;
+	private final long negativeTtlMillis;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final Map<String, Entry> entries;
+
+	public PatientCache(int maxSize, long ttlMillis, long negativeTtlMillis)
+	{
+		this.maxSize = maxSize;
+		this.ttlMillis = ttlMillis;
+		this.negativeTtlMillis = negativeTtlMillis;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+			{
+				return size() > PatientCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached entry for the key, or null on a miss. A cached unknown patient is returned as an entry whose
+	 * patient is null.
+	 */
+	public Entry get(String key)
+	{
+		Entry entry;
+		synchronized (entries)
+		{
+			entry = entries.get(key);
+			if (entry != null && entry.expires < System.currentTimeMillis())
+			{
+				entries.remove(key);
+				entry = null;
+			}
+		}
+		(entry == null ? misses : hits).increment();
+		return entry;
+	}
+
+	public void put(String key, PatientInfo patient)
+	{
+		var ttl = patient == null ? negativeTtlMillis : ttlMillis;
+		if (ttl <= 0)
+		{
+			return;
+		}
+		synchronized (entries)
+		{
+			entries.put(key, new Entry(patient, System.currentTimeMillis() + ttl));
+		}
+	}
+
+	public int size()
+	{
+		synchronized (entries)
+		{
+			return entries.size();
+		}
+	}
+
+	public long hits()
+	{
+		return hits.sum();
+	}
+
+	public long misses()
+	{
+		return misses.sum();
+	}
+
+	public static record PatientInfo(String fhirId, List<String> names) {}
+
+	public static record Entry(PatientInfo patient, long expires) {}
+}
@@ -0,0 +1,167 @@
+package org.emerse.fhir;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits a DocumentReference period search into sub-ranges that are searched side by side. Range sizes follow the note
+ * density seen so far, kept per year of age, so each range is expected to hold about {@code targetNotes}; a history
+ * expected to fit in one range is searched in one go as before.
+ */
+public class PeriodPartitioner
+{
+	public int maxPartitions = 8;
+	public int targetNotes = 500;
+	public int minDays = 30;
+
+	private static final int YEARS = 50;
+	// weight of one full year of new observations against the running density
+	private static final double ALPHA = 0.2;
+
+	// notes per day by age in years, NaN until something of that age has been searched
+	private final double[] density = new double[YEARS];
+
+	public PeriodPartitioner()
+	{
+		Arrays.fill(density, Double.NaN);
+	}
+
+	/**
+	 * The ranges to search for notes from {@code from} on; one open-ended range when splitting isn't worth it.
+	 */
+	public List<Range> split(LocalDate from, LocalDate today)
+	{
+		var start = from.toEpochDay();
+		var end = today.toEpochDay() + 1;
+		var days = end - start;
+		var most = (int) Math.min(maxPartitions, days / Math.max(1, minDays));
+		if (most < 2)
+		{
+			return List.of(new Range(from, null));
+		}
+		var rates = rates();
+		var todayEpoch = today.toEpochDay();
+		var total = 0.0;
+		for (var day = start; day < end; day++)
+		{
+			total += rates[age(todayEpoch, day)];
+		}
+		int parts;
+		if (Double.isNaN(total))
+		{
+			// nothing learned yet: equal slices, which the first searches then teach
+			parts = most;
+			Arrays.fill(rates, 1);
+			total = days;
+		}
+		else
+		{
+			parts = (int) Math.min(most, Math.ceil(total / Math.max(1, targetNotes)));
+		}
+		if (parts < 2)
+		{
+			return List.of(new Range(from, null));
+		}
+		var result = new ArrayList<Range>(parts);
+		var rangeStart = start;
+		var seen = 0.0;
+		for (long day = start; day < end && result.size() < parts - 1; day++)
+		{
+			seen += rates[age(todayEpoch, day)];
+			if (seen >= total * (result.size() + 1) / parts && day + 1 - rangeStart >= minDays && end - day - 1 >= minDays)
+			{
+				result.add(new Range(LocalDate.ofEpochDay(rangeStart), LocalDate.ofEpochDay(day + 1)));
+				rangeStart = day + 1;
+			}
+		}
+		result.add(new Range(LocalDate.ofEpochDay(rangeStart), null));
+		return result;
+	}
+
+	/**
+	 * Folds the number of notes a range turned out to hold into the density of the years it covers.
+	 */
+	public synchronized void observe(Range range, int notes, LocalDate today)
+	{
+		var start = range.from().toEpochDay();
+		var end = range.to() == null ? today.toEpochDay() + 1 : range.to().toEpochDay();
+		if (end <= start)
+		{
+			return;
+		}
+		var rate = (double) notes / (end - start);
+		var todayEpoch = today.toEpochDay();
+		// walk the range a year of age at a time
+		for (var day = start; day < end; )
+		{
+			var age = age(todayEpoch, day);
+			var next = age == 0 ? end : Math.min(end, todayEpoch - age * 365L + 1);
+			if (next <= day)
+			{
+				next = end;
+			}
+			var weight = ALPHA * Math.min(1.0, (next - day) / 365.0);
+			density[age] = Double.isNaN(density[age]) ? rate : density[age] + weight * (rate - density[age]);
+			day = next;
+		}
+	}
+
+	/**
+	 * The leading date of an {@code after} parameter, or null when it isn't one.
+	 */
+	public static LocalDate parse(String after)
+	{
+		if (after == null || after.length() < 10)
+		{
+			return null;
+		}
+		try
+		{
+			return LocalDate.parse(after.substring(0, 10));
+		}
+		catch (DateTimeParseException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * The density by age, with years not seen yet assumed to look like the average of those that have been.
+	 */
+	private synchronized double[] rates()
+	{
+		var known = 0.0;
+		var count = 0;
+		for (var d : density)
+		{
+			if (!Double.isNaN(d))
+			{
+				known += d;
+				count++;
+			}
+		}
+		var fallback = count == 0 ? Double.NaN : known / count;
+		var rates = density.clone();
+		for (int i = 0; i < rates.length; i++)
+		{
+			if (Double.isNaN(rates[i]))
+			{
+				rates[i] = fallback;
+			}
+		}
+		return rates;
+	}
+
+	private static int age(long today, long day)
+	{
+		return (int) Math.max(0, Math.min(YEARS - 1, (today - day) / 365));
+	}
+
+	/**
+	 * Notes from {@code from} up to but not including {@code to}, or without an upper bound when {@code to} is null.
+	 */
+	public static record Range(LocalDate from, LocalDate to) {}
+}
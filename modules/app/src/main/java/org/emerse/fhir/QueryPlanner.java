@@ -0,0 +1,119 @@
+package org.emerse.fhir;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.StringType;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Decides how many round trips a patient's notes take, from what the server's CapabilityStatement says it supports.
+ * When DocumentReference can {@code _include} its patient, an uncached patient is found and its first page of notes
+ * read with one search, chained through {@code patient.identifier} for an MRN. {@code _count} sizes the pages, and
+ * {@code _sort} lets a search be split by period and its ranges merged by date.
+ */
+public class QueryPlanner
+{
+	public boolean include;
+	public volatile boolean chain;
+	public boolean count;
+	public boolean sort;
+	public int pageSize = 100;
+
+	public static QueryPlanner discover(IGenericClient client)
+	{
+		var planner = new QueryPlanner();
+		var patientIdentifier = true;
+		var capabilities = client.capabilities().ofType(CapabilityStatement.class).execute();
+		for (var rest : capabilities.getRest())
+		{
+			for (var resource : rest.getResource())
+			{
+				var params = resource.getSearchParam().stream()
+					.map(CapabilityStatement.CapabilityStatementRestResourceSearchParamComponent::getName)
+					.collect(Collectors.toSet());
+				if (resource.getType().equals("DocumentReference"))
+				{
+					var includes = resource.getSearchInclude().stream()
+						.map(StringType::getValue)
+						.collect(Collectors.toSet());
+					planner.include = includes.contains("DocumentReference:patient") || includes.contains("*");
+					planner.count = params.contains("_count") || rest.getSearchParam().stream()
+						.anyMatch(p -> "_count".equals(p.getName()));
+					planner.sort = params.contains("_sort") || rest.getSearchParam().stream()
+						.anyMatch(p -> "_sort".equals(p.getName()));
+					// R4 can't declare chaining, so it is tried when the parts exist and dropped if the server refuses
+					planner.chain = params.contains("patient");
+				}
+				else if (resource.getType().equals("Patient"))
+				{
+					patientIdentifier = params.isEmpty() || params.contains("identifier");
+				}
+			}
+		}
+		planner.chain &= patientIdentifier;
+		return planner;
+	}
+
+	public boolean combines(String fhirId)
+	{
+		return include && (fhirId != null || chain);
+	}
+
+	/**
+	 * The DocumentReference search that also returns the patient, by FHIR id or else chained through the MRN.
+	 */
+	public String combinedSearch(String fhirId, String mrn, String after)
+	{
+		var url = new StringBuilder("DocumentReference?");
+		if (fhirId != null)
+			url.append("patient=").append(encode(fhirId));
+		else
+			url.append("patient.identifier=").append(encode("MRN|" + mrn));
+		if (after != null)
+			url.append("&period=ge").append(encode(after));
+		url.append("&_include=DocumentReference:patient");
+		if (count)
+			url.append("&_count=").append(pageSize);
+		return url.toString();
+	}
+
+	public String documentSearch(String fhirId, String after)
+	{
+		var url = new StringBuilder("DocumentReference?patient=").append(encode(fhirId));
+		if (after != null)
+			url.append("&period=ge").append(encode(after));
+		if (count)
+			url.append("&_count=").append(pageSize);
+		return url.toString();
+	}
+
+	/**
+	 * Stops chaining after the server rejects a chained search, so later requests go back to two round trips.
+	 */
+	public boolean rejected(BaseServerResponseException e, String fhirId)
+	{
+		// calls chained before the first refusal came back fall back too, not just the one that switched it off
+		if (fhirId == null && Set.of(400, 403, 404, 501).contains(e.getStatusCode()))
+		{
+			chain = false;
+			return true;
+		}
+		return false;
+	}
+
+	private static String encode(String value)
+	{
+		return URLEncoder.encode(value, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "include=" + include + ", chain=" + chain + ", count=" + (count ? pageSize : "off") + ", sort=" + sort;
+	}
+}
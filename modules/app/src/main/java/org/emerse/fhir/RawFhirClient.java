@@ -0,0 +1,135 @@
+package org.emerse.fhir;
+
+import ca.uhn.fhir.interceptor.api.HookParams;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.api.IRestfulClient;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Map;
+
+public class RawFhirClient
+{
+	private final IGenericClient client;
+
+	public RawFhirClient(IGenericClient client)
+	{
+		this.client = client;
+	}
+
+	public IGenericClient client()
+	{
+		return client;
+	}
+
+	public String resolve(String url)
+	{
+		if (url.startsWith("http://") || url.startsWith("https://"))
+		{
+			return url;
+		}
+		var base = client.getServerBase();
+		return base.endsWith("/") ? base + url : base + "/" + url;
+	}
+
+	public <T> T get(String url, BodyReader<T> reader) throws Exception
+	{
+		return send(RequestTypeEnum.GET, url, Map.of(), null, response -> {
+			if (response.getStatus() >= 400)
+			{
+				throw BaseServerResponseException.newInstance(response.getStatus(), response.getStatusInfo());
+			}
+			try (var in = response.readEntity())
+			{
+				return reader.read(in);
+			}
+		});
+	}
+
+	/**
+	 * Sends a request with the client's interceptors applied and hands the response, whatever its status, to
+	 * {@code reader}; the response is closed afterwards. A body is sent as FHIR JSON.
+	 */
+	public <T> T send(
+		RequestTypeEnum verb, String url, Map<String, String> headers, String body, ResponseReader<T> reader
+	) throws Exception
+	{
+		return send(verb, url, headers, body, true, reader);
+	}
+
+	/**
+	 * As {@link #send(RequestTypeEnum, String, Map, String, ResponseReader)}, but without {@code intercept} the
+	 * request goes out bare, with none of the client's credentials or extra headers.
+	 */
+	public <T> T send(
+		RequestTypeEnum verb,
+		String url,
+		Map<String, String> headers,
+		String body,
+		boolean intercept,
+		ResponseReader<T> reader
+	) throws Exception
+	{
+		var context = client.getFhirContext();
+		var http = context.getRestfulClientFactory().getHttpClient(
+			new StringBuilder(resolve(url)),
+			null,
+			null,
+			verb,
+			new ArrayList<>()
+		);
+		var request = body == null
+			? http.createGetRequest(context, EncodingEnum.JSON)
+			: http.createByteRequest(context, body, "application/fhir+json", EncodingEnum.JSON);
+		for (var header : headers.entrySet())
+		{
+			request.removeHeaders(header.getKey());
+			request.addHeader(header.getKey(), header.getValue());
+		}
+		// Run the same interceptors as the HAPI client so credentials and extra headers are applied
+		if (intercept)
+		{
+			client.getInterceptorService().callHooks(
+				Pointcut.CLIENT_REQUEST,
+				new HookParams().add(IHttpRequest.class, request).add(IRestfulClient.class, client)
+			);
+		}
+		var response = request.execute();
+		try
+		{
+			if (intercept)
+			{
+				client.getInterceptorService().callHooks(
+					Pointcut.CLIENT_RESPONSE,
+					new HookParams()
+						.add(IHttpRequest.class, request)
+						.add(IHttpResponse.class, response)
+						.add(IRestfulClient.class, client)
+				);
+			}
+			return reader.read(response);
+		}
+		finally
+		{
+			response.close();
+		}
+	}
+
+	@FunctionalInterface
+	public interface ResponseReader<T>
+	{
+		T read(IHttpResponse response) throws Exception;
+	}
+
+	@FunctionalInterface
+	public interface BodyReader<T>
+	{
+		T read(InputStream in) throws Exception;
+	}
+}
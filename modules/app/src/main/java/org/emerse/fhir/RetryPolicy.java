@@ -0,0 +1,46 @@
+package org.emerse.fhir;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * How often and how soon a patient whose extraction failed is tried again. I/O errors, timeouts, failed connections
+ * and 408, 429 and 5xx responses are retried after an exponential backoff with jitter; anything else, like a patient
+ * that doesn't exist, fails on the first attempt.
+ */
+public class RetryPolicy
+{
+	public int maxAttempts = 3;
+	public long baseDelay = 1_000;
+	public long maxDelay = 60_000;
+
+	public boolean retryable(Throwable e)
+	{
+		for (var cause = e; cause != null; cause = cause.getCause())
+		{
+			if (cause instanceof IllegalArgumentException)
+				return false;
+			if (cause instanceof BaseServerResponseException se)
+			{
+				// HAPI reports a failed connection with no status
+				var status = se.getStatusCode();
+				return status == 0 || status == 408 || status == 429 || status >= 500;
+			}
+			if (cause instanceof IOException || cause instanceof TimeoutException)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The wait before the attempt after {@code attempt}, counting from 1.
+	 */
+	public long delay(int attempt)
+	{
+		var delay = Math.min(maxDelay, baseDelay << Math.min(30, attempt - 1));
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+}
@@ -0,0 +1,69 @@
+package org.emerse.fhir;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+
+/**
+ * Term search over the notes extracted so far, {@code /search?q=<terms>}, answered from the local {@link NoteIndex}.
+ * Every term must occur; {@code patient} limits the search to some patients' FHIR ids and {@code limit} caps the
+ * hits, each with the note and patient ids, the note date and a snippet around the first match.
+ */
+public class SearchHandler extends AbstractHandler
+{
+	public NoteIndex index;
+	public JsonFactory jsonFactory;
+	public int maxLimit = 1000;
+
+	@Override
+	protected void doHandle(
+		String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response
+	) throws Exception
+	{
+		if (index == null)
+		{
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "Search needs --search-index");
+			return;
+		}
+		var source = new ParameterSource(request);
+		var q = source.getParameter("q", String.class);
+		if (q == null || q.isBlank())
+		{
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "q is required");
+			return;
+		}
+		var limit = request.getParameter("limit") == null ? 20 : source.getParameter("limit", Integer.class);
+		if (limit < 1 || limit > maxLimit)
+		{
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "limit must be between 1 and " + maxLimit);
+			return;
+		}
+		var patients = request.getParameter("patient") == null ? null : source.getParameterList("patient", String.class);
+		var result = index.search(q, patients, limit);
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType("application/json");
+		try (var g = jsonFactory.createGenerator(response.getWriter()))
+		{
+			g.writeStartObject();
+			g.writeNumberField("total", result.total());
+			g.writeFieldName("hits");
+			g.writeStartArray();
+			for (var hit : result.hits())
+			{
+				g.writeStartObject();
+				g.writeStringField("id", hit.id());
+				g.writeStringField("patient", hit.patient());
+				if (hit.timestamp() != null)
+					g.writeNumberField("timestamp", hit.timestamp());
+				else
+					g.writeNullField("timestamp");
+				g.writeNumberField("score", hit.score());
+				g.writeStringField("snippet", hit.snippet());
+				g.writeEndObject();
+			}
+			g.writeEndArray();
+			g.writeEndObject();
+		}
+	}
+}
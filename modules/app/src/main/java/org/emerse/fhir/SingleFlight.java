@@ -0,0 +1,253 @@
+package org.emerse.fhir;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces concurrent note extractions for the same key. The first caller runs the extraction and streams notes to
+ * its own sink as they arrive; callers joining while it is in flight replay the notes seen so far and then follow
+ * along, so the upstream chain runs once no matter how many responses are waiting on it. Only the first
+ * {@link #replayNotes} notes are kept for replay: once the leader is past them the flight takes no more followers,
+ * later callers run their own extraction, and notes are kept only until every follower has had them.
+ */
+public class SingleFlight
+{
+	public int replayNotes = 64;
+
+	private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+	private final LongAdder shared = new LongAdder();
+
+	public void run(String key, Extraction extraction, FhirHandler.NoteSink sink) throws Exception
+	{
+		var flight = new Flight(replayNotes);
+		// past replaying, the flight makes way for the next caller's own extraction
+		flight.closed = () -> flights.remove(key, flight);
+		while (true)
+		{
+			var existing = flights.putIfAbsent(key, flight);
+			if (existing == null)
+			{
+				break;
+			}
+			var follower = existing.join();
+			if (follower != null)
+			{
+				shared.increment();
+				existing.follow(follower, sink);
+				return;
+			}
+			flights.remove(key, existing);
+		}
+		try
+		{
+			flight.lead(extraction, sink);
+		}
+		finally
+		{
+			flights.remove(key, flight);
+		}
+	}
+
+	/**
+	 * The number of callers that were served by another caller's extraction.
+	 */
+	public long shared()
+	{
+		return shared.sum();
+	}
+
+	public int inFlight()
+	{
+		return flights.size();
+	}
+
+	@FunctionalInterface
+	public interface Extraction
+	{
+		void run(FhirHandler.NoteSink sink) throws Exception;
+	}
+
+	private static record Note(NoteDocument doc, FhirHandler.Content content) {}
+
+	private static class Follower
+	{
+		long next;
+	}
+
+	private static class Flight
+	{
+		private final int limit;
+		// notes from number first on, kept while followers may still join or haven't had them yet
+		private final List<Note> notes = new ArrayList<>();
+		private final Set<Follower> followers = new HashSet<>();
+		private long first;
+		private long count;
+		private boolean open = true;
+		private boolean done;
+		private Exception error;
+		Runnable closed;
+
+		Flight(int limit)
+		{
+			this.limit = limit;
+		}
+
+		void lead(Extraction extraction, FhirHandler.NoteSink sink) throws Exception
+		{
+			var sinkError = new Exception[1];
+			try
+			{
+				extraction.run(new FhirHandler.NoteSink()
+				{
+					@Override
+					public void patient(String fhirId, List<String> names)
+					{
+					}
+
+					@Override
+					public void note(NoteDocument doc, FhirHandler.Content content) throws Exception
+					{
+						add(new Note(doc, content));
+						if (sinkError[0] != null)
+						{
+							return;
+						}
+						try
+						{
+							sink.note(doc, content);
+						}
+						catch (Exception e)
+						{
+							// the leader's client went away; keep extracting for the followers
+							sinkError[0] = e;
+						}
+					}
+				});
+				finish(null);
+			}
+			catch (Exception e)
+			{
+				finish(e);
+				throw e;
+			}
+			if (sinkError[0] != null)
+			{
+				throw sinkError[0];
+			}
+		}
+
+		/**
+		 * Starts following from the first note, or returns null once the flight is past replaying.
+		 */
+		synchronized Follower join()
+		{
+			if (!open)
+			{
+				return null;
+			}
+			var follower = new Follower();
+			followers.add(follower);
+			return follower;
+		}
+
+		void follow(Follower follower, FhirHandler.NoteSink sink) throws Exception
+		{
+			try
+			{
+				while (true)
+				{
+					Note note;
+					synchronized (this)
+					{
+						while (follower.next == count && !done)
+						{
+							wait();
+						}
+						if (follower.next == count)
+						{
+							if (error != null)
+							{
+								throw error;
+							}
+							return;
+						}
+						note = notes.get((int) (follower.next++ - first));
+						trim();
+					}
+					sink.note(note.doc(), note.content());
+				}
+			}
+			finally
+			{
+				synchronized (this)
+				{
+					followers.remove(follower);
+					trim();
+				}
+			}
+		}
+
+		private void add(Note note) throws InterruptedException
+		{
+			Runnable close = null;
+			synchronized (this)
+			{
+				if (open && count == limit)
+				{
+					open = false;
+					close = closed;
+					trim();
+				}
+				// a follower that falls a buffer behind holds the leader back
+				while (!open && notes.size() >= limit && !followers.isEmpty())
+				{
+					wait();
+				}
+				if (open || !followers.isEmpty())
+				{
+					notes.add(note);
+				}
+				else
+				{
+					first++;
+				}
+				count++;
+				notifyAll();
+			}
+			if (close != null)
+			{
+				close.run();
+			}
+		}
+
+		/**
+		 * Drops the notes every follower has had, once no new follower can need them.
+		 */
+		private void trim()
+		{
+			if (open)
+			{
+				return;
+			}
+			var keep = count;
+			for (var follower : followers)
+			{
+				keep = Math.min(keep, follower.next);
+			}
+			notes.subList(0, (int) (keep - first)).clear();
+			first = keep;
+			notifyAll();
+		}
+
+		private synchronized void finish(Exception error)
+		{
+			this.error = error;
+			done = true;
+			notifyAll();
+		}
+	}
+}
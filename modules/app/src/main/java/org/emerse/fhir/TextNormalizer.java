@@ -0,0 +1,573 @@
+package org.emerse.fhir;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Converts note content to plain text, picking a {@link Converter} by the content's media type: HTML and RTF lose
+ * their markup in one streaming pass over pooled buffers, plain text passes through, and types without a converter
+ * are left as they are. Converted content is UTF-8 {@code text/plain}. {@link #sink} runs the conversions of a
+ * request's notes on {@link #executor}, a pool of their own so the CPU work doesn't hold the I/O threads, and hands
+ * the notes on in their original order.
+ */
+public class TextNormalizer
+{
+	public static final String PLAIN_TEXT = "text/plain; charset=UTF-8";
+
+	public ExecutorService executor;
+	public int window = 16;
+	public Metrics metrics = new Metrics();
+
+	private static final int BUFFER = 8192;
+	private static final int MAX_POOLED_OUTPUT = 1 << 20;
+
+	private final Map<String, Converter> converters = new ConcurrentHashMap<>();
+	private final BlockingQueue<Buffers> pool = new ArrayBlockingQueue<>(64);
+
+	public TextNormalizer()
+	{
+		register("text/html", TextNormalizer::html);
+		register("application/xhtml+xml", TextNormalizer::html);
+		register("text/rtf", TextNormalizer::rtf);
+		register("application/rtf", TextNormalizer::rtf);
+		register("text/plain", TextNormalizer::plain);
+	}
+
+	/**
+	 * Sets the converter for a media type, given without parameters, replacing any there was.
+	 */
+	public void register(String mediaType, Converter converter)
+	{
+		converters.put(mediaType.toLowerCase(Locale.ROOT), converter);
+	}
+
+	/**
+	 * The content as plain text; null, {@link FhirHandler#MISSING} and content no converter takes come back as they
+	 * are.
+	 */
+	public FhirHandler.Content normalize(FhirHandler.Content content) throws IOException
+	{
+		if (content == null || content == FhirHandler.MISSING || content.type() == null)
+			return content;
+		var converter = converters.get(mediaType(content.type()));
+		if (converter == null)
+			return content;
+		var start = System.nanoTime();
+		var buffers = pool.poll();
+		if (buffers == null)
+			buffers = new Buffers();
+		try (var in = content.reader())
+		{
+			converter.convert(new Chars(in, buffers.in), buffers.out);
+			return new FhirHandler.Content(buffers.out.toString().getBytes(StandardCharsets.UTF_8), PLAIN_TEXT);
+		}
+		finally
+		{
+			buffers.out.setLength(0);
+			// an outsized note's output buffer isn't worth keeping
+			if (buffers.out.capacity() <= MAX_POOLED_OUTPUT)
+				pool.offer(buffers);
+			metrics.normalize.recordSince(start);
+		}
+	}
+
+	/**
+	 * A sink that hands {@code sink} the notes it gets with their content normalized, converting up to
+	 * {@link #window} of them at once. {@link Pipeline#finish} delivers the last ones.
+	 */
+	public Pipeline sink(FhirHandler.NoteSink sink)
+	{
+		return new Pipeline(sink);
+	}
+
+	static String mediaType(String type)
+	{
+		var semicolon = type.indexOf(';');
+		return (semicolon < 0 ? type : type.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+	}
+
+	public class Pipeline implements FhirHandler.NoteSink
+	{
+		private final FhirHandler.NoteSink sink;
+		private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+
+		private Pipeline(FhirHandler.NoteSink sink)
+		{
+			this.sink = sink;
+		}
+
+		@Override
+		public synchronized void patient(String fhirId, List<String> names) throws Exception
+		{
+			finish();
+			sink.patient(fhirId, names);
+		}
+
+		@Override
+		public void note(NoteDocument doc, FhirHandler.Content content) throws Exception
+		{
+			note(doc, content, null);
+		}
+
+		/**
+		 * Hands the note on like {@link #note(NoteDocument, FhirHandler.Content)} and then gives {@code converted}
+		 * the content it was handed on with, so it needn't be converted again.
+		 */
+		public synchronized void note(NoteDocument doc, FhirHandler.Content content, Converted converted)
+			throws Exception
+		{
+			if (executor == null)
+			{
+				deliver(doc, normalize(content), converted);
+				return;
+			}
+			pending.add(new Pending(doc, executor.submit(() -> normalize(content)), converted));
+			while (pending.size() >= window || !pending.isEmpty() && pending.peek().content().isDone())
+				deliver(pending.poll());
+		}
+
+		@Override
+		public synchronized void deleted(String id) throws Exception
+		{
+			finish();
+			sink.deleted(id);
+		}
+
+		/**
+		 * Waits for the notes still converting and delivers them.
+		 */
+		public synchronized void finish() throws Exception
+		{
+			while (!pending.isEmpty())
+				deliver(pending.poll());
+		}
+
+		private void deliver(Pending next) throws Exception
+		{
+			FhirHandler.Content content;
+			try
+			{
+				content = next.content().get();
+			}
+			catch (ExecutionException e)
+			{
+				for (var p : pending)
+					p.content().cancel(true);
+				pending.clear();
+				if (e.getCause() instanceof Exception ex)
+					throw ex;
+				throw e;
+			}
+			deliver(next.doc(), content, next.converted());
+		}
+
+		private void deliver(NoteDocument doc, FhirHandler.Content content, Converted converted) throws Exception
+		{
+			sink.note(doc, content);
+			if (converted != null)
+				converted.accept(doc, content);
+		}
+	}
+
+	@FunctionalInterface
+	public interface Converted
+	{
+		void accept(NoteDocument doc, FhirHandler.Content content) throws Exception;
+	}
+
+	@FunctionalInterface
+	public interface Converter
+	{
+		void convert(Chars in, StringBuilder out) throws IOException;
+	}
+
+	/**
+	 * Reads a note a pooled buffer at a time, with one character of pushback.
+	 */
+	public static class Chars
+	{
+		private final Reader in;
+		private final char[] buffer;
+		private int position;
+		private int length;
+		private int pushed = -1;
+
+		Chars(Reader in, char[] buffer)
+		{
+			this.in = in;
+			this.buffer = buffer;
+		}
+
+		public int read() throws IOException
+		{
+			if (pushed >= 0)
+			{
+				var c = pushed;
+				pushed = -1;
+				return c;
+			}
+			if (position == length)
+			{
+				length = in.read(buffer, 0, buffer.length);
+				position = 0;
+				if (length <= 0)
+				{
+					length = 0;
+					return -1;
+				}
+			}
+			return buffer[position++];
+		}
+
+		public void unread(int c)
+		{
+			pushed = c;
+		}
+	}
+
+	private static class Buffers
+	{
+		final char[] in = new char[BUFFER];
+		final StringBuilder out = new StringBuilder(BUFFER);
+	}
+
+	private static record Pending(NoteDocument doc, Future<FhirHandler.Content> content, Converted converted) {}
+
+	private static void plain(Chars in, StringBuilder out) throws IOException
+	{
+		for (int c; (c = in.read()) >= 0; )
+			out.append((char) c);
+	}
+
+	// tags that end a line of text
+	private static final Set<String> BLOCKS = Set.of(
+		"p", "div", "br", "li", "ul", "ol", "tr", "table", "h1", "h2", "h3", "h4", "h5", "h6", "hr", "pre",
+		"blockquote", "section", "article", "header", "footer", "title", "dt", "dd"
+	);
+	private static final Set<String> CELLS = Set.of("td", "th");
+	private static final Map<String, String> ENTITIES = Map.of(
+		"amp", "&", "lt", "<", "gt", ">", "quot", "\"", "apos", "'", "nbsp", " ", "ndash", "-", "mdash", "-",
+		"bull", "*"
+	);
+
+	/**
+	 * Text and entities are kept, tags are dropped with block tags ending a line, and comments, scripts and styles go
+	 * whole. Runs of whitespace collapse to one space.
+	 */
+	static void html(Chars in, StringBuilder out) throws IOException
+	{
+		var name = new StringBuilder();
+		String skipUntil = null;
+		for (int c; (c = in.read()) >= 0; )
+		{
+			if (c == '<')
+			{
+				var next = in.read();
+				// script and style content is only ended by their closing tag
+				if (skipUntil != null && next != '/')
+				{
+					in.unread(next);
+					continue;
+				}
+				if (next == '!')
+				{
+					skipDeclaration(in);
+					continue;
+				}
+				var closing = next == '/';
+				if (!closing)
+					in.unread(next);
+				// the name runs up to the first character that can't be in one; attributes are skipped
+				name.setLength(0);
+				var named = false;
+				var quote = 0;
+				for (int t; (t = in.read()) >= 0; )
+				{
+					if (quote != 0)
+					{
+						if (t == quote)
+							quote = 0;
+					}
+					else if (t == '"' || t == '\'')
+						quote = t;
+					else if (t == '>')
+						break;
+					else if (!named && Character.isLetterOrDigit(t) && name.length() < 16)
+						name.append((char) Character.toLowerCase(t));
+					else
+						named = true;
+				}
+				var tag = name.toString();
+				if (skipUntil != null)
+				{
+					if (closing && tag.equals(skipUntil))
+						skipUntil = null;
+					continue;
+				}
+				if (!closing && (tag.equals("script") || tag.equals("style")))
+					skipUntil = tag;
+				else if (BLOCKS.contains(tag))
+					newline(out);
+				else if (CELLS.contains(tag))
+					space(out);
+				continue;
+			}
+			if (skipUntil != null)
+				continue;
+			if (c == '&')
+			{
+				entity(in, out);
+				continue;
+			}
+			if (Character.isWhitespace(c))
+				space(out);
+			else
+				out.append((char) c);
+		}
+		trimEnd(out);
+	}
+
+	private static void skipDeclaration(Chars in) throws IOException
+	{
+		var a = in.read();
+		var b = a == '-' ? in.read() : -1;
+		if (a == '-' && b == '-')
+		{
+			// a comment ends at -->
+			var dashes = 0;
+			for (int c; (c = in.read()) >= 0; )
+			{
+				if (c == '>' && dashes >= 2)
+					return;
+				dashes = c == '-' ? dashes + 1 : 0;
+			}
+			return;
+		}
+		for (int c = b >= 0 ? b : a; c >= 0 && c != '>'; c = in.read())
+		{
+		}
+	}
+
+	private static void entity(Chars in, StringBuilder out) throws IOException
+	{
+		var name = new StringBuilder();
+		int c;
+		while ((c = in.read()) >= 0 && c != ';' && name.length() < 10 && (Character.isLetterOrDigit(c) || c == '#'))
+			name.append((char) c);
+		if (c != ';')
+		{
+			// not an entity after all
+			out.append('&').append(name);
+			if (c >= 0)
+				in.unread(c);
+			return;
+		}
+		var text = name.toString();
+		String value = ENTITIES.get(text);
+		if (value == null && text.startsWith("#") && text.length() > 1)
+		{
+			try
+			{
+				var code = text.charAt(1) == 'x' || text.charAt(1) == 'X'
+					? Integer.parseInt(text.substring(2), 16)
+					: Integer.parseInt(text.substring(1));
+				value = Character.isValidCodePoint(code) ? new String(Character.toChars(code)) : null;
+			}
+			catch (NumberFormatException e)
+			{
+				value = null;
+			}
+		}
+		if (value == null)
+			out.append('&').append(text).append(';');
+		else if (value.equals(" "))
+			space(out);
+		else
+			out.append(value);
+	}
+
+	// destinations whose text isn't part of the document
+	private static final Set<String> RTF_SKIPPED = Set.of(
+		"fonttbl", "colortbl", "stylesheet", "info", "pict", "object", "header", "headerl", "headerr", "headerf",
+		"footer", "footerl", "footerr", "footerf", "listtable", "listoverridetable", "rsidtbl", "generator",
+		"xmlnstbl", "themedata", "colorschememapping", "latentstyles", "datastore", "fldinst", "filetbl",
+		"revtbl", "bkmkstart", "bkmkend", "pgdsctbl", "operator", "author", "title", "company"
+	);
+
+	/**
+	 * Text is kept with paragraphs and tabs, control words and the groups of fonts, styles, pictures and the like are
+	 * dropped, and {@code \'hh} and {@code \\uN} escapes are decoded.
+	 */
+	static void rtf(Chars in, StringBuilder out) throws IOException
+	{
+		var stack = new ArrayDeque<int[]>();
+		// skipping the current group, and the characters a \\uN is followed by for readers without Unicode
+		var skip = false;
+		var uc = 1;
+		var fallback = 0;
+		var charset = Charset.forName("windows-1252");
+		var word = new StringBuilder();
+		for (int c; (c = in.read()) >= 0; )
+		{
+			switch (c)
+			{
+				case '{' -> {
+					stack.push(new int[] {skip ? 1 : 0, uc});
+					fallback = 0;
+				}
+				case '}' -> {
+					var state = stack.poll();
+					if (state != null)
+					{
+						skip = state[0] == 1;
+						uc = state[1];
+					}
+					fallback = 0;
+				}
+				case '\r', '\n' -> {
+				}
+				case '\\' -> {
+					var next = in.read();
+					if (next < 0)
+						break;
+					if (Character.isLetter(next))
+					{
+						word.setLength(0);
+						word.append((char) next);
+						int d;
+						while ((d = in.read()) >= 0 && Character.isLetter(d) && word.length() < 32)
+							word.append((char) d);
+						var negative = d == '-';
+						if (negative)
+							d = in.read();
+						var hasParam = false;
+						var param = 0;
+						while (d >= 0 && Character.isDigit(d))
+						{
+							hasParam = true;
+							param = param * 10 + (d - '0');
+							d = in.read();
+						}
+						if (negative)
+							param = -param;
+						if (d >= 0 && d != ' ')
+							in.unread(d);
+						var control = word.toString();
+						if (RTF_SKIPPED.contains(control))
+						{
+							skip = true;
+							continue;
+						}
+						if (skip)
+							continue;
+						switch (control)
+						{
+							case "par", "line", "row", "sect", "page" -> newline(out);
+							case "tab", "cell" -> out.append('\t');
+							case "emdash", "endash" -> out.append('-');
+							case "bullet" -> out.append('*');
+							case "lquote", "rquote" -> out.append('\'');
+							case "ldblquote", "rdblquote" -> out.append('"');
+							case "uc" -> uc = Math.max(0, param);
+							case "ansicpg" -> {
+								try
+								{
+									charset = Charset.forName("windows-" + param);
+								}
+								catch (IllegalArgumentException e)
+								{
+									// keep the default code page
+								}
+							}
+							case "u" -> {
+								if (hasParam)
+									out.append((char) (param < 0 ? param + 65536 : param));
+								fallback = uc;
+							}
+							default -> {
+							}
+						}
+					}
+					else if (next == '\'')
+					{
+						var hex = new char[] {(char) in.read(), (char) in.read()};
+						if (skip)
+							continue;
+						if (fallback > 0)
+						{
+							fallback--;
+							continue;
+						}
+						try
+						{
+							var b = (byte) Integer.parseInt(new String(hex), 16);
+							out.append(new String(new byte[] {b}, charset));
+						}
+						catch (NumberFormatException e)
+						{
+							// a broken escape is dropped
+						}
+					}
+					else if (next == '*')
+						skip = true;
+					else if (!skip)
+					{
+						switch (next)
+						{
+							case '\\', '{', '}' -> out.append((char) next);
+							case '~' -> out.append(' ');
+							case '_' -> out.append('-');
+							case '\r', '\n' -> newline(out);
+							default -> {
+							}
+						}
+					}
+				}
+				default -> {
+					if (skip)
+						continue;
+					if (fallback > 0)
+					{
+						fallback--;
+						continue;
+					}
+					out.append((char) c);
+				}
+			}
+		}
+		trimEnd(out);
+	}
+
+	private static void space(StringBuilder out)
+	{
+		if (out.length() > 0 && !Character.isWhitespace(out.charAt(out.length() - 1)))
+			out.append(' ');
+	}
+
+	private static void newline(StringBuilder out)
+	{
+		while (out.length() > 0 && out.charAt(out.length() - 1) == ' ')
+			out.setLength(out.length() - 1);
+		if (out.length() > 0 && out.charAt(out.length() - 1) != '\n')
+			out.append('\n');
+	}
+
+	private static void trimEnd(StringBuilder out)
+	{
+		while (out.length() > 0 && Character.isWhitespace(out.charAt(out.length() - 1)))
+			out.setLength(out.length() - 1);
+	}
+}
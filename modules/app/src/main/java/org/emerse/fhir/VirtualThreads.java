@@ -0,0 +1,110 @@
+package org.emerse.fhir;
+
+import org.eclipse.jetty.util.component.ContainerLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks up virtual thread support reflectively so the build keeps targeting Java 17; {@link #isSupported()} is true
+ * only when running on a JDK that has {@code Executors.newVirtualThreadPerTaskExecutor()}.
+ */
+public class VirtualThreads
+{
+	private static final Method NEW_EXECUTOR = findExecutorFactory();
+
+	public static boolean isSupported()
+	{
+		return NEW_EXECUTOR != null;
+	}
+
+	public static ExecutorService newExecutor()
+	{
+		if (NEW_EXECUTOR == null)
+		{
+			throw new UnsupportedOperationException(
+				"Virtual threads need Java 21 or newer, running on " + System.getProperty("java.version")
+			);
+		}
+		try
+		{
+			return (ExecutorService) NEW_EXECUTOR.invoke(null);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static ThreadPool newThreadPool()
+	{
+		return new VirtualThreadPool(newExecutor());
+	}
+
+	private static Method findExecutorFactory()
+	{
+		try
+		{
+			return java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		}
+		catch (NoSuchMethodException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Runs each task on a thread of its own from the executor. The server manages it as a bean, so stopping the server
+	 * shuts the executor down and lets {@link #join()} return.
+	 */
+	static class VirtualThreadPool extends ContainerLifeCycle implements ThreadPool
+	{
+		private final ExecutorService executor;
+
+		VirtualThreadPool(ExecutorService executor)
+		{
+			this.executor = executor;
+		}
+
+		@Override
+		public void execute(Runnable task)
+		{
+			executor.execute(task);
+		}
+
+		@Override
+		protected void doStop() throws Exception
+		{
+			executor.shutdown();
+			super.doStop();
+		}
+
+		@Override
+		public void join() throws InterruptedException
+		{
+			while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+			{
+			}
+		}
+
+		@Override
+		public int getThreads()
+		{
+			return Integer.MAX_VALUE;
+		}
+
+		@Override
+		public int getIdleThreads()
+		{
+			return Integer.MAX_VALUE;
+		}
+
+		@Override
+		public boolean isLowOnThreads()
+		{
+			return false;
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package org.emerse.fhir;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Durable per-patient high-water marks for incremental extraction, kept in an append-only log of
+ * {@code fhirId TAB lastUpdated TAB ids} lines that is forced to disk on every commit. A torn last line from a crash
+ * is dropped on open, and the log is rewritten with only the latest marks once it holds mostly stale ones.
+ */
+public class WatermarkStore implements AutoCloseable
+{
+	private final Path file;
+	private final Map<String, Mark> marks = new ConcurrentHashMap<>();
+	private FileChannel channel;
+	private long lines;
+
+	public WatermarkStore(Path file) throws IOException
+	{
+		this.file = file;
+		if (file.getParent() != null)
+		{
+			Files.createDirectories(file.getParent());
+		}
+		if (Files.exists(file))
+		{
+			load();
+		}
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		if (lines > 2L * marks.size() + 1000)
+		{
+			compact();
+		}
+	}
+
+	public Mark get(String fhirId)
+	{
+		return marks.get(fhirId);
+	}
+
+	/**
+	 * Records new marks together, once the deltas they cover have been delivered.
+	 */
+	public synchronized void commit(Map<String, Mark> updates) throws IOException
+	{
+		if (updates.isEmpty())
+		{
+			return;
+		}
+		var text = new StringBuilder();
+		for (var update : updates.entrySet())
+		{
+			text.append(update.getKey()).append('\t').append(update.getValue().lastUpdated()).append('\t')
+				.append(String.join(",", update.getValue().frontier())).append('\n');
+		}
+		var buffer = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+		channel.force(false);
+		marks.putAll(updates);
+		lines += updates.size();
+		if (lines > 2L * marks.size() + 1000)
+		{
+			compact();
+		}
+	}
+
+	public int size()
+	{
+		return marks.size();
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		channel.close();
+	}
+
+	private void load() throws IOException
+	{
+		var valid = 0L;
+		var size = Files.size(file);
+		try (var reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+		{
+			var offset = 0L;
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				offset += line.getBytes(StandardCharsets.UTF_8).length + 1;
+				var fields = line.split("\t", -1);
+				if (fields.length != 3 || offset > size)
+				{
+					break;
+				}
+				long lastUpdated;
+				try
+				{
+					lastUpdated = Long.parseLong(fields[1]);
+				}
+				catch (NumberFormatException e)
+				{
+					break;
+				}
+				var frontier = fields[2].isEmpty() ? Set.<String>of() : Set.of(fields[2].split(","));
+				marks.put(fields[0], new Mark(lastUpdated, frontier));
+				lines++;
+				valid = offset;
+			}
+		}
+		if (valid < size)
+		{
+			try (var ch = FileChannel.open(file, StandardOpenOption.WRITE))
+			{
+				ch.truncate(valid);
+			}
+		}
+	}
+
+	private void compact() throws IOException
+	{
+		var temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (var ch = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING);
+			 Writer out = Channels.newWriter(ch, StandardCharsets.UTF_8))
+		{
+			for (var entry : marks.entrySet())
+			{
+				out.write(entry.getKey() + "\t" + entry.getValue().lastUpdated() + "\t"
+					+ String.join(",", entry.getValue().frontier()) + "\n");
+			}
+			out.flush();
+			ch.force(false);
+		}
+		channel.close();
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		lines = marks.size();
+	}
+
+	/**
+	 * The newest {@code meta.lastUpdated} seen for a patient, in epoch milliseconds, and the documents seen at exactly
+	 * that instant; the next search starts at the instant and skips those, so same-millisecond updates aren't lost.
+	 */
+	public static record Mark(long lastUpdated, Set<String> frontier) {}
+
+	/**
+	 * Follows the newest update seen while a delta is written.
+	 */
+	public static class Progress
+	{
+		private long lastUpdated = Long.MIN_VALUE;
+		private final Set<String> frontier = new HashSet<>();
+		// the earliest lastUpdated of a note the client didn't get
+		private long missing = Long.MAX_VALUE;
+
+		public Progress(Mark from)
+		{
+			if (from != null)
+			{
+				lastUpdated = from.lastUpdated();
+				frontier.addAll(from.frontier());
+			}
+		}
+
+		public void see(NoteDocument doc)
+		{
+			if (doc.lastUpdated() == null || doc.lastUpdated() < lastUpdated)
+			{
+				return;
+			}
+			if (doc.lastUpdated() > lastUpdated)
+			{
+				lastUpdated = doc.lastUpdated();
+				frontier.clear();
+			}
+			frontier.add(doc.id());
+		}
+
+		/**
+		 * Holds the mark back for a note whose content didn't arrive, so the next sync fetches it again.
+		 */
+		public void miss(NoteDocument doc)
+		{
+			if (doc.lastUpdated() != null)
+			{
+				missing = Math.min(missing, doc.lastUpdated());
+			}
+		}
+
+		/**
+		 * The mark to commit, or null when no document carried a {@code lastUpdated}.
+		 */
+		public Mark mark()
+		{
+			if (lastUpdated == Long.MIN_VALUE)
+			{
+				return null;
+			}
+			if (lastUpdated > missing)
+			{
+				// everything from the missing note's instant on comes again, what was sent there included
+				return new Mark(missing, Set.of());
+			}
+			return new Mark(lastUpdated, Set.copyOf(frontier));
+		}
+	}
+}
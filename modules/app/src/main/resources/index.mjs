@@ -7,9 +7,33 @@ function updateNavButtonStatus(prevBtn, nextBtn)
 }
 
 function renderContent(txt, nType, nDt, docIndex) {
-    txt.innerHTML = patientNotes.notes[docIndex].text;
-    nType.innerHTML = '<span>' + patientNotes.notes[docIndex].noteType + '</span>';;
-    nDt.innerHTML = '<span>' + new Date(patientNotes.notes[docIndex].timestamp) + '</span>';
+    let note = patientNotes.notes[docIndex];
+    nType.innerHTML = '<span>' + note.noteType + '</span>';
+    nDt.innerHTML = '<span>' + new Date(note.timestamp) + '</span>';
+    if (note.text !== undefined)
+    {
+        txt.innerHTML = note.text;
+        return;
+    }
+    // the listing carries no text; each note is read when it is first shown and cached by the browser after that
+    txt.innerHTML = '<span style="margin: 0 auto;font-weight:bold;">Loading... ...</span>';
+    fetch('/note?id=' + encodeURIComponent(note.id))
+        .then(response => response.ok ? response.text() : Promise.reject(response.status))
+        .then(text =>
+        {
+            note.text = text;
+            if (patientNotes.notes[patientNotes.docIndex] === note)
+            {
+                txt.innerHTML = text;
+            }
+        })
+        .catch(status =>
+        {
+            if (patientNotes.notes[patientNotes.docIndex] === note)
+            {
+                txt.innerHTML = '<span style="margin: 0 auto;font-weight:bold;">Could not load the note (' + status + ')</span>';
+            }
+        });
 }
 
 document.addEventListener('DOMContentLoaded', () =>
@@ -42,7 +66,7 @@ document.addEventListener('DOMContentLoaded', () =>
     document.querySelector("#search").addEventListener('click', evt =>
     {
         let httpRequest = new XMLHttpRequest();
-        httpRequest.open('GET', '/fhir?mrn=' + pid.value + '&' + 'after=' + dt.value.split('T')[0])
+        httpRequest.open('GET', '/fhir?mrn=' + pid.value + '&' + 'after=' + dt.value.split('T')[0] + '&metadata=true')
         httpRequest.onreadystatechange = () =>
         {
             if (httpRequest.readyState === XMLHttpRequest.DONE && httpRequest.status === 200)
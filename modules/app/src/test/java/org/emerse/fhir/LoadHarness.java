@@ -0,0 +1,117 @@
+package org.emerse.fhir;
+
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.util.MultiMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives {@link FhirHandler#doHandle} with a fixed number of concurrent callers, one request per MRN, and reports
+ * throughput and latency percentiles.
+ */
+public class LoadHarness {
+    public int concurrency = 8;
+    public String after;
+    /** Requests made before measuring, to load classes and warm up the JIT and connection pool. */
+    public int warmup;
+
+    public Report run(FhirHandler handler, List<String> mrns) throws Exception {
+        for (int i = 0; i < warmup && !mrns.isEmpty(); i++) {
+            call(handler, mrns.get(i % mrns.size()));
+        }
+        var next = new AtomicInteger();
+        var results = Collections.synchronizedList(new ArrayList<Result>());
+        ExecutorService callers = Executors.newFixedThreadPool(concurrency);
+        var start = System.nanoTime();
+        try {
+            var futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < concurrency; i++) {
+                futures.add(callers.submit(() -> {
+                    int index;
+                    while ((index = next.getAndIncrement()) < mrns.size()) {
+                        results.add(call(handler, mrns.get(index)));
+                    }
+                    return null;
+                }));
+            }
+            for (var future : futures) {
+                future.get();
+            }
+        } finally {
+            callers.shutdownNow();
+            callers.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        return new Report(System.nanoTime() - start, List.copyOf(results));
+    }
+
+    private Result call(FhirHandler handler, String mrn) {
+        var request = new MockHttpRequest();
+        var params = new MultiMap<String>();
+        params.put("mrn", mrn);
+        if (after != null)
+            params.put("after", after);
+        request.setQueryParameters(params);
+        var response = new MockHttpResponse();
+        var t = System.nanoTime();
+        try {
+            handler.doHandle("fhir", null, request, response);
+            t = System.nanoTime() - t;
+            if (response.getStatus() != HttpServletResponse.SC_OK)
+                return new Result(mrn, t, 0, 0, new IllegalStateException("HTTP " + response.getStatus()));
+            return new Result(mrn, t, response.getTotalLength(), response.getNoteCount(), null);
+        } catch (Exception e) {
+            return new Result(mrn, System.nanoTime() - t, 0, 0, e);
+        }
+    }
+
+    public record Result(String mrn, long nanos, int bytes, int notes, Exception error) {
+    }
+
+    public record Report(long elapsedNanos, List<Result> results) {
+        public List<Result> failures() {
+            return results.stream().filter(r -> r.error() != null).toList();
+        }
+
+        public int notes() {
+            return results.stream().mapToInt(Result::notes).sum();
+        }
+
+        public long bytes() {
+            return results.stream().mapToLong(Result::bytes).sum();
+        }
+
+        public double throughput() {
+            return results.size() / (elapsedNanos * 1e-9);
+        }
+
+        public double percentileMillis(double p) {
+            var nanos = results.stream().mapToLong(Result::nanos).toArray();
+            if (nanos.length == 0)
+                return 0;
+            Arrays.sort(nanos);
+            var rank = (int) Math.ceil(p / 100 * nanos.length) - 1;
+            return nanos[Math.max(0, Math.min(nanos.length - 1, rank))] * 1e-6;
+        }
+
+        public void print(String title) {
+            System.out.println("******************************************");
+            System.out.println(title);
+            System.out.println("******************************************");
+            System.out.printf("Requests: %d (%d failed)%n", results.size(), failures().size());
+            System.out.printf("Elapsed (sec): %.3f%n", elapsedNanos * 1e-9);
+            System.out.printf("Throughput (req/sec): %.1f%n", throughput());
+            System.out.printf("Latency p50/p95/p99 (ms): %.1f / %.1f / %.1f%n",
+                    percentileMillis(50), percentileMillis(95), percentileMillis(99));
+            System.out.printf("Notes: %d, bytes: %d%n", notes(), bytes());
+            System.out.println("******************************************");
+        }
+    }
+}
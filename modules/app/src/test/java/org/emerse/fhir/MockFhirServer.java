@@ -0,0 +1,465 @@
+package org.emerse.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.core.JsonFactory;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.hl7.fhir.r4.model.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An embedded FHIR R4 stand-in serving synthetic patients, paged DocumentReference searches and Binary notes.
+ * Patient MRNs are the numbers 1 to {@code patients}, left padded to nine digits.
+ */
+public class MockFhirServer implements AutoCloseable {
+    public int patients = 100;
+    public int notesPerPatient = 20;
+    public int pageSize = 10;
+    public int noteSize = 4096;
+    public String heading = "Note";
+    public double inlineRatio = 0.25;
+    public long latencyMillis = 0;
+    public double errorRate = 0;
+    public int errorStatus = 500;
+    public String retryAfter = "1";
+    public boolean advertiseInclude = true;
+    public boolean supportChain = true;
+    public boolean supportSort = true;
+    // notes come back in no particular order unless sorted by date
+    public boolean shuffle;
+    public boolean bulkExport;
+    public int exportPolls = 2;
+    public int patientsPerExportFile = 2;
+    public boolean requiresAccessToken;
+    public final AtomicLong exportsDeleted = new AtomicLong();
+    public final AtomicLong requests = new AtomicLong();
+    public final Map<String, AtomicLong> requestsByPath = new ConcurrentHashMap<>();
+    // requests that came with an Authorization header
+    public final Map<String, AtomicLong> authorizedByPath = new ConcurrentHashMap<>();
+
+    private static final long FIRST_NOTE = 1577836800000L; // 2020-01-01
+    private static final long NOTE_INTERVAL = 86_400_000L;
+
+    private final FhirContext fhir = FhirContext.forR4();
+    // content is deterministic, so each resource is encoded once and the server stays cheap next to the client
+    private final Map<String, byte[]> encoded = new ConcurrentHashMap<>();
+    // notes changed since they were written, by note number, the same for every patient
+    private final Map<Integer, Edit> edits = new ConcurrentHashMap<>();
+    private final Map<Integer, Export> exports = new ConcurrentHashMap<>();
+    private final AtomicInteger exportIds = new AtomicInteger();
+    private Server server;
+    private String baseUrl;
+
+    public String start() throws Exception {
+        server = new Server();
+        server.setHandler(new AbstractHandler() {
+            @Override
+            protected void doHandle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws Exception {
+                baseRequest.setHandled(true);
+                serve(target, request, response);
+            }
+        });
+        var connector = new ServerConnector(server);
+        connector.setPort(0);
+        server.addConnector(connector);
+        server.start();
+        baseUrl = "http://localhost:" + connector.getLocalPort() + "/fhir";
+        return baseUrl;
+    }
+
+    @Override
+    public void close() throws Exception {
+        server.stop();
+    }
+
+    /**
+     * A handler reading from this server, started if it isn't yet, through a client configured the way
+     * {@link Main} configures it.
+     */
+    public FhirHandler handler() throws Exception {
+        return handler(new FhirHandler());
+    }
+
+    /**
+     * Points {@code handler}, typically an overriding subclass, at this server like {@link #handler()}.
+     */
+    public <T extends FhirHandler> T handler(T handler) throws Exception {
+        var fhir = FhirContext.forR4();
+        new ClientPool().configure(fhir);
+        handler.jsonFactory = new JsonFactory();
+        handler.client = fhir.newRestfulGenericClient(baseUrl != null ? baseUrl : start());
+        handler.fetchPermits = new Semaphore(8);
+        return handler;
+    }
+
+    public static String mrn(int patient) {
+        return String.format("%09d", patient);
+    }
+
+    public int documentCount(String after) {
+        var from = after == null ? Long.MIN_VALUE : new DateTimeType(after).getValue().getTime();
+        var count = 0;
+        for (int i = 0; i < notesPerPatient; i++) {
+            if (noteDate(i) >= from)
+                count++;
+        }
+        return count;
+    }
+
+    private static long noteDate(int note) {
+        return FIRST_NOTE + note * NOTE_INTERVAL;
+    }
+
+    private long lastUpdated(int note) {
+        var edit = edits.get(note);
+        return edit == null ? noteDate(note) : edit.lastUpdated();
+    }
+
+    /**
+     * Saves a new version of a note at {@code lastUpdated}.
+     */
+    public void edit(int note, long lastUpdated) {
+        var edit = edits.get(note);
+        edits.put(note, new Edit(lastUpdated, edit == null ? 2 : edit.version() + 1, false, null));
+        encoded.clear();
+    }
+
+    /**
+     * Marks a note entered in error at {@code lastUpdated}.
+     */
+    public void retract(int note, long lastUpdated) {
+        var edit = edits.get(note);
+        edits.put(note, new Edit(lastUpdated, edit == null ? 2 : edit.version() + 1, true, null));
+        encoded.clear();
+    }
+
+    /**
+     * Adds a note that replaces {@code note}, which is left current as some servers do.
+     */
+    public int replace(int note, long lastUpdated) {
+        var added = notesPerPatient++;
+        edits.put(added, new Edit(lastUpdated, 1, false, note));
+        encoded.clear();
+        return added;
+    }
+
+    private void serve(String target, HttpServletRequest request, HttpServletResponse response) throws Exception {
+        requests.incrementAndGet();
+        if (latencyMillis > 0)
+            Thread.sleep(latencyMillis);
+        var path = target.startsWith("/fhir") ? target.substring(5) : target;
+        var bucket = path.startsWith("/Binary/") ? "/Binary"
+                : path.startsWith("/DocumentReference/") ? "/DocumentReference/{id}"
+                : path.startsWith("/$export-") ? path.substring(0, path.indexOf('/', 1))
+                : path;
+        requestsByPath.computeIfAbsent(bucket, k -> new AtomicLong()).incrementAndGet();
+        if (request.getHeader("Authorization") != null)
+            authorizedByPath.computeIfAbsent(bucket, k -> new AtomicLong()).incrementAndGet();
+        if (!supportChain && request.getParameter("patient.identifier") != null) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            write(response, new OperationOutcome().addIssue(new OperationOutcome.OperationOutcomeIssueComponent()
+                    .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                    .setCode(OperationOutcome.IssueType.NOTSUPPORTED)
+                    .setDiagnostics("Chained parameters are not supported")));
+            return;
+        }
+        if (!path.equals("/metadata") && errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            response.setStatus(errorStatus);
+            if ((errorStatus == 429 || errorStatus == 503) && retryAfter != null)
+                response.setHeader("Retry-After", retryAfter);
+            write(response, new OperationOutcome().addIssue(new OperationOutcome.OperationOutcomeIssueComponent()
+                    .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                    .setCode(OperationOutcome.IssueType.TRANSIENT)
+                    .setDiagnostics("Injected failure")));
+            return;
+        }
+        if (bulkExport && (path.equals("/Patient/$export") || path.startsWith("/$export-"))) {
+            serveExport(path, request, response);
+            return;
+        }
+        if (!path.equals("/metadata") && !path.equals("/Patient") && !path.equals("/DocumentReference")
+                && !path.startsWith("/Binary/") && readDocument(path) == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            write(response, new OperationOutcome().addIssue(new OperationOutcome.OperationOutcomeIssueComponent()
+                    .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                    .setCode(OperationOutcome.IssueType.NOTFOUND)
+                    .setDiagnostics("Unknown resource " + path)));
+            return;
+        }
+        var key = request.getQueryString() == null ? path : path + "?" + request.getQueryString();
+        var body = encoded.computeIfAbsent(key, k -> encode(resource(path, request)));
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/fhir+json;charset=UTF-8");
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    /**
+     * A Bulk Data export: the kick-off answers with a status URL that reports progress for {@code exportPolls} polls,
+     * then a manifest of NDJSON files holding the DocumentReferences of {@code patientsPerExportFile} patients each.
+     */
+    private void serveExport(String path, HttpServletRequest request, HttpServletResponse response) throws Exception {
+        if (path.equals("/Patient/$export")) {
+            var parameters = fhir.newJsonParser().parseResource(Parameters.class, request.getInputStream());
+            var cohort = new ArrayList<Integer>();
+            for (var parameter : parameters.getParameter()) {
+                if (parameter.getName().equals("patient"))
+                    cohort.add(parse(((Reference) parameter.getValue()).getReferenceElement().getIdPart().substring(1)));
+            }
+            var id = exportIds.incrementAndGet();
+            exports.put(id, new Export(cohort, new AtomicInteger(exportPolls)));
+            response.setStatus(HttpServletResponse.SC_ACCEPTED);
+            response.setHeader("Content-Location", baseUrl + "/$export-status/" + id);
+            return;
+        }
+        var parts = path.split("/");
+        var export = exports.get(parse(parts[2]));
+        if (export == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (path.startsWith("/$export-status/") && request.getMethod().equals("DELETE")) {
+            exports.remove(parse(parts[2]));
+            exportsDeleted.incrementAndGet();
+            response.setStatus(HttpServletResponse.SC_ACCEPTED);
+            return;
+        }
+        if (path.startsWith("/$export-status/")) {
+            var left = export.polls().getAndDecrement();
+            if (left > 0) {
+                response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                response.setHeader("X-Progress", left + " polls to go");
+                return;
+            }
+            var manifest = new StringBuilder("{\"transactionTime\":\"2024-01-01T00:00:00Z\",\"requiresAccessToken\":")
+                    .append(requiresAccessToken).append(",\"output\":[");
+            var files = (export.cohort().size() + patientsPerExportFile - 1) / patientsPerExportFile;
+            for (int i = 0; i < files; i++) {
+                manifest.append(i == 0 ? "" : ",").append("{\"type\":\"DocumentReference\",\"url\":\"")
+                        .append(baseUrl).append("/$export-file/").append(parts[2]).append('/').append(i).append("\"}");
+            }
+            manifest.append("],\"error\":[]}");
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType("application/json");
+            response.getOutputStream().write(manifest.toString().getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        var file = parse(parts[3]);
+        var out = new StringBuilder();
+        var cohort = export.cohort();
+        for (int i = file * patientsPerExportFile; i < Math.min(cohort.size(), (file + 1) * patientsPerExportFile); i++) {
+            for (int note = 0; note < notesPerPatient; note++)
+                out.append(fhir.newJsonParser().encodeResourceToString(document(cohort.get(i), note))).append('\n');
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/fhir+ndjson");
+        response.getOutputStream().write(out.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Resource resource(String path, HttpServletRequest request) {
+        if (path.equals("/metadata"))
+            return capabilities();
+        if (path.equals("/Patient"))
+            return searchPatient(request);
+        if (path.equals("/DocumentReference"))
+            return searchDocuments(request);
+        if (path.startsWith("/DocumentReference/"))
+            return readDocument(path);
+        return binary(path.substring("/Binary/".length()));
+    }
+
+    private byte[] encode(Resource resource) {
+        return fhir.newJsonParser().encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void write(HttpServletResponse response, Resource resource) throws Exception {
+        response.setContentType("application/fhir+json;charset=UTF-8");
+        response.getOutputStream().write(encode(resource));
+    }
+
+    protected CapabilityStatement capabilities() {
+        var capabilities = new CapabilityStatement();
+        capabilities.setStatus(Enumerations.PublicationStatus.ACTIVE);
+        capabilities.setFhirVersion(Enumerations.FHIRVersion._4_0_1);
+        var rest = capabilities.addRest().setMode(CapabilityStatement.RestfulCapabilityMode.SERVER);
+        var patient = rest.addResource().setType("Patient");
+        patient.addSearchParam().setName("_id");
+        patient.addSearchParam().setName("identifier");
+        var documents = rest.addResource().setType("DocumentReference");
+        documents.addSearchParam().setName("patient");
+        documents.addSearchParam().setName("period");
+        documents.addSearchParam().setName("_count");
+        if (supportSort)
+            documents.addSearchParam().setName("_sort");
+        if (advertiseInclude)
+            documents.addSearchInclude("DocumentReference:patient");
+        if (bulkExport)
+            patient.addOperation().setName("export")
+                    .setDefinition("http://hl7.org/fhir/uv/bulkdata/OperationDefinition/patient-export");
+        return capabilities;
+    }
+
+    private Bundle searchPatient(HttpServletRequest request) {
+        var bundle = new Bundle().setType(Bundle.BundleType.SEARCHSET);
+        var id = request.getParameter("_id");
+        var identifier = request.getParameter("identifier");
+        int patient = -1;
+        if (id != null && id.startsWith("p"))
+            patient = parse(id.substring(1));
+        else if (identifier != null && identifier.startsWith("MRN|"))
+            patient = parse(identifier.substring(4));
+        if (patient >= 1 && patient <= patients)
+            bundle.addEntry().setResource(patient(patient));
+        return bundle.setTotal(bundle.getEntry().size());
+    }
+
+    private static int parse(String number) {
+        try {
+            return Integer.parseInt(number);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static Patient patient(int patient) {
+        var resource = new Patient();
+        resource.setId("p" + patient);
+        resource.addIdentifier().setValue(mrn(patient)).getType().setText("MRN");
+        resource.addIdentifier().setValue("p" + patient).getType().setText("FHIR");
+        resource.addName().setText("Patient " + patient);
+        return resource;
+    }
+
+    private Bundle searchDocuments(HttpServletRequest request) {
+        var patientId = request.getParameter("patient");
+        var chained = request.getParameter("patient.identifier");
+        if (chained != null && chained.startsWith("MRN|"))
+            patientId = "p" + parse(chained.substring(4));
+        var periods = request.getParameterValues("period") == null ? new String[0] : request.getParameterValues("period");
+        var include = "DocumentReference:patient".equals(request.getParameter("_include"));
+        var pageSize = request.getParameter("_count") == null ? this.pageSize : Integer.parseInt(request.getParameter("_count"));
+        var page = request.getParameter("page") == null ? 0 : Integer.parseInt(request.getParameter("page"));
+        var lastUpdated = request.getParameter("_lastUpdated");
+        var sort = request.getParameter("_sort");
+        var since = lastUpdated != null && lastUpdated.startsWith("ge")
+                ? new InstantType(lastUpdated.substring(2)).getValue().getTime()
+                : Long.MIN_VALUE;
+        var from = Long.MIN_VALUE;
+        var to = Long.MAX_VALUE;
+        var periodQuery = new StringBuilder();
+        for (var period : periods) {
+            if (period.startsWith("ge"))
+                from = new DateTimeType(period.substring(2)).getValue().getTime();
+            else if (period.startsWith("lt"))
+                to = new DateTimeType(period.substring(2)).getValue().getTime();
+            periodQuery.append("&period=").append(period);
+        }
+        var bundle = new Bundle().setType(Bundle.BundleType.SEARCHSET);
+        var patient = patientId != null && patientId.startsWith("p") ? parse(patientId.substring(1)) : -1;
+        if (patient < 1 || patient > patients)
+            return bundle.setTotal(0);
+        var matches = new ArrayList<Integer>();
+        for (int i = 0; i < notesPerPatient; i++) {
+            if (noteDate(i) >= from && noteDate(i) < to && lastUpdated(i) >= since)
+                matches.add(i);
+        }
+        if (shuffle && !(supportSort && "date".equals(sort)))
+            Collections.shuffle(matches, new Random(patient));
+        bundle.setTotal(matches.size());
+        var start = page * pageSize;
+        for (int i = start; i < Math.min(matches.size(), start + pageSize); i++)
+            bundle.addEntry().setResource(document(patient, matches.get(i)));
+        if (include && bundle.hasEntry())
+            bundle.addEntry().setResource(patient(patient)).getSearch().setMode(Bundle.SearchEntryMode.INCLUDE);
+        if (start + pageSize < matches.size()) {
+            bundle.addLink()
+                    .setRelation(Bundle.LINK_NEXT)
+                    .setUrl(baseUrl + "/DocumentReference?patient=" + patientId
+                            + periodQuery
+                            + (lastUpdated == null ? "" : "&_lastUpdated=" + lastUpdated)
+                            + (sort == null ? "" : "&_sort=" + sort)
+                            + "&_count=" + pageSize
+                            + "&page=" + (page + 1));
+        }
+        return bundle;
+    }
+
+    private DocumentReference readDocument(String path) {
+        if (!path.startsWith("/DocumentReference/d"))
+            return null;
+        var parts = path.substring("/DocumentReference/d".length()).split("-");
+        if (parts.length != 2)
+            return null;
+        var patient = parse(parts[0]);
+        var note = parse(parts[1]);
+        if (patient < 1 || patient > patients || note < 0 || note >= notesPerPatient)
+            return null;
+        return document(patient, note);
+    }
+
+    private DocumentReference document(int patient, int note) {
+        var doc = new DocumentReference();
+        doc.setId("d" + patient + "-" + note);
+        var edit = edits.get(note);
+        doc.getMeta().setVersionId(edit == null ? "1" : String.valueOf(edit.version()));
+        doc.getMeta().setLastUpdated(new Date(lastUpdated(note)));
+        doc.setStatus(edit != null && edit.retracted()
+                ? Enumerations.DocumentReferenceStatus.ENTEREDINERROR
+                : Enumerations.DocumentReferenceStatus.CURRENT);
+        if (edit != null && edit.replaces() != null)
+            doc.addRelatesTo()
+                    .setCode(DocumentReference.DocumentRelationshipType.REPLACES)
+                    .setTarget(new Reference("DocumentReference/d" + patient + "-" + edit.replaces()));
+        doc.setDate(new Date(noteDate(note)));
+        doc.getContext().getPeriod().setStart(new Date(noteDate(note))).setEnd(new Date(noteDate(note)));
+        doc.getType().setText(note % 3 == 0 ? "Progress Note" : note % 3 == 1 ? "Discharge Summary" : "Consult Note");
+        doc.getSubject().setReference("Patient/p" + patient);
+        var attachment = doc.addContent().getAttachment().setContentType("text/html; charset=UTF-8");
+        if (new Random(patient * 31L + note).nextDouble() < inlineRatio)
+            attachment.setData(noteText(patient, note));
+        else
+            attachment.setUrl(baseUrl + "/Binary/b" + patient + "-" + note).setSize(noteText(patient, note).length);
+        return doc;
+    }
+
+    private Binary binary(String id) {
+        var parts = id.substring(1).split("-");
+        var binary = new Binary();
+        binary.setId(id);
+        binary.setContentType("text/html; charset=UTF-8");
+        binary.setContent(noteText(Integer.parseInt(parts[0]), Integer.parseInt(parts[1])));
+        return binary;
+    }
+
+    public byte[] noteText(int patient, int note) {
+        var random = new Random(patient * 7919L + note);
+        var text = new StringBuilder("<html><body><p>").append(heading).append(' ').append(note).append(" for patient ").append(patient).append("</p>");
+        String[] words = {"patient", "reports", "pain", "denies", "fever", "history", "of", "hypertension", "follow", "up",
+                "in", "two", "weeks", "medication", "reviewed", "plan", "continue", "current", "therapy", "and"};
+        while (text.length() < noteSize - 20) {
+            text.append(words[random.nextInt(words.length)]).append(random.nextInt(12) == 0 ? ".</p><p>" : " ");
+        }
+        return text.append("</p></body></html>").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private record Export(List<Integer> cohort, AtomicInteger polls) {
+    }
+
+    private record Edit(long lastUpdated, int version, boolean retracted, Integer replaces) {
+    }
+}
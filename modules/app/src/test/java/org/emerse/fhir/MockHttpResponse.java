@@ -2,6 +2,8 @@ package org.emerse.fhir;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
 import org.eclipse.jetty.server.HttpChannel;
 import org.eclipse.jetty.server.HttpOutput;
 import org.eclipse.jetty.server.Response;
@@ -14,6 +16,7 @@ public class MockHttpResponse extends Response {
     private static ObjectMapper objectMapper = new ObjectMapper();
     private ByteArrayOutputStream outputStream;
     private PrintWriter writer;
+    private String contentType;
 
     public MockHttpResponse() {
         this((HttpChannel)null, (HttpOutput)null);
@@ -42,6 +45,41 @@ public class MockHttpResponse extends Response {
         return writer;
     }
 
+    @Override
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        return new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                outputStream.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                outputStream.write(b, off, len);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
     @Override
     public String toString() {
         return "MockHttpResponse";
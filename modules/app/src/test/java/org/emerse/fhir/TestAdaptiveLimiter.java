@@ -0,0 +1,88 @@
+package org.emerse.fhir;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import org.junit.jupiter.api.Test;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestAdaptiveLimiter {
+    @Test
+    public void testIncreaseAndDecrease() throws Exception {
+        var limiter = new AdaptiveLimiter(4);
+        limiter.maxLimit = 8;
+        limiter.maxRetries = 0;
+        for (int i = 0; i < 100; i++) {
+            limiter.call(() -> null);
+        }
+        assertEquals(8, limiter.limit());
+        assertThrows(BaseServerResponseException.class, () -> limiter.call(() -> {
+            throw BaseServerResponseException.newInstance(429, "Too Many Requests");
+        }));
+        assertEquals(4, limiter.limit());
+        assertEquals(0, limiter.inFlight());
+    }
+
+    @Test
+    public void testRetriesThrottledCalls() throws Exception {
+        var limiter = new AdaptiveLimiter(4);
+        limiter.baseBackoff = 5;
+        var attempts = new AtomicInteger();
+        var result = limiter.call(() -> {
+            if (attempts.incrementAndGet() < 3)
+                throw BaseServerResponseException.newInstance(503, "Service Unavailable");
+            return "ok";
+        });
+        assertEquals("ok", result);
+        assertEquals(2, limiter.retries());
+        assertThrows(BaseServerResponseException.class, () -> limiter.call(() -> {
+            throw BaseServerResponseException.newInstance(500, "Server Error");
+        }));
+        assertEquals(2, limiter.retries());
+    }
+
+    @Test
+    public void testRetryAfter() {
+        var now = 1_700_000_000_000L;
+        assertEquals(120_000, AdaptiveLimiter.parseRetryAfter("120", now));
+        var date = ZonedDateTime.ofInstant(java.time.Instant.ofEpochMilli(now + 30_000), ZoneOffset.UTC);
+        assertEquals(30_000, AdaptiveLimiter.parseRetryAfter(DateTimeFormatter.RFC_1123_DATE_TIME.format(date), now));
+        assertEquals(-1, AdaptiveLimiter.parseRetryAfter("soon", now));
+        var e = BaseServerResponseException.newInstance(429, "Too Many Requests");
+        assertEquals(-1, AdaptiveLimiter.retryAfter(e));
+        e.addResponseHeader("Retry-After", "2");
+        assertEquals(2_000, AdaptiveLimiter.retryAfter(e));
+    }
+
+    @Test
+    public void testThrottledMockServer() throws Exception {
+        try (var server = new MockFhirServer()) {
+            server.patients = 10;
+            server.notesPerPatient = 10;
+            server.errorRate = 0.1;
+            server.errorStatus = 429;
+            server.retryAfter = "0";
+            var limiter = new AdaptiveLimiter(4);
+            limiter.baseBackoff = 5;
+            limiter.maxRetries = 10;
+            var fhirHandler = server.handler();
+            fhirHandler.client.registerInterceptor(limiter.interceptor());
+            fhirHandler.limiter = limiter;
+            var harness = new LoadHarness();
+            harness.concurrency = 4;
+            var report = harness.run(fhirHandler, IntStream.rangeClosed(1, 10)
+                    .mapToObj(MockFhirServer::mrn)
+                    .collect(Collectors.toList()));
+
+            assertTrue(report.failures().isEmpty(), () -> report.failures().toString());
+            assertEquals(10 * server.notesPerPatient, report.notes());
+            assertTrue(limiter.throttled() > 0);
+        }
+    }
+}
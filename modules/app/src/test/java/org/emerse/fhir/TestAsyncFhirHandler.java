@@ -0,0 +1,126 @@
+package org.emerse.fhir;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestAsyncFhirHandler {
+    private Server server;
+    private ExecutorService executor;
+
+    @AfterEach
+    public void stop() throws Exception {
+        server.stop();
+        executor.shutdownNow();
+    }
+
+    private URI start(FhirHandler fhirHandler, long timeoutMillis) throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+        fhirHandler.jsonFactory = new JsonFactory();
+        var handler = new AsyncFhirHandler();
+        handler.fhirHandler = fhirHandler;
+        handler.executor = executor;
+        handler.timeoutMillis = timeoutMillis;
+        server = new Server();
+        server.setHandler(handler);
+        var connector = new ServerConnector(server);
+        connector.setPort(0);
+        server.addConnector(connector);
+        server.start();
+        return URI.create("http://localhost:" + connector.getLocalPort() + "/fhir?mrn=1&after=2021-01-01");
+    }
+
+    private static HttpResponse<String> get(URI uri) throws Exception {
+        return HttpClient.newHttpClient().send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    @Test
+    public void testStreamsLargeResponse() throws Exception {
+        var text = "x".repeat(100_000);
+        var uri = start(new StubFhirHandler(500, text, 0), 10_000);
+        var response = get(uri);
+        assertEquals(200, response.statusCode());
+        var json = new ObjectMapper().readTree(response.body());
+        assertEquals("Test Patient", json.get("names").get(0).asText());
+        assertEquals(500, json.get("notes").size());
+        assertEquals(text, json.get("notes").get(499).get("text").asText());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        var uri = start(new StubFhirHandler(1, "slow", 2_000), 200);
+        assertEquals(504, get(uri).statusCode());
+    }
+
+    @Test
+    public void testUnknownPatient() throws Exception {
+        var uri = start(new FhirHandler() {
+            @Override
+            public PatientCache.PatientInfo resolvePatient(String fhirId, String mrn) {
+                throw new IllegalArgumentException("Patient does not exist");
+            }
+        }, 10_000);
+        assertEquals(404, get(uri).statusCode());
+    }
+
+    @Test
+    public void testIncrementalNeedsWatermarks() throws Exception {
+        var uri = start(new StubFhirHandler(1, "note", 0), 10_000);
+        assertEquals(400, get(URI.create(uri + "&incremental=true")).statusCode());
+    }
+
+    @Test
+    public void testMetadataAndIncrementalConflict(@TempDir Path dir) throws Exception {
+        var fhirHandler = new StubFhirHandler(1, "note", 0);
+        try (var watermarks = new WatermarkStore(dir.resolve("watermarks.log"))) {
+            fhirHandler.watermarks = watermarks;
+            var uri = start(fhirHandler, 10_000);
+            assertEquals(400, get(URI.create(uri + "&metadata=true&incremental=true")).statusCode());
+        }
+    }
+
+    private static class StubFhirHandler extends FhirHandler {
+        private final int notes;
+        private final String text;
+        private final long delayMillis;
+
+        StubFhirHandler(int notes, String text, long delayMillis) {
+            this.notes = notes;
+            this.text = text;
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        public PatientCache.PatientInfo resolvePatient(String fhirId, String mrn) {
+            return new PatientCache.PatientInfo("p1", List.of("Test Patient"));
+        }
+
+        @Override
+        public DocumentPages searchDocuments(String fhirId, String after) throws Exception {
+            Thread.sleep(delayMillis);
+            var docs = new ArrayList<NoteDocument>();
+            for (int i = 0; i < notes; i++) {
+                docs.add(new NoteDocument("d" + i, "1", 1000L * i, "Progress Note", "text/plain", null,
+                        text.getBytes(StandardCharsets.UTF_8)));
+            }
+            return new DocumentPages(url -> null, null, new DocumentPages.Page(docs, null));
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.emerse.fhir;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestBatchHandler {
+    private MockFhirServer upstream;
+    private FhirHandler fhirHandler;
+    private ExecutorService executor;
+    private Server server;
+    private int port;
+
+    @BeforeEach
+    public void start() throws Exception {
+        upstream = new MockFhirServer();
+        upstream.patients = 300;
+        upstream.notesPerPatient = 2;
+        upstream.latencyMillis = 2;
+        executor = Executors.newCachedThreadPool();
+        fhirHandler = upstream.handler();
+        fhirHandler.fetchExecutor = executor;
+        var batchHandler = new BatchHandler();
+        batchHandler.fhirHandler = fhirHandler;
+        batchHandler.jsonFactory = fhirHandler.jsonFactory;
+        batchHandler.executor = executor;
+        batchHandler.parallelism = 2;
+        server = new Server();
+        server.setHandler(new AbstractHandler() {
+            @Override
+            protected void doHandle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws Exception {
+                baseRequest.setHandled(true);
+                batchHandler.doHandle(target, baseRequest, request, response);
+            }
+        });
+        var connector = new ServerConnector(server);
+        connector.setPort(0);
+        server.addConnector(connector);
+        server.start();
+        port = connector.getLocalPort();
+    }
+
+    @AfterEach
+    public void stop() throws Exception {
+        server.stop();
+        executor.shutdownNow();
+        upstream.close();
+    }
+
+    @Test
+    public void testWritesEveryPatient() throws Exception {
+        var response = HttpClient.newHttpClient().send(
+                HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/batch"))
+                        .POST(HttpRequest.BodyPublishers.ofString(mrns(20)))
+                        .build(),
+                HttpResponse.BodyHandlers.ofLines()
+        );
+        assertEquals(200, response.statusCode());
+        assertEquals(40, response.body().count());
+    }
+
+    @Test
+    public void testStopsWhenTheClientLeaves() throws Exception {
+        var body = mrns(upstream.patients).getBytes(StandardCharsets.UTF_8);
+        try (var socket = new Socket("localhost", port)) {
+            var out = socket.getOutputStream();
+            out.write(("POST /batch HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + body.length + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.write(body);
+            out.flush();
+            var in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            assertTrue(in.readLine().contains("200"));
+            // a reset rather than a clean close, so the server's next writes fail
+            socket.setSoLinger(true, 0);
+        }
+        // the extraction winds down once the writes start failing
+        long searched;
+        long before = -1;
+        do {
+            searched = before;
+            Thread.sleep(300);
+            before = count("/Patient");
+        } while (before != searched);
+        assertTrue(searched < upstream.patients / 2, searched + " patients searched");
+    }
+
+    private long count(String path) {
+        var count = upstream.requestsByPath.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    @Test
+    public void testResponseBytesAreEncodedBytes() throws Exception {
+        upstream.heading = "Notiz f\u00fcr Patientin \u60a3\u8005";
+        var response = HttpClient.newHttpClient().send(
+                HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/batch"))
+                        .POST(HttpRequest.BodyPublishers.ofString(mrns(3)))
+                        .build(),
+                HttpResponse.BodyHandlers.ofByteArray()
+        );
+        assertEquals(200, response.statusCode());
+        assertTrue(new String(response.body(), StandardCharsets.UTF_8).contains(upstream.heading));
+        assertEquals(response.body().length, fhirHandler.metrics.bytes.sum());
+    }
+
+    private static String mrns(int count) {
+        return IntStream.rangeClosed(1, count).mapToObj(MockFhirServer::mrn).collect(Collectors.joining("\n"));
+    }
+}
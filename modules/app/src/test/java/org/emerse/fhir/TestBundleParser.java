@@ -0,0 +1,85 @@
+package org.emerse.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.core.JsonFactory;
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestBundleParser {
+    private final FhirContext fhir = FhirContext.forR4();
+    private final BundleParser parser = new BundleParser(new JsonFactory());
+
+    @Test
+    public void testMatchesHapiModel() throws Exception {
+        var bundle = new Bundle();
+        bundle.addLink().setRelation(Bundle.LINK_SELF).setUrl("http://fhir/DocumentReference?patient=1");
+        bundle.addLink().setRelation(Bundle.LINK_NEXT).setUrl("http://fhir/DocumentReference?patient=1&page=2");
+        var inline = new DocumentReference();
+        inline.setId("doc-1");
+        inline.getMeta().setVersionId("3");
+        inline.setDate(new Date(1635768000000L));
+        inline.getType().setText("Progress Note");
+        inline.getContext().getPeriod().setStart(new Date(1635700000000L)).setEnd(new Date(1635768000000L));
+        inline.addContent().getAttachment()
+                .setContentType("text/html; charset=UTF-8")
+                .setData("<p>h\u00e9llo</p>".repeat(1000).getBytes(StandardCharsets.UTF_8));
+        bundle.addEntry().setResource(inline);
+        var linked = new DocumentReference();
+        linked.setId("doc-2");
+        linked.getType().setText("Discharge Summary");
+        linked.getContext().getPeriod().setStart(new Date(1635700000000L));
+        linked.getMeta().setLastUpdated(new Date(1635768001234L));
+        linked.setStatus(Enumerations.DocumentReferenceStatus.CURRENT);
+        linked.addRelatesTo()
+                .setCode(DocumentReference.DocumentRelationshipType.REPLACES)
+                .setTarget(new Reference("DocumentReference/doc-0"));
+        linked.addContent().getAttachment().setContentType("text/rtf").setUrl("Binary/abc");
+        linked.addContent().getAttachment().setContentType("text/plain").setUrl("Binary/ignored");
+        bundle.addEntry().setResource(linked);
+        bundle.addEntry().setResource(new OperationOutcome());
+
+        var json = fhir.newJsonParser().encodeResourceToString(bundle).getBytes(StandardCharsets.UTF_8);
+        var raw = parser.parseBundle(new ByteArrayInputStream(json));
+        var hapi = DocumentPages.page(fhir.newJsonParser().parseResource(Bundle.class, new ByteArrayInputStream(json)));
+
+        assertEquals(hapi.next(), raw.next());
+        assertEquals(2, raw.documents().size());
+        for (int i = 0; i < 2; i++) {
+            var a = hapi.documents().get(i);
+            var b = raw.documents().get(i);
+            assertEquals(a.id(), b.id());
+            assertEquals(a.version(), b.version());
+            assertEquals(a.timestamp(), b.timestamp());
+            assertEquals(a.noteType(), b.noteType());
+            assertEquals(a.contentType(), b.contentType());
+            assertEquals(a.url(), b.url());
+            assertArrayEquals(a.data(), b.data());
+            assertEquals(a.lastUpdated(), b.lastUpdated());
+            assertEquals(a.status(), b.status());
+            assertEquals(a.replaces(), b.replaces());
+            assertEquals(a.periodEnd(), b.periodEnd());
+        }
+        assertEquals("doc-0", raw.documents().get(1).replaces());
+        assertEquals(1635768001234L, raw.documents().get(1).lastUpdated());
+        assertEquals(1635768000000L, raw.documents().get(0).periodEnd());
+        // an open period reaches any date
+        assertTrue(raw.documents().get(1).periodReaches(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testBinary() throws Exception {
+        var binary = new Binary();
+        binary.setContentType("text/plain; charset=ISO-8859-1");
+        binary.setContent("caf\u00e9".getBytes(StandardCharsets.ISO_8859_1));
+        var json = fhir.newJsonParser().encodeResourceToString(binary).getBytes(StandardCharsets.UTF_8);
+        var content = parser.parseBinary(new ByteArrayInputStream(json));
+        assertEquals("caf\u00e9", content.text());
+        assertEquals(StandardCharsets.ISO_8859_1, content.charset());
+    }
+}
@@ -0,0 +1,31 @@
+package org.emerse.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestClientPool {
+    @Test
+    public void testHttp2ClientGoesThroughProxy() throws Exception {
+        try (var upstream = new MockFhirServer()) {
+            upstream.patients = 1;
+            var port = URI.create(upstream.start()).getPort();
+            var fhir = FhirContext.forR4();
+            var pool = new ClientPool();
+            pool.http2 = true;
+            pool.configure(fhir);
+            fhir.getRestfulClientFactory().setProxy("localhost", port);
+            // the host doesn't resolve, so the read only works through the proxy
+            var client = fhir.newRestfulGenericClient("http://fhir.invalid/fhir");
+            var bundle = client.search().byUrl("Patient?identifier=MRN|" + MockFhirServer.mrn(1))
+                    .returnBundle(Bundle.class)
+                    .execute();
+            assertEquals(1, bundle.getEntry().size());
+            assertEquals(1, upstream.requestsByPath.get("/Patient").get());
+        }
+    }
+}
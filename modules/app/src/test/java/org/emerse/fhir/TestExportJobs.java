@@ -0,0 +1,422 @@
+package org.emerse.fhir;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.client.interceptor.BasicAuthInterceptor;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.PrintWriter;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestExportJobs {
+    private static final String AFTER = "2020-01-05";
+    // the modes write patients in different orders
+    private static final Comparator<JsonNode> LINES = Comparator.comparing(JsonNode::toString);
+
+    @TempDir
+    Path dir;
+
+    private MockFhirServer upstream;
+    private ExecutorService executor;
+    private ExportJobs jobs;
+    private Server server;
+
+    @BeforeEach
+    public void start() throws Exception {
+        upstream = new MockFhirServer();
+        upstream.patients = 5;
+        upstream.notesPerPatient = 12;
+        upstream.inlineRatio = 0.5;
+        upstream.bulkExport = true;
+        executor = Executors.newCachedThreadPool();
+        var fhirHandler = upstream.handler();
+        fhirHandler.fetchExecutor = executor;
+        var batchHandler = new BatchHandler();
+        batchHandler.fhirHandler = fhirHandler;
+        batchHandler.jsonFactory = fhirHandler.jsonFactory;
+        batchHandler.executor = executor;
+        jobs = new ExportJobs();
+        jobs.fhirHandler = fhirHandler;
+        jobs.batchHandler = batchHandler;
+        jobs.bundleParser = new BundleParser(fhirHandler.jsonFactory);
+        jobs.bulkExport = new BulkExport(new RawFhirClient(fhirHandler.client), fhirHandler.jsonFactory);
+        jobs.bulkExport.pollMillis = 10;
+        jobs.executor = executor;
+        jobs.dir = dir;
+    }
+
+    @AfterEach
+    public void stop() throws Exception {
+        if (server != null)
+            server.stop();
+        executor.shutdownNow();
+        upstream.close();
+    }
+
+    @Test
+    public void testDiscover() {
+        assertTrue(BulkExport.discover(jobs.fhirHandler.client));
+    }
+
+    @Test
+    public void testBulkExportOverHttp() throws Exception {
+        var base = serve();
+        var http = HttpClient.newHttpClient();
+        var kickOff = http.send(
+                HttpRequest.newBuilder(URI.create(base + "/export?after=" + AFTER))
+                        .POST(HttpRequest.BodyPublishers.ofString("1\n2,3\n999999\n"))
+                        .build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(202, kickOff.statusCode());
+        var status = URI.create(base + kickOff.headers().firstValue("Content-Location").orElseThrow());
+
+        JsonNode json = null;
+        for (int i = 0; i < 500; i++) {
+            json = new ObjectMapper().readTree(http.send(HttpRequest.newBuilder(status).build(), HttpResponse.BodyHandlers.ofString()).body());
+            if (json.get("state").asText().equals("complete"))
+                break;
+            Thread.sleep(20);
+        }
+        assertEquals("complete", json.get("state").asText(), json::toString);
+        assertEquals("bulk", json.get("mode").asText());
+        assertEquals(2, json.get("filesDone").asInt());
+        assertEquals(3L * upstream.documentCount(AFTER), json.get("notes").asLong());
+
+        var output = http.send(HttpRequest.newBuilder(URI.create(status + "&output=true")).build(), HttpResponse.BodyHandlers.ofLines());
+        assertEquals(200, output.statusCode());
+        var lines = output.body().map(this::parse).toList();
+        assertEquals(3 * upstream.documentCount(AFTER) + 1, lines.size());
+        assertEquals(1, lines.stream().filter(l -> l.has("error") && l.get("mrn").asText().equals("999999")).count());
+        for (var mrn : List.of("1", "2", "3"))
+            assertEquals(upstream.documentCount(AFTER), lines.stream().filter(l -> l.has("text") && l.get("mrn").asText().equals(mrn)).count());
+
+        // no per-patient note searches, and the server was told it can drop the files
+        assertNull(upstream.requestsByPath.get("/DocumentReference"));
+        assertEquals(1, upstream.exportsDeleted.get());
+        assertEquals(2, upstream.requestsByPath.get("/$export-file").get());
+    }
+
+    @Test
+    public void testArchiveOverHttp() throws Exception {
+        var base = serve();
+        var http = HttpClient.newHttpClient();
+        var bad = http.send(
+                HttpRequest.newBuilder(URI.create(base + "/export?format=zip")).POST(HttpRequest.BodyPublishers.ofString("1")).build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(400, bad.statusCode());
+
+        var kickOff = http.send(
+                HttpRequest.newBuilder(URI.create(base + "/export?format=archive&after=" + AFTER))
+                        .POST(HttpRequest.BodyPublishers.ofString("1\n2\n999999\n"))
+                        .build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(202, kickOff.statusCode());
+        var status = base + kickOff.headers().firstValue("Content-Location").orElseThrow();
+        var job = jobs.get(status.substring(status.indexOf("job=") + 4));
+        job.future.get();
+        assertEquals(ExportJobs.State.COMPLETE, job.state, job.message);
+        assertFalse(Files.exists(job.output));
+        assertTrue(Files.exists(job.archive));
+        var json = new ObjectMapper().readTree(http.send(HttpRequest.newBuilder(URI.create(status)).build(), HttpResponse.BodyHandlers.ofString()).body());
+        assertEquals("archive", json.get("format").asText());
+
+        var all = get(http, status + "&output=true");
+        assertEquals(2 * upstream.documentCount(AFTER) + 1, all.size());
+        var two = get(http, status + "&output=true&patient=2");
+        assertEquals(upstream.documentCount(AFTER), two.size());
+        assertTrue(two.stream().allMatch(l -> l.get("mrn").asText().equals("2") && l.has("text")));
+
+        var index = get(http, status + "&index=true&patient=1");
+        assertEquals(upstream.documentCount(AFTER), index.size());
+        var first = index.get(0);
+        var note = parse(http.send(
+                HttpRequest.newBuilder(URI.create(status + "&entry=" + first.get("entry").asInt())).build(),
+                HttpResponse.BodyHandlers.ofString()).body());
+        assertEquals("1", note.get("mrn").asText());
+        assertEquals(first.get("timestamp").asLong(), note.get("timestamp").asLong());
+        assertEquals(first.get("noteType").asText(), note.get("noteType").asText());
+
+        var after = new DateTimeType(AFTER).getValue().getTime();
+        var dated = get(http, status + "&output=true&from=" + AFTER + "&to=2020-01-08");
+        assertFalse(dated.isEmpty());
+        assertTrue(dated.size() < all.size());
+        assertTrue(dated.stream().allMatch(l -> l.get("timestamp").asLong() >= after));
+
+        var missing = http.send(HttpRequest.newBuilder(URI.create(status + "&entry=100000")).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(404, missing.statusCode());
+    }
+
+    @Test
+    public void testBadArchiveDate() throws Exception {
+        var base = serve();
+        var job = jobs.submit(List.of("1"), AFTER, ExportJobs.Format.ARCHIVE);
+        job.future.get();
+        var response = HttpClient.newHttpClient().send(
+                HttpRequest.newBuilder(URI.create(base + "/export?job=" + job.id + "&output=true&from=yesterday")).build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(400, response.statusCode());
+    }
+
+    @Test
+    public void testBulkNoteFailures() throws Exception {
+        jobs.retry.baseDelay = 1;
+        var attempts = new ConcurrentHashMap<String, AtomicInteger>();
+        var flaky = upstream.handler(new FhirHandler() {
+            @Override
+            public Content readContent(NoteDocument doc) throws Exception {
+                var attempt = attempts.computeIfAbsent(doc.id(), k -> new AtomicInteger()).incrementAndGet();
+                if (doc.id().equals("d1-6") || doc.id().equals("d2-7") && attempt < 3)
+                    throw BaseServerResponseException.newInstance(503, "Service Unavailable");
+                return super.readContent(doc);
+            }
+        });
+        flaky.fetchExecutor = executor;
+        jobs.fhirHandler = flaky;
+
+        var job = jobs.submit(List.of("1", "2"), AFTER, ExportJobs.Format.NDJSON);
+        job.future.get();
+        assertEquals(ExportJobs.State.COMPLETE, job.state, job.message);
+        assertEquals("bulk", job.mode);
+        assertEquals(3, attempts.get("d1-6").get());
+        assertEquals(3, attempts.get("d2-7").get());
+        assertEquals(1, job.failed.get());
+        assertEquals(4, job.retries.get());
+        assertEquals(2L * upstream.documentCount(AFTER) - 1, job.notes.sum());
+
+        var lines = Files.readAllLines(job.output).stream().map(this::parse).toList();
+        assertEquals(2 * upstream.documentCount(AFTER), lines.size());
+        var errors = lines.stream().filter(l -> l.has("error")).toList();
+        assertEquals(1, errors.size());
+        assertEquals("1", errors.get(0).get("mrn").asText());
+        assertEquals("d1-6", errors.get(0).get("id").asText());
+    }
+
+    @Test
+    public void testExportFilesGetCredentialsOnlyWhenRequired() throws Exception {
+        jobs.fhirHandler.client.registerInterceptor(new BasicAuthInterceptor("user", "secret"));
+        var job = jobs.submit(List.of("1", "2"), AFTER, ExportJobs.Format.NDJSON);
+        job.future.get();
+        assertEquals(ExportJobs.State.COMPLETE, job.state, job.message);
+        assertNotNull(upstream.authorizedByPath.get("/$export-status"));
+        assertNull(upstream.authorizedByPath.get("/$export-file"));
+
+        upstream.requiresAccessToken = true;
+        job = jobs.submit(List.of("1", "2"), AFTER, ExportJobs.Format.NDJSON);
+        job.future.get();
+        assertEquals(ExportJobs.State.COMPLETE, job.state, job.message);
+        assertEquals(1, upstream.authorizedByPath.get("/$export-file").get());
+    }
+
+    @Test
+    public void testFallsBackPerPatient() throws Exception {
+        upstream.bulkExport = false;
+        var job = jobs.submit(List.of("1", "4"), AFTER, ExportJobs.Format.NDJSON);
+        job.future.get();
+        assertEquals(ExportJobs.State.COMPLETE, job.state, job.message);
+        assertEquals("per-patient", job.mode);
+        assertEquals(2, job.patientsDone.get());
+        var lines = Files.readAllLines(job.output).stream().map(this::parse).toList();
+        assertEquals(2 * upstream.documentCount(AFTER), lines.size());
+        assertEquals(2L * upstream.documentCount(AFTER), job.notes.sum());
+    }
+
+    @Test
+    public void testBothModesWriteTheSameLines() throws Exception {
+        upstream.retract(7, 1700000000000L);
+        upstream.replace(8, 1700000000000L);
+        var bulk = jobs.submit(List.of("1", "2"), AFTER, ExportJobs.Format.NDJSON);
+        bulk.future.get();
+        assertEquals("bulk", bulk.mode, bulk.message);
+        upstream.bulkExport = false;
+        var perPatient = jobs.submit(List.of("1", "2"), AFTER, ExportJobs.Format.NDJSON);
+        perPatient.future.get();
+        assertEquals("per-patient", perPatient.mode, perPatient.message);
+
+        var expected = Files.readAllLines(perPatient.output).stream().map(this::parse).sorted(LINES).toList();
+        assertEquals(2 * upstream.documentCount(AFTER), expected.size());
+        assertEquals(expected, Files.readAllLines(bulk.output).stream().map(this::parse).sorted(LINES).toList());
+    }
+
+    @Test
+    public void testDeleteCancelsTheExport() throws Exception {
+        upstream.exportPolls = Integer.MAX_VALUE;
+        var job = jobs.submit(List.of("1", "2"), null, ExportJobs.Format.NDJSON);
+        for (int i = 0; i < 500 && upstream.requestsByPath.get("/$export-status") == null; i++)
+            Thread.sleep(10);
+        assertEquals(ExportJobs.State.EXPORTING, job.state);
+        assertTrue(jobs.delete(job.id));
+        assertEquals(ExportJobs.State.CANCELLED, job.state);
+        assertEquals(1, upstream.exportsDeleted.get());
+        assertFalse(Files.exists(job.dir));
+        assertNull(jobs.get(job.id));
+    }
+
+    @Test
+    public void testResumesWhereItStopped() throws Exception {
+        jobs.bulkExport = null;
+        var mrns = List.of("1", "2", "3", "4", "5");
+        var job = jobs.submit(mrns, AFTER, ExportJobs.Format.NDJSON);
+        job.future.get();
+        assertEquals(ExportJobs.State.COMPLETE, job.state, job.message);
+        var expected = Files.readAllLines(job.output).stream().sorted().toList();
+        assertEquals(5 * upstream.documentCount(AFTER), expected.size());
+
+        // as if the server died while the third patient was being written: the journal has two patients and a torn
+        // record, the output has lines nothing vouches for
+        var journal = job.dir.resolve("journal.log");
+        var records = new ArrayList<String>();
+        for (var record : Files.readAllLines(journal)) {
+            records.add(record);
+            if (records.stream().filter(r -> r.startsWith("done")).count() == 2)
+                break;
+        }
+        var offset = Long.parseLong(records.get(records.size() - 1).split("\t")[2]);
+        Files.writeString(journal, String.join("\n", records) + "\ndone\t3\t99");
+        try (var output = FileChannel.open(job.output, StandardOpenOption.WRITE)) {
+            output.truncate(offset + 100);
+        }
+
+        var searches = upstream.requestsByPath.get("/DocumentReference").get();
+        var restarted = newJobs();
+        assertEquals(1, restarted.recover());
+        var resumed = restarted.get(job.id);
+        resumed.future.get();
+        assertEquals(ExportJobs.State.COMPLETE, resumed.state, resumed.message);
+        assertEquals(5, resumed.patientsDone.get());
+        assertEquals(5L * upstream.documentCount(AFTER), resumed.notes.sum());
+        assertEquals(expected, Files.readAllLines(resumed.output).stream().sorted().toList());
+        // only the three unfinished patients were searched again
+        var perPatient = searches / 5;
+        assertEquals(searches + 3 * perPatient, upstream.requestsByPath.get("/DocumentReference").get());
+
+        // a finished job is listed again after another restart, and not run
+        var again = newJobs();
+        assertEquals(0, again.recover());
+        assertEquals(ExportJobs.State.COMPLETE, again.get(job.id).state);
+    }
+
+    @Test
+    public void testRetriesTransientFailures() throws Exception {
+        jobs.bulkExport = null;
+        jobs.retry.baseDelay = 1;
+        var attempts = new ConcurrentHashMap<String, AtomicInteger>();
+        var flaky = new BatchHandler() {
+            @Override
+            int writePatient(String mrn, String after, Map<String, WatermarkStore.Mark> marks, PrintWriter out) throws Exception {
+                var attempt = attempts.computeIfAbsent(mrn, k -> new AtomicInteger()).incrementAndGet();
+                if (mrn.equals("2") && attempt < 3) {
+                    // half a patient, then the server falls over
+                    writeLine(out, g -> g.writeStringField("mrn", "partial"));
+                    throw BaseServerResponseException.newInstance(503, "Service Unavailable");
+                }
+                if (mrn.equals("3"))
+                    throw BaseServerResponseException.newInstance(500, "Internal Server Error");
+                return super.writePatient(mrn, after, marks, out);
+            }
+        };
+        flaky.fhirHandler = jobs.fhirHandler;
+        flaky.jsonFactory = jobs.batchHandler.jsonFactory;
+        flaky.executor = executor;
+        jobs.batchHandler = flaky;
+
+        var job = jobs.submit(List.of("1", "2", "3", "999999"), AFTER, ExportJobs.Format.NDJSON);
+        job.future.get();
+        assertEquals(ExportJobs.State.COMPLETE, job.state, job.message);
+        assertEquals(3, attempts.get("2").get());
+        assertEquals(3, attempts.get("3").get());
+        // an unknown patient is not worth another try
+        assertEquals(1, attempts.get("999999").get());
+        assertEquals(2, job.failed.get());
+        assertEquals(4, job.retries.get());
+
+        var lines = Files.readAllLines(job.output).stream().map(this::parse).toList();
+        assertTrue(lines.stream().noneMatch(l -> l.get("mrn").asText().equals("partial")));
+        assertEquals(2 * upstream.documentCount(AFTER) + 2, lines.size());
+        assertEquals(2, lines.stream().filter(l -> l.has("error")).count());
+    }
+
+    @Test
+    public void testRetryPolicy() {
+        var policy = new RetryPolicy();
+        assertTrue(policy.retryable(BaseServerResponseException.newInstance(503, "")));
+        assertTrue(policy.retryable(new FhirClientConnectionException(new java.net.ConnectException())));
+        assertTrue(policy.retryable(new RuntimeException(new java.io.IOException())));
+        assertFalse(policy.retryable(BaseServerResponseException.newInstance(404, "")));
+        assertFalse(policy.retryable(new IllegalArgumentException("Patient does not exist")));
+        for (int attempt = 1; attempt < 40; attempt++)
+            assertTrue(policy.delay(attempt) <= policy.maxDelay);
+        assertTrue(policy.delay(1) >= policy.baseDelay / 2);
+    }
+
+    private ExportJobs newJobs() {
+        var restarted = new ExportJobs();
+        restarted.fhirHandler = jobs.fhirHandler;
+        restarted.batchHandler = jobs.batchHandler;
+        restarted.bundleParser = jobs.bundleParser;
+        restarted.executor = executor;
+        restarted.dir = dir;
+        return restarted;
+    }
+
+    private List<JsonNode> get(HttpClient http, String url) throws Exception {
+        var response = http.send(HttpRequest.newBuilder(URI.create(url)).build(), HttpResponse.BodyHandlers.ofLines());
+        assertEquals(200, response.statusCode());
+        return response.body().map(this::parse).toList();
+    }
+
+    private JsonNode parse(String line) {
+        try {
+            return new ObjectMapper().readTree(line);
+        } catch (Exception e) {
+            throw new AssertionError(line, e);
+        }
+    }
+
+    private String serve() throws Exception {
+        var handler = new ExportHandler();
+        handler.jobs = jobs;
+        handler.jsonFactory = new JsonFactory();
+        server = new Server();
+        server.setHandler(new AbstractHandler() {
+            @Override
+            protected void doHandle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws Exception {
+                baseRequest.setHandled(true);
+                handler.doHandle(target, baseRequest, request, response);
+            }
+        });
+        var connector = new ServerConnector(server);
+        connector.setPort(0);
+        server.addConnector(connector);
+        server.start();
+        return "http://localhost:" + connector.getLocalPort();
+    }
+}
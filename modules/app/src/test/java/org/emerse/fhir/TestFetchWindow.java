@@ -0,0 +1,66 @@
+package org.emerse.fhir;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestFetchWindow {
+    private static ExecutorService executor;
+
+    @BeforeAll
+    public static void startExecutor() {
+        executor = Executors.newFixedThreadPool(16);
+    }
+
+    @AfterAll
+    public static void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testOrderAndLimits() throws Exception {
+        var items = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+        var inFlight = new AtomicInteger();
+        var maxInFlight = new AtomicInteger();
+        List<Integer> results = new ArrayList<>();
+        new FetchWindow<Integer, Integer>(executor, new Semaphore(4), 8).run(
+                items.iterator(),
+                i -> {
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    Thread.sleep((100 - i) % 7);
+                    inFlight.decrementAndGet();
+                    return i * 2;
+                },
+                (i, r) -> {
+                    assertEquals(i * 2, r);
+                    results.add(i);
+                });
+        assertEquals(items, results);
+        assertTrue(maxInFlight.get() <= 4);
+    }
+
+    @Test
+    public void testFailurePropagates() {
+        var e = assertThrows(IllegalStateException.class, () ->
+                new FetchWindow<Integer, Integer>(executor, null, 4).run(
+                        List.of(1, 2, 3).iterator(),
+                        i -> {
+                            if (i == 2)
+                                throw new IllegalStateException("boom");
+                            return i;
+                        },
+                        (i, r) -> {}));
+        assertEquals("boom", e.getMessage());
+    }
+}
@@ -0,0 +1,147 @@
+package org.emerse.fhir;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestHedger {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterEach
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testHedgeWins() throws Exception {
+        var hedger = new Hedger(executor, new Histogram());
+        hedger.hedge = true;
+        hedger.minDelay = 20;
+        var calls = new AtomicInteger();
+        var t = System.nanoTime();
+        var result = hedger.call(() -> {
+            if (calls.incrementAndGet() == 1)
+                Thread.sleep(5_000);
+            return "fast";
+        });
+        assertEquals("fast", result);
+        assertTrue(System.nanoTime() - t < 2_000_000_000L);
+        assertEquals(1, hedger.hedges());
+        assertEquals(1, hedger.hedgeWins());
+    }
+
+    @Test
+    public void testLosingAttemptIsCancelled() throws Exception {
+        var hedger = new Hedger(executor, new Histogram());
+        hedger.hedge = true;
+        hedger.minDelay = 20;
+        var calls = new AtomicInteger();
+        var interrupted = new CountDownLatch(1);
+        var result = hedger.call(() -> {
+            if (calls.incrementAndGet() == 1) {
+                try {
+                    Thread.sleep(5_000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw e;
+                }
+            }
+            return "fast";
+        });
+        assertEquals("fast", result);
+        assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testAbandonedReadHoldsItsPermit() throws Exception {
+        var hedger = new Hedger(executor, new Histogram());
+        hedger.deadline = 50;
+        hedger.permits = new Semaphore(1);
+        var release = new CountDownLatch(1);
+        assertThrows(TimeoutException.class, () -> hedger.call(() -> {
+            // like a blocking socket read, it ignores the interrupt
+            var done = false;
+            while (!done) {
+                try {
+                    done = release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ignored) {
+                }
+            }
+            return "late";
+        }));
+        assertEquals(0, hedger.permits.availablePermits());
+        release.countDown();
+        assertTrue(hedger.permits.tryAcquire(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testNoHedgeWhenFast() throws Exception {
+        var hedger = new Hedger(executor, new Histogram());
+        hedger.hedge = true;
+        hedger.minDelay = 500;
+        assertEquals("ok", hedger.call(() -> "ok"));
+        Thread.sleep(600);
+        assertEquals(0, hedger.hedges());
+    }
+
+    @Test
+    public void testDelayFollowsPercentile() {
+        var latency = new Histogram();
+        var hedger = new Hedger(executor, latency);
+        hedger.minDelay = 10;
+        for (int i = 1; i <= 1000; i++) {
+            latency.record(i * 1000L);
+        }
+        assertEquals(950, hedger.delayMillis(), 950 * 0.04);
+    }
+
+    @Test
+    public void testDeadline() {
+        var hedger = new Hedger(executor, new Histogram());
+        hedger.deadline = 100;
+        assertThrows(TimeoutException.class, () -> hedger.call(() -> {
+            Thread.sleep(5_000);
+            return "late";
+        }));
+        assertEquals(1, hedger.timeouts());
+    }
+
+    @Test
+    public void testFailsWhenEveryAttemptFails() {
+        var hedger = new Hedger(executor, new Histogram());
+        hedger.hedge = true;
+        hedger.minDelay = 10;
+        var e = assertThrows(IllegalStateException.class, () -> hedger.call(() -> {
+            Thread.sleep(50);
+            throw new IllegalStateException("upstream failed");
+        }));
+        assertEquals("upstream failed", e.getMessage());
+    }
+
+    @Test
+    public void testMissingNoteJson() throws Exception {
+        var out = new StringWriter();
+        try (var g = new JsonFactory().createGenerator(out)) {
+            g.writeStartObject();
+            FhirHandler.writeNoteFields(g, new NoteDocument("d1", "1", 1000L, "Progress Note", "text/html", "Binary/b1", null),
+                    FhirHandler.MISSING);
+            g.writeEndObject();
+        }
+        var json = new ObjectMapper().readTree(out.toString());
+        assertTrue(json.get("missing").asBoolean());
+        assertEquals("text/html", json.get("contentType").asText());
+        assertNull(json.get("text"));
+    }
+}
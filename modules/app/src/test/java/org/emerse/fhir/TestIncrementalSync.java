@@ -0,0 +1,222 @@
+package org.emerse.fhir;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestIncrementalSync {
+    private static final long NIGHT = 1700000000000L;
+
+    @TempDir
+    Path dir;
+
+    private MockFhirServer server;
+    private FhirHandler handler;
+
+    @BeforeEach
+    public void start() throws Exception {
+        server = new MockFhirServer();
+        server.patients = 2;
+        server.notesPerPatient = 30;
+        server.pageSize = 7;
+        handler = server.handler();
+        handler.watermarks = new WatermarkStore(dir.resolve("watermarks.log"));
+    }
+
+    @AfterEach
+    public void stop() throws Exception {
+        handler.watermarks.close();
+        server.close();
+    }
+
+    @Test
+    public void testStoreSurvivesReopenAndTornWrites() throws Exception {
+        var file = dir.resolve("marks.log");
+        try (var store = new WatermarkStore(file)) {
+            store.commit(Map.of("p1", new WatermarkStore.Mark(10, Set.of("a", "b"))));
+            store.commit(Map.of("p1", new WatermarkStore.Mark(20, Set.of("c")), "p2", new WatermarkStore.Mark(5, Set.of())));
+        }
+        Files.writeString(file, "p3\t30\tx", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        try (var store = new WatermarkStore(file)) {
+            assertEquals(new WatermarkStore.Mark(20, Set.of("c")), store.get("p1"));
+            assertEquals(new WatermarkStore.Mark(5, Set.of()), store.get("p2"));
+            assertNull(store.get("p3"));
+            store.commit(Map.of("p3", new WatermarkStore.Mark(31, Set.of("y"))));
+        }
+        try (var store = new WatermarkStore(file)) {
+            assertEquals(3, store.size());
+            assertEquals(new WatermarkStore.Mark(31, Set.of("y")), store.get("p3"));
+        }
+    }
+
+    @Test
+    public void testDeltaAfterFirstSync() throws Exception {
+        var first = sync("p1", "2020-01-01");
+        assertEquals(server.notesPerPatient, first.notes().size());
+        assertTrue(first.deleted().isEmpty());
+
+        // nothing changed
+        var quiet = sync("p1", "2020-01-01");
+        assertTrue(quiet.notes().isEmpty(), quiet::toString);
+        assertTrue(quiet.deleted().isEmpty());
+
+        server.edit(3, NIGHT);
+        server.retract(5, NIGHT);
+        var added = server.replace(8, NIGHT + 1);
+        var delta = sync("p1", "2020-01-01");
+        assertEquals(List.of("d1-3@2", "d1-" + added + "@1"), delta.notes());
+        assertEquals(List.of("d1-5", "d1-8"), delta.deleted());
+        assertEquals(2, handler.metrics.deletedNotes.sum());
+
+        assertTrue(sync("p1", "2020-01-01").notes().isEmpty());
+        // the other patient has no mark yet, so it gets everything current
+        assertEquals(server.notesPerPatient - 1, sync("p2", "2020-01-01").notes().size());
+    }
+
+    @Test
+    public void testSameInstantUpdatesAreNotLost() throws Exception {
+        server.edit(1, NIGHT);
+        sync("p1", "2020-01-01");
+        // committed at the same millisecond as the mark, after the mark was taken
+        server.edit(2, NIGHT);
+        assertEquals(List.of("d1-2@2"), sync("p1", "2020-01-01").notes());
+    }
+
+    @Test
+    public void testUncommittedDeltaIsResent() throws Exception {
+        sync("p1", "2020-01-01");
+        server.edit(4, NIGHT);
+        var mark = handler.sync("p1", "2020-01-01", new Delta());
+        assertNotNull(mark);
+        // the client never got it, so the mark wasn't committed
+        assertEquals(List.of("d1-4@2"), sync("p1", "2020-01-01").notes());
+    }
+
+    @Test
+    public void testDroppedResponseIsNotCommitted() throws Exception {
+        server.latencyMillis = 10;
+        var jetty = new Server();
+        jetty.setHandler(new AbstractHandler() {
+            @Override
+            protected void doHandle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws Exception {
+                baseRequest.setHandled(true);
+                handler.doHandle(target, baseRequest, request, response);
+            }
+        });
+        var connector = new ServerConnector(jetty);
+        connector.setPort(0);
+        jetty.addConnector(connector);
+        jetty.start();
+        try {
+            var path = "/fhir?mrn=" + MockFhirServer.mrn(1) + "&after=2020-01-01&incremental=true";
+            try (var socket = new Socket("localhost", connector.getLocalPort())) {
+                socket.getOutputStream().write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                assertTrue(socket.getInputStream().read() >= 0);
+                // unread data makes the close a reset, which the rest of the response runs into
+                socket.setSoLinger(true, 0);
+            }
+            while (handler.metrics.request.count() < 1) {
+                Thread.sleep(10);
+            }
+            assertNull(handler.watermarks.get("p1"));
+
+            var response = HttpClient.newHttpClient().send(
+                    HttpRequest.newBuilder(URI.create("http://localhost:" + connector.getLocalPort() + path)).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, response.statusCode());
+            // the mark is committed once the closed response has gone out
+            while (handler.metrics.request.count() < 2) {
+                Thread.sleep(10);
+            }
+            assertNotNull(handler.watermarks.get("p1"));
+        } finally {
+            jetty.stop();
+        }
+    }
+
+    @Test
+    public void testMissingNoteIsFetchedAgain() throws Exception {
+        server.inlineRatio = 0;
+        sync("p1", "2020-01-01");
+        // the first Binary read runs past its deadline
+        var late = new AtomicInteger(1);
+        handler.hedger = new Hedger(null, new Histogram()) {
+            @Override
+            public <T> T call(AdaptiveLimiter.Upstream<T> call) throws Exception {
+                if (late.getAndDecrement() > 0)
+                    throw new TimeoutException();
+                return call.call();
+            }
+        };
+        server.edit(3, NIGHT);
+        server.edit(4, NIGHT + 1);
+        assertEquals(List.of("d1-3@2", "d1-4@2"), sync("p1", "2020-01-01").notes());
+        assertEquals(1, handler.metrics.missingNotes.sum());
+        // the mark stayed before the missing note, so it comes again
+        assertTrue(sync("p1", "2020-01-01").notes().contains("d1-3@2"));
+        assertTrue(sync("p1", "2020-01-01").notes().isEmpty());
+    }
+
+    @Test
+    public void testRawBundles() throws Exception {
+        handler.rawClient = new RawFhirClient(handler.client);
+        handler.bundleParser = new BundleParser(handler.jsonFactory);
+        sync("p1", "2020-01-01");
+        server.edit(6, NIGHT + 1);
+        server.retract(7, NIGHT + 1);
+        var delta = sync("p1", "2020-01-01");
+        assertEquals(List.of("d1-6@2"), delta.notes());
+        assertEquals(List.of("d1-7"), delta.deleted());
+    }
+
+    private Delta sync(String fhirId, String after) throws Exception {
+        var delta = new Delta();
+        handler.commit(fhirId, handler.sync(fhirId, after, delta));
+        return delta;
+    }
+
+    private record Delta(List<String> notes, List<String> deleted) implements FhirHandler.NoteSink {
+        Delta() {
+            this(new ArrayList<>(), new ArrayList<>());
+        }
+
+        @Override
+        public void patient(String fhirId, List<String> names) {
+        }
+
+        @Override
+        public void note(NoteDocument doc, FhirHandler.Content content) {
+            notes.add(doc.id() + "@" + doc.version());
+        }
+
+        @Override
+        public void deleted(String id) {
+            deleted.add(id);
+        }
+    }
+}
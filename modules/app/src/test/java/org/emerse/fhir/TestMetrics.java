@@ -0,0 +1,47 @@
+package org.emerse.fhir;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestMetrics {
+    @Test
+    public void testBucketsRoundTrip() {
+        for (long v = 0; v < 1_000_000; v += 7) {
+            var index = Histogram.index(v);
+            assertTrue(Histogram.lowest(index) <= v && v <= Histogram.highest(index), "value " + v);
+        }
+        assertTrue(Histogram.index(Long.MAX_VALUE) >= Histogram.index(1L << 40));
+    }
+
+    @Test
+    public void testPercentiles() {
+        var histogram = new Histogram();
+        for (int i = 1; i <= 10_000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(10_000, histogram.count());
+        assertEquals(10_000, histogram.max());
+        assertEquals(5_000, histogram.percentile(50), 5_000 * 0.04);
+        assertEquals(9_900, histogram.percentile(99), 9_900 * 0.04);
+        assertEquals(10_000, histogram.percentile(100));
+        assertEquals(0, new Histogram().percentile(50));
+    }
+
+    @Test
+    public void testPrometheusFormat() throws Exception {
+        var metrics = new Metrics();
+        metrics.requests.add(3);
+        metrics.patient.record(1500);
+        metrics.gauge("emerse_fhir_test_entries", "gauge", "Test gauge", () -> 42);
+        var out = new StringWriter();
+        metrics.write(out);
+        var text = out.toString();
+        assertTrue(text.contains("emerse_fhir_requests_total 3\n"));
+        assertTrue(text.contains("emerse_fhir_stage_seconds_count{stage=\"patient\"} 1\n"));
+        assertTrue(text.contains("emerse_fhir_stage_seconds{stage=\"patient\",quantile=\"0.5\"} 0.0015"));
+        assertTrue(text.contains("# TYPE emerse_fhir_test_entries gauge\nemerse_fhir_test_entries 42\n"));
+    }
+}
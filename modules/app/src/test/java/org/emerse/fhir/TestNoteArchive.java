@@ -0,0 +1,103 @@
+package org.emerse.fhir;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestNoteArchive {
+    private static final long DAY = 86_400_000L;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testReadsSingleNotesAndSelections() throws Exception {
+        var raw = write(2048, 2048);
+        assertTrue(Files.exists(dir.resolve("segment-00001.dat")));
+        try (var archive = new NoteArchive(dir)) {
+            assertEquals(200, archive.size());
+
+            var one = archive.select(Set.of("p7"), 3 * DAY, 4 * DAY, null);
+            assertEquals(1, one.size());
+            assertEquals(record("p7", 3), new String(archive.read(one.get(0)), StandardCharsets.UTF_8));
+            assertEquals(1, archive.inflated());
+
+            var patient = archive.select(List.of("p3", "nobody"), null, null, null);
+            assertEquals(10, patient.size());
+            assertTrue(patient.stream().allMatch(e -> e.patient().equals("p3")));
+
+            var progress = archive.select(null, null, null, Set.of("Progress Note"));
+            assertEquals(100, progress.size());
+            assertTrue(progress.stream().allMatch(e -> e.timestamp() % (2 * DAY) == 0));
+
+            // a note without a date only turns up when no dates are asked for
+            assertEquals(20, archive.select(null, null, null, Set.of("Letter")).size());
+            assertEquals(0, archive.select(null, 0L, null, Set.of("Letter")).size());
+            assertEquals(0, archive.select(null, null, null, Set.of("Discharge Summary")).size());
+
+            var before = archive.inflated();
+            var blocks = patient.stream().mapToInt(NoteArchive.Entry::block).distinct().count();
+            var lines = new ArrayList<String>();
+            archive.scan(patient, (e, record) -> lines.add(StandardCharsets.UTF_8.decode(record).toString()));
+            assertEquals(blocks, archive.inflated() - before);
+            assertTrue(blocks < raw / 2048, "read only the blocks that held the patient");
+            for (int n = 0; n < 10; n++)
+                assertTrue(lines.contains(record("p3", n)));
+        }
+    }
+
+    @Test
+    public void testCompresses() throws Exception {
+        var raw = write(64 * 1024, 1 << 20);
+        long compressed = 0;
+        try (var files = Files.list(dir)) {
+            for (var file : (Iterable<Path>) files::iterator)
+                if (file.getFileName().toString().startsWith("segment-"))
+                    compressed += Files.size(file);
+        }
+        assertTrue(compressed * 4 < raw, compressed + " of " + raw);
+    }
+
+    @Test
+    public void testUnfinishedArchiveIsRejected() throws Exception {
+        var writer = new NoteArchive.Writer(dir);
+        writer.add("p1", 0L, "Letter", record("p1", 0).getBytes(StandardCharsets.UTF_8));
+        assertThrows(IOException.class, () -> new NoteArchive(dir));
+        writer.close();
+        try (var archive = new NoteArchive(dir)) {
+            assertEquals(1, archive.size());
+        }
+    }
+
+    /**
+     * Twenty patients of ten notes each, written round robin so each patient's notes are spread over the blocks.
+     */
+    private long write(int blockBytes, long segmentBytes) throws IOException {
+        var writer = new NoteArchive.Writer(dir);
+        writer.blockBytes = blockBytes;
+        writer.segmentBytes = segmentBytes;
+        for (int n = 0; n < 10; n++) {
+            for (int p = 0; p < 20; p++) {
+                var type = n % 2 == 0 ? "Progress Note" : n == 9 ? "Letter" : "Consult";
+                var timestamp = n == 9 ? null : n * DAY;
+                writer.add("p" + p, timestamp, type, record("p" + p, n).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        var raw = writer.rawBytes();
+        writer.close();
+        return raw;
+    }
+
+    private static String record(String patient, int n) {
+        return "{\"mrn\":\"" + patient + "\",\"text\":\"" + ("Patient seen in clinic today for follow up. ").repeat(8) + n + "\"}\n";
+    }
+}
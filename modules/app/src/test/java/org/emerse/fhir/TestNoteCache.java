@@ -0,0 +1,101 @@
+package org.emerse.fhir;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestNoteCache {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testSurvivesRestart() throws Exception {
+        try (var cache = new NoteCache(dir, 1 << 20, 1 << 16)) {
+            cache.put("url:Binary/1", "text/html", "<p>one</p>".getBytes(StandardCharsets.UTF_8));
+            cache.put("url:Binary/2", "text/plain", "two".getBytes(StandardCharsets.UTF_8));
+        }
+        try (var cache = new NoteCache(dir, 1 << 20, 1 << 16)) {
+            var entry = cache.get("url:Binary/1");
+            assertEquals("text/html", entry.type());
+            assertEquals("<p>one</p>", new String(entry.data(), StandardCharsets.UTF_8));
+            assertEquals("two", new String(cache.get("url:Binary/2").data(), StandardCharsets.UTF_8));
+            assertNull(cache.get("url:Binary/3"));
+            assertEquals(2, cache.hits());
+            assertEquals(1, cache.misses());
+        }
+    }
+
+    @Test
+    public void testTruncatedTailIsDropped() throws Exception {
+        try (var cache = new NoteCache(dir, 1 << 20, 1 << 16)) {
+            cache.put("url:Binary/1", "text/plain", "one".getBytes(StandardCharsets.UTF_8));
+        }
+        var segment = Files.list(dir).sorted().findFirst().orElseThrow();
+        Files.write(segment, new byte[]{0, 0, 0, 12, 0}, java.nio.file.StandardOpenOption.APPEND);
+        try (var cache = new NoteCache(dir, 1 << 20, 1 << 16)) {
+            assertNotNull(cache.get("url:Binary/1"));
+            cache.put("url:Binary/2", "text/plain", "two".getBytes(StandardCharsets.UTF_8));
+            assertEquals("two", new String(cache.get("url:Binary/2").data(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testZeroFilledTailIsDropped() throws Exception {
+        try (var cache = new NoteCache(dir, 1 << 20, 1 << 16)) {
+            cache.put("url:Binary/1", "text/plain", "one".getBytes(StandardCharsets.UTF_8));
+        }
+        var segment = Files.list(dir).sorted().findFirst().orElseThrow();
+        var size = Files.size(segment);
+        // what a crash can leave behind when the file grew but its blocks were never written
+        Files.write(segment, new byte[64], java.nio.file.StandardOpenOption.APPEND);
+        try (var cache = new NoteCache(dir, 1 << 20, 1 << 16)) {
+            assertEquals("one", new String(cache.get("url:Binary/1").data(), StandardCharsets.UTF_8));
+        }
+        assertEquals(size, Files.size(segment));
+    }
+
+    @Test
+    public void testCorruptRecordIsDropped() throws Exception {
+        try (var cache = new NoteCache(dir, 1 << 20, 1 << 16)) {
+            cache.put("url:Binary/1", "text/plain", "one".getBytes(StandardCharsets.UTF_8));
+            cache.put("url:Binary/2", "text/plain", "two".getBytes(StandardCharsets.UTF_8));
+        }
+        var segment = Files.list(dir).sorted().findFirst().orElseThrow();
+        var bytes = Files.readAllBytes(segment);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(segment, bytes);
+        try (var cache = new NoteCache(dir, 1 << 20, 1 << 16)) {
+            assertEquals("one", new String(cache.get("url:Binary/1").data(), StandardCharsets.UTF_8));
+            assertNull(cache.get("url:Binary/2"));
+        }
+    }
+
+    @Test
+    public void testActiveSegmentIsReadAsItGrows() throws Exception {
+        try (var cache = new NoteCache(dir, 1 << 20, 1 << 16)) {
+            for (int i = 0; i < 100; i++) {
+                cache.put("url:Binary/" + i, "text/plain", ("note " + i).getBytes(StandardCharsets.UTF_8));
+                assertEquals("note " + i, new String(cache.get("url:Binary/" + i).data(), StandardCharsets.UTF_8));
+                assertEquals("note 0", new String(cache.get("url:Binary/0").data(), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedSegments() throws Exception {
+        var data = new byte[4096];
+        try (var cache = new NoteCache(dir, 3 * 4200, 4000)) {
+            for (int i = 0; i < 10; i++) {
+                cache.put("url:Binary/" + i, "text/plain", data);
+            }
+            assertTrue(cache.sizeBytes() <= 3 * 4200);
+            assertNull(cache.get("url:Binary/0"));
+            assertNotNull(cache.get("url:Binary/9"));
+        }
+    }
+}
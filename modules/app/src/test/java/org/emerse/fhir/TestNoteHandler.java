@@ -0,0 +1,181 @@
+package org.emerse.fhir;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestNoteHandler {
+    private MockFhirServer upstream;
+    private Server server;
+    private FhirHandler fhirHandler;
+    private String base;
+
+    @BeforeEach
+    public void start() throws Exception {
+        upstream = new MockFhirServer();
+        upstream.patients = 2;
+        upstream.notesPerPatient = 12;
+        upstream.pageSize = 5;
+        upstream.inlineRatio = 0;
+        fhirHandler = upstream.handler();
+        var noteHandler = new NoteHandler();
+        noteHandler.fhirHandler = fhirHandler;
+        noteHandler.maxAge = 600;
+        server = new Server();
+        server.setHandler(new AbstractHandler() {
+            @Override
+            protected void doHandle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws Exception {
+                baseRequest.setHandled(true);
+                if (target.equals("/note"))
+                    noteHandler.doHandle(target, baseRequest, request, response);
+                else
+                    fhirHandler.doHandle(target, baseRequest, request, response);
+            }
+        });
+        var connector = new ServerConnector(server);
+        connector.setPort(0);
+        server.addConnector(connector);
+        server.start();
+        base = "http://localhost:" + connector.getLocalPort();
+    }
+
+    @AfterEach
+    public void stop() throws Exception {
+        server.stop();
+        upstream.close();
+    }
+
+    @Test
+    public void testListingReadsNoContent() throws Exception {
+        var response = get("/fhir?mrn=1&after=2020-01-11&metadata=true", null);
+        assertEquals(200, response.statusCode());
+        var json = new ObjectMapper().readTree(response.body());
+        var notes = json.get("notes");
+        assertEquals(upstream.documentCount("2020-01-11"), notes.size());
+        var first = notes.get(0);
+        assertFalse(first.has("text"));
+        var note = Integer.parseInt(first.get("id").asText().substring(3));
+        assertEquals(upstream.noteText(1, note).length, first.get("size").asLong());
+        assertNull(upstream.requestsByPath.get("/Binary"));
+    }
+
+    @Test
+    public void testNoteIsCachedByVersion() throws Exception {
+        get("/fhir?mrn=1&after=2020-01-01&metadata=true", null);
+        var response = get("/note?id=d1-0", null);
+        assertEquals(200, response.statusCode());
+        assertEquals(new String(upstream.noteText(1, 0)), response.body());
+        assertEquals("\"d1-0.1\"", response.headers().firstValue("ETag").orElse(null));
+        assertEquals("private, max-age=600", response.headers().firstValue("Cache-Control").orElse(null));
+        assertTrue(response.headers().firstValue("Last-Modified").isPresent());
+        // the listing already had the DocumentReference
+        assertNull(upstream.requestsByPath.get("/DocumentReference/{id}"));
+        assertEquals(1, upstream.requestsByPath.get("/Binary").get());
+
+        var revalidated = get("/note?id=d1-0", "\"d1-0.1\"");
+        assertEquals(304, revalidated.statusCode());
+        assertEquals(1, upstream.requestsByPath.get("/Binary").get());
+
+        // a new version is a new tag once the note is listed again
+        upstream.edit(0, 1700000000000L);
+        get("/fhir?mrn=1&after=2020-01-01&metadata=true", null);
+        var changed = get("/note?id=d1-0", "\"d1-0.1\"");
+        assertEquals(200, changed.statusCode());
+        assertEquals("\"d1-0.2\"", changed.headers().firstValue("ETag").orElse(null));
+    }
+
+    @Test
+    public void testUnlistedNoteIsReadUpstream() throws Exception {
+        var response = get("/note?id=d2-3", null);
+        assertEquals(200, response.statusCode());
+        assertEquals(new String(upstream.noteText(2, 3)), response.body());
+        assertEquals(1, upstream.requestsByPath.get("/DocumentReference/{id}").get());
+    }
+
+    @Test
+    public void testPlainText() throws Exception {
+        fhirHandler.normalizer.executor = Executors.newFixedThreadPool(2);
+        try {
+            var note = get("/note?id=d1-0&text=plain", null);
+            assertEquals(200, note.statusCode());
+            assertEquals("text/plain;charset=utf-8", note.headers().firstValue("Content-Type").orElse("").replace(" ", "").toLowerCase());
+            assertEquals("\"d1-0.1.txt\"", note.headers().firstValue("ETag").orElse(null));
+            assertTrue(note.body().startsWith("Note 0 for patient 1\n"), note.body());
+            assertFalse(note.body().contains("<"), note.body());
+            // the raw note's tag doesn't stand for its plain text
+            assertEquals(200, get("/note?id=d1-0&text=plain", "\"d1-0.1\"").statusCode());
+
+            var json = new ObjectMapper().readTree(get("/fhir?mrn=1&after=2020-01-01&text=plain", null).body());
+            var notes = json.get("notes");
+            assertEquals(upstream.documentCount("2020-01-01"), notes.size());
+            for (int i = 0; i < notes.size(); i++) {
+                var text = notes.get(i).get("text").asText();
+                assertTrue(text.startsWith("Note "), text);
+                assertFalse(text.contains("<"), text);
+                assertEquals("text/plain; charset=UTF-8", notes.get(i).get("contentType").asText());
+            }
+            assertEquals(400, get("/fhir?mrn=1&text=pdf", null).statusCode());
+        } finally {
+            fhirHandler.normalizer.executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testUnknownNote() throws Exception {
+        assertEquals(404, get("/note?id=d9-0", null).statusCode());
+        assertEquals(400, get("/note", null).statusCode());
+    }
+
+    @Test
+    public void testMetadataAndIncrementalConflict(@TempDir Path dir) throws Exception {
+        try (var watermarks = new WatermarkStore(dir.resolve("watermarks.log"))) {
+            fhirHandler.watermarks = watermarks;
+            assertEquals(400, get("/fhir?mrn=1&after=2020-01-01&metadata=true&incremental=true", null).statusCode());
+            assertNull(watermarks.get("p1"));
+        }
+    }
+
+    @Test
+    public void testMatches() {
+        assertTrue(NoteHandler.matches("\"a.1\"", "\"a.1\""));
+        assertTrue(NoteHandler.matches("\"b.2\", W/\"a.1\"", "\"a.1\""));
+        assertTrue(NoteHandler.matches("*", "\"a.1\""));
+        assertFalse(NoteHandler.matches("\"a.2\"", "\"a.1\""));
+        assertFalse(NoteHandler.matches(null, "\"a.1\""));
+    }
+
+    @Test
+    public void testResponseBytesAreEncodedBytes() throws Exception {
+        upstream.heading = "Notiz f\u00fcr Patientin \u60a3\u8005";
+        var response = HttpClient.newHttpClient().send(
+                HttpRequest.newBuilder(URI.create(base + "/fhir?mrn=1&after=2020-01-01")).build(),
+                HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(200, response.statusCode());
+        assertTrue(new String(response.body(), StandardCharsets.UTF_8).contains(upstream.heading));
+        assertEquals(response.body().length, fhirHandler.metrics.bytes.sum());
+    }
+
+    private HttpResponse<String> get(String path, String ifNoneMatch) throws Exception {
+        var request = HttpRequest.newBuilder(URI.create(base + path));
+        if (ifNoneMatch != null)
+            request.header("If-None-Match", ifNoneMatch);
+        return HttpClient.newHttpClient().send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+}
@@ -0,0 +1,223 @@
+package org.emerse.fhir;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestNoteIndex {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testSearchesEveryTerm() throws Exception {
+        try (var index = new NoteIndex(dir)) {
+            index.add("n1", "p1", 1000L, "Patient reports chest pain after exercise.");
+            index.add("n2", "p1", 2000L, "No chest pain today. Pain in the left knee.");
+            index.add("n3", "p2", 3000L, "Follow up for hypertension, no chest complaints.");
+
+            var result = index.search("Chest PAIN", null, 10);
+            assertEquals(2, result.total());
+            // n2 says pain twice
+            assertEquals(List.of("n2", "n1"), result.hits().stream().map(NoteIndex.Hit::id).toList());
+            assertEquals("p1", result.hits().get(0).patient());
+            assertEquals(2000L, result.hits().get(0).timestamp());
+
+            assertEquals(List.of("n3"), ids(index.search("chest", Set.of("p2"), 10)));
+            assertEquals(0, index.search("chest fracture", null, 10).total());
+            assertEquals(0, index.search("  ...  ", null, 10).total());
+            assertEquals(1, index.search("chest", null, 1).hits().size());
+        }
+    }
+
+    @Test
+    public void testSnippets() {
+        var text = "word ".repeat(100) + "The patient has hypertension and diabetes. " + "more ".repeat(100);
+        var snippet = NoteIndex.snippet(text, Set.of("hypertension"), 60);
+        assertTrue(snippet.contains("hypertension"), snippet);
+        assertTrue(snippet.startsWith("...") && snippet.endsWith("..."), snippet);
+        assertTrue(snippet.length() < 80, snippet);
+        assertFalse(snippet.contains("wor ") || snippet.contains(" mor..."), snippet);
+        assertEquals("short note", NoteIndex.snippet("short   note", Set.of("note"), 60));
+    }
+
+    @Test
+    public void testUpdatesDeletesAndRestart() throws Exception {
+        try (var index = new NoteIndex(dir)) {
+            index.flushNotes = 2;
+            index.add("n1", "p1", 1000L, "fever and cough");
+            index.add("n2", "p1", 2000L, "fever resolved");
+            index.add("n3", "p2", 3000L, "cough persists");
+            // a new version of n1 in memory replaces the one already written
+            index.add("n1", "p1", 1500L, "rash on the arm");
+            index.delete("n2");
+            assertEquals(List.of("n3"), ids(index.search("cough", null, 10)));
+            assertEquals(0, index.search("fever", null, 10).total());
+            assertEquals(List.of("n1"), ids(index.search("rash", null, 10)));
+        }
+        // a torn segment from a crash is dropped
+        Files.write(dir.resolve("00000099.idx.tmp"), new byte[] {1, 2, 3});
+        try (var index = new NoteIndex(dir)) {
+            assertEquals(2, index.size());
+            assertEquals(List.of("n3"), ids(index.search("cough", null, 10)));
+            assertEquals(0, index.search("fever", null, 10).total());
+            var rash = index.search("rash", null, 10).hits().get(0);
+            assertEquals(1500L, rash.timestamp());
+            assertEquals("rash on the arm", rash.snippet());
+            assertFalse(Files.exists(dir.resolve("00000099.idx.tmp")));
+        }
+    }
+
+    @Test
+    public void testMergesSegments() throws Exception {
+        try (var index = new NoteIndex(dir)) {
+            index.flushNotes = 10;
+            index.mergeFactor = 3;
+            for (int i = 0; i < 100; i++)
+                index.add("n" + (i % 60), "p" + (i % 7), (long) i, "visit " + i + (i % 2 == 0 ? " even" : " odd"));
+            index.delete("n0");
+            assertTrue(index.segments() < 5, "segments " + index.segments());
+            assertEquals(59, index.size());
+            // n0 to n39 were written again as visits 60 to 99, so only those versions are found
+            assertEquals(0, index.search("visit 5", null, 10).total());
+            assertEquals(List.of("n5"), ids(index.search("visit 65", null, 10)));
+            assertEquals(List.of("n45"), ids(index.search("visit 45", null, 10)));
+            assertEquals(30, index.search("odd", null, 100).total());
+            assertEquals(29, index.search("even", null, 100).total());
+        }
+        try (var index = new NoteIndex(dir)) {
+            assertEquals(59, index.size());
+            assertEquals(29, index.search("even", null, 100).total());
+        }
+    }
+
+    @Test
+    public void testFullBufferIsWrittenOnTheFlusher() throws Exception {
+        var queued = new ArrayList<Runnable>();
+        try (var index = new NoteIndex(dir)) {
+            index.flushNotes = 3;
+            index.flusher = queued::add;
+            for (int i = 0; i < 7; i++)
+                index.add("n" + i, "p1", (long) i, "visit " + i);
+            // adding only hands the full buffers over
+            assertEquals(2, queued.size());
+            assertEquals(0, index.segments());
+            assertEquals(7, index.search("visit", null, 10).total());
+            index.delete("n1");
+            // the flush writes every full buffer and what has gathered since
+            queued.get(0).run();
+            assertEquals(3, index.segments());
+            assertEquals(6, index.search("visit", null, 10).total());
+            assertEquals(List.of("n4"), ids(index.search("visit 4", null, 10)));
+        }
+        try (var index = new NoteIndex(dir)) {
+            assertEquals(6, index.size());
+        }
+    }
+
+    @Test
+    public void testSegmentsStayUnderTheLimit() throws Exception {
+        try (var index = new NoteIndex(dir)) {
+            index.maxSegmentBytes = 16_000;
+            index.mergeFactor = 2;
+            for (int i = 0; i < 40; i++) {
+                var text = new StringBuilder();
+                for (int w = 0; w < 100; w++)
+                    text.append("term").append(i * 100 + w).append(' ');
+                index.add("n" + i, "p1", (long) i, text.toString());
+            }
+            index.flush();
+            assertTrue(index.segments() > 1, "segments " + index.segments());
+            assertEquals(1, index.search("term3999", null, 10).total());
+            assertEquals(40, index.size());
+        }
+        try (var files = Files.list(dir)) {
+            for (var file : files.toList())
+                assertTrue(Files.size(file) <= 16_000, file + " is " + Files.size(file));
+        }
+    }
+
+    @Test
+    public void testIndexesExtractedNotes() throws Exception {
+        try (var upstream = new MockFhirServer(); var index = new NoteIndex(dir)) {
+            upstream.patients = 2;
+            upstream.notesPerPatient = 5;
+            var handler = upstream.handler();
+            handler.fetchExecutor = Executors.newCachedThreadPool();
+            handler.index = index;
+            var sink = new FhirHandler.NoteSink() {
+                @Override
+                public void patient(String fhirId, List<String> names) {
+                }
+
+                @Override
+                public void note(NoteDocument doc, FhirHandler.Content content) {
+                }
+            };
+            handler.extract(null, "1", null, sink);
+            handler.extract(null, "2", null, sink);
+            handler.fetchExecutor.shutdown();
+
+            assertEquals(10, index.size());
+            // the markup isn't indexed
+            assertEquals(0, index.search("html", null, 10).total());
+            var result = index.search("note 3 patient 2", null, 10);
+            assertEquals(1, result.total());
+            var hit = result.hits().get(0);
+            assertEquals("p2", hit.patient());
+            assertTrue(hit.snippet().contains("Note 3 for patient 2"), hit.snippet());
+            assertEquals(5, index.search("note", Set.of("p1"), 10).total());
+        }
+    }
+
+    @Test
+    public void testPlainExtractionIndexesConvertedText() throws Exception {
+        try (var upstream = new MockFhirServer(); var index = new NoteIndex(dir)) {
+            upstream.patients = 1;
+            upstream.notesPerPatient = 5;
+            var handler = upstream.handler();
+            handler.fetchExecutor = Executors.newCachedThreadPool();
+            handler.normalizer.executor = Executors.newFixedThreadPool(2);
+            handler.index = index;
+            var conversions = new AtomicInteger();
+            handler.normalizer.register("text/html", (in, out) -> {
+                conversions.incrementAndGet();
+                TextNormalizer.html(in, out);
+            });
+            var texts = new ArrayList<String>();
+            var out = handler.normalizer.sink(new FhirHandler.NoteSink() {
+                @Override
+                public void patient(String fhirId, List<String> names) {
+                }
+
+                @Override
+                public void note(NoteDocument doc, FhirHandler.Content content) {
+                    texts.add(content.text());
+                }
+            });
+            handler.extract(null, "1", null, out);
+            out.finish();
+            handler.fetchExecutor.shutdown();
+            handler.normalizer.executor.shutdown();
+
+            assertEquals(5, texts.size());
+            // each note is converted once, for the client, and indexed as it was handed on
+            assertEquals(5, conversions.get());
+            assertEquals(5, index.size());
+            assertEquals(0, index.search("html", null, 10).total());
+            assertEquals(1, index.search("note 3 patient 1", null, 10).total());
+        }
+    }
+
+    private static List<String> ids(NoteIndex.Result result) {
+        return result.hits().stream().map(NoteIndex.Hit::id).toList();
+    }
+}
@@ -0,0 +1,38 @@
+package org.emerse.fhir;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestPatientCache {
+    private static final PatientCache.PatientInfo PATIENT = new PatientCache.PatientInfo("abc", List.of("Test Patient"));
+
+    @Test
+    public void testHitsAndEviction() {
+        var cache = new PatientCache(2, 60_000, 60_000);
+        assertNull(cache.get("mrn:1"));
+        cache.put("mrn:1", PATIENT);
+        cache.put("mrn:2", PATIENT);
+        assertEquals(PATIENT, cache.get("mrn:1").patient());
+        cache.put("mrn:3", PATIENT);
+        assertNull(cache.get("mrn:2"));
+        assertNotNull(cache.get("mrn:1"));
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.hits());
+        assertEquals(2, cache.misses());
+    }
+
+    @Test
+    public void testNegativeEntriesAndExpiry() throws InterruptedException {
+        var cache = new PatientCache(10, 5, 60_000);
+        cache.put("mrn:unknown", null);
+        var negative = cache.get("mrn:unknown");
+        assertNotNull(negative);
+        assertNull(negative.patient());
+        cache.put("mrn:1", PATIENT);
+        Thread.sleep(20);
+        assertNull(cache.get("mrn:1"));
+    }
+}
@@ -0,0 +1,174 @@
+package org.emerse.fhir;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestPeriodPartitioner {
+    private static final LocalDate TODAY = LocalDate.of(2024, 6, 30);
+
+    @Test
+    public void testEqualSlicesBeforeAnythingIsLearned() {
+        var partitioner = new PeriodPartitioner();
+        partitioner.maxPartitions = 4;
+        var ranges = partitioner.split(LocalDate.of(2020, 7, 1), TODAY);
+        assertEquals(4, ranges.size());
+        assertContiguous(LocalDate.of(2020, 7, 1), ranges);
+        for (int i = 0; i < 3; i++) {
+            var days = ranges.get(i).to().toEpochDay() - ranges.get(i).from().toEpochDay();
+            assertEquals(365, days, 2);
+        }
+    }
+
+    @Test
+    public void testShortPeriodIsNotSplit() {
+        var partitioner = new PeriodPartitioner();
+        assertEquals(List.of(new PeriodPartitioner.Range(LocalDate.of(2024, 6, 1), null)),
+                partitioner.split(LocalDate.of(2024, 6, 1), TODAY));
+    }
+
+    @Test
+    public void testSizesFollowDensity() {
+        var partitioner = new PeriodPartitioner();
+        partitioner.maxPartitions = 8;
+        partitioner.targetNotes = 100;
+        // a sparse old year and a busy recent one
+        partitioner.observe(new PeriodPartitioner.Range(LocalDate.of(2022, 7, 1), LocalDate.of(2023, 7, 1)), 10, TODAY);
+        partitioner.observe(new PeriodPartitioner.Range(LocalDate.of(2023, 7, 1), null), 300, TODAY);
+
+        var ranges = partitioner.split(LocalDate.of(2022, 7, 1), TODAY);
+        assertContiguous(LocalDate.of(2022, 7, 1), ranges);
+        assertEquals(4, ranges.size());
+        // the sparse year is one range, the busy one is cut into three
+        assertTrue(ranges.get(0).to().isAfter(LocalDate.of(2023, 6, 1)), ranges::toString);
+
+        partitioner.targetNotes = 1000;
+        assertEquals(1, partitioner.split(LocalDate.of(2022, 7, 1), TODAY).size());
+    }
+
+    @Test
+    public void testParse() {
+        assertEquals(LocalDate.of(2020, 1, 11), PeriodPartitioner.parse("2020-01-11"));
+        assertEquals(LocalDate.of(2020, 1, 11), PeriodPartitioner.parse("2020-01-11T10:00:00Z"));
+        assertNull(PeriodPartitioner.parse("2020"));
+        assertNull(PeriodPartitioner.parse(null));
+    }
+
+    @Test
+    public void testSplitSearchKeepsOrder() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try (var server = new MockFhirServer()) {
+            server.patients = 2;
+            server.notesPerPatient = 400;
+            server.pageSize = 20;
+            server.inlineRatio = 1;
+            // each range comes back in order only because it asks for it
+            server.shuffle = true;
+            var handler = server.handler();
+            handler.fetchExecutor = executor;
+            handler.fetchPermits = new Semaphore(16);
+            handler.planner = QueryPlanner.discover(handler.client);
+            handler.partitioner = new PeriodPartitioner();
+            handler.partitioner.targetNotes = 100;
+
+            for (int round = 0; round < 2; round++) {
+                var timestamps = new ArrayList<Long>();
+                handler.writeNotes("p1", "2020-01-11", new FhirHandler.NoteSink() {
+                    @Override
+                    public void patient(String fhirId, List<String> names) {
+                    }
+
+                    @Override
+                    public void note(NoteDocument doc, FhirHandler.Content content) {
+                        timestamps.add(doc.timestamp());
+                    }
+                });
+                assertEquals(server.documentCount("2020-01-11"), timestamps.size());
+                for (int i = 1; i < timestamps.size(); i++) {
+                    assertTrue(timestamps.get(i - 1) < timestamps.get(i));
+                }
+            }
+            assertEquals(2, handler.metrics.splitSearches.sum());
+            // the second search is sized from what the first one found
+            assertTrue(handler.metrics.rangeSearches.sum() > 8, () -> "" + handler.metrics.rangeSearches.sum());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testUnsortedServerIsSearchedInOneGo() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try (var server = new MockFhirServer()) {
+            server.patients = 1;
+            server.notesPerPatient = 200;
+            server.inlineRatio = 1;
+            server.supportSort = false;
+            server.shuffle = true;
+            var handler = server.handler();
+            handler.fetchExecutor = executor;
+            handler.planner = QueryPlanner.discover(handler.client);
+            handler.partitioner = new PeriodPartitioner();
+            handler.partitioner.targetNotes = 20;
+
+            var ids = new ArrayList<String>();
+            handler.writeNotes("p1", "2020-01-11", new FhirHandler.NoteSink() {
+                @Override
+                public void patient(String fhirId, List<String> names) {
+                }
+
+                @Override
+                public void note(NoteDocument doc, FhirHandler.Content content) {
+                    ids.add(doc.id());
+                }
+            });
+            assertEquals(server.documentCount("2020-01-11"), ids.size());
+            assertEquals(ids.size(), Set.copyOf(ids).size());
+            assertEquals(0, handler.metrics.splitSearches.sum());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testMergeReadsCrossingNotesOnce() {
+        // b's period crosses from the first range into the second, so both searches find it
+        var first = pages(doc("a", 1), doc("b", 5), doc("d", 9));
+        var second = pages(doc("c", 3), doc("b", 5), doc("e", 8));
+        var merged = DocumentPages.merge(List.of(
+                CompletableFuture.completedFuture(first), CompletableFuture.completedFuture(second)));
+        var ids = new ArrayList<String>();
+        merged.forEachRemaining(doc -> ids.add(doc.id()));
+        assertEquals(List.of("a", "c", "b", "e", "d"), ids);
+    }
+
+    private static DocumentPages pages(NoteDocument... docs) {
+        return new DocumentPages(url -> null, null, new DocumentPages.Page(List.of(docs), null));
+    }
+
+    private static NoteDocument doc(String id, long timestamp) {
+        return new NoteDocument(id, "1", timestamp, "Progress Note", "text/plain", null, null);
+    }
+
+    private static void assertContiguous(LocalDate from, List<PeriodPartitioner.Range> ranges) {
+        var expected = from;
+        for (int i = 0; i < ranges.size(); i++) {
+            var range = ranges.get(i);
+            assertEquals(expected, range.from());
+            if (i == ranges.size() - 1)
+                assertNull(range.to());
+            else
+                assertTrue(range.to().isAfter(range.from()));
+            expected = range.to();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.emerse.fhir;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestQueryPlanner {
+    private static final FhirContext fhir = FhirContext.forR4();
+
+    static {
+        new ClientPool().configure(fhir);
+    }
+
+    @Test
+    public void testDiscover() throws Exception {
+        try (var server = new MockFhirServer()) {
+            var url = server.start();
+            var planner = QueryPlanner.discover(fhir.newRestfulGenericClient(url));
+            assertTrue(planner.include);
+            assertTrue(planner.chain);
+            assertTrue(planner.count);
+            assertTrue(planner.sort);
+        }
+        try (var server = new MockFhirServer()) {
+            server.advertiseInclude = false;
+            server.supportSort = false;
+            var planner = QueryPlanner.discover(fhir.newRestfulGenericClient(server.start()));
+            assertFalse(planner.include);
+            assertFalse(planner.sort);
+            assertFalse(planner.combines("p1"));
+        }
+    }
+
+    @Test
+    public void testCombinedSearch() throws Exception {
+        var planner = new QueryPlanner();
+        planner.include = true;
+        planner.chain = true;
+        planner.count = true;
+        planner.pageSize = 50;
+        assertEquals("DocumentReference?patient.identifier=MRN%7C000000001&period=ge2020-01-11"
+                        + "&_include=DocumentReference:patient&_count=50",
+                planner.combinedSearch(null, "000000001", "2020-01-11"));
+        assertEquals("DocumentReference?patient=p1&_count=50", planner.documentSearch("p1", null));
+    }
+
+    @Test
+    public void testOneRoundTrip() throws Exception {
+        try (var server = new MockFhirServer()) {
+            server.patients = 4;
+            server.notesPerPatient = 5;
+            server.inlineRatio = 1;
+            var handler = newHandler(server);
+            handler.planner = QueryPlanner.discover(handler.client);
+            server.requestsByPath.clear();
+
+            var report = new LoadHarness().run(handler, List.of(MockFhirServer.mrn(1), MockFhirServer.mrn(2)));
+            assertTrue(report.failures().isEmpty(), () -> report.failures().toString());
+            assertEquals(2 * server.notesPerPatient, report.notes());
+            assertEquals(2, server.requestsByPath.get("/DocumentReference").get());
+            assertNull(server.requestsByPath.get("/Patient"));
+
+            var plan = handler.plan(null, MockFhirServer.mrn(3), null);
+            assertEquals("p3", plan.patient().fhirId());
+            assertEquals(List.of("Patient 3"), plan.patient().names());
+            plan.documents().close();
+        }
+    }
+
+    @Test
+    public void testChainRejected() throws Exception {
+        try (var server = new MockFhirServer()) {
+            server.patients = 4;
+            server.notesPerPatient = 5;
+            server.supportChain = false;
+            var handler = newHandler(server);
+            handler.planner = QueryPlanner.discover(handler.client);
+
+            var report = new LoadHarness().run(handler, List.of(MockFhirServer.mrn(1), MockFhirServer.mrn(2)));
+            assertTrue(report.failures().isEmpty(), () -> report.failures().toString());
+            assertEquals(2 * server.notesPerPatient, report.notes());
+            assertFalse(handler.planner.chain);
+        }
+    }
+
+    @Test
+    public void testUnknownPatient() throws Exception {
+        try (var server = new MockFhirServer()) {
+            server.patients = 2;
+            var handler = newHandler(server);
+            handler.planner = QueryPlanner.discover(handler.client);
+            var report = new LoadHarness().run(handler, List.of(MockFhirServer.mrn(3)));
+            assertEquals(1, report.failures().size());
+        }
+    }
+
+    private static FhirHandler newHandler(MockFhirServer server) throws Exception {
+        var fhirHandler = server.handler();
+        fhirHandler.patientCache = new PatientCache(100, 60_000, 60_000);
+        return fhirHandler;
+    }
+}
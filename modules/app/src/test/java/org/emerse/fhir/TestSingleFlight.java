@@ -0,0 +1,220 @@
+package org.emerse.fhir;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestSingleFlight {
+    private static NoteDocument doc(int i) {
+        return new NoteDocument("d" + i, "1", (long) i, "Progress Note", "text/plain", null, null);
+    }
+
+    private static FhirHandler.Content content(int i) {
+        return new FhirHandler.Content(("note " + i).getBytes(StandardCharsets.UTF_8), "text/plain");
+    }
+
+    private static class ListSink implements FhirHandler.NoteSink {
+        final List<String> ids = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void patient(String fhirId, List<String> names) {
+        }
+
+        @Override
+        public void note(NoteDocument doc, FhirHandler.Content content) {
+            ids.add(doc.id());
+        }
+    }
+
+    @Test
+    public void testFollowersShareOneExtraction() throws Exception {
+        var singleFlight = new SingleFlight();
+        var runs = new AtomicInteger();
+        var halfway = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        SingleFlight.Extraction extraction = sink -> {
+            runs.incrementAndGet();
+            for (int i = 0; i < 10; i++) {
+                if (i == 5) {
+                    halfway.countDown();
+                    assertTrue(release.await(10, TimeUnit.SECONDS));
+                }
+                sink.note(doc(i), content(i));
+            }
+        };
+        var leaderSink = new ListSink();
+        var leader = CompletableFuture.runAsync(() -> {
+            try {
+                singleFlight.run("p1|2021-01-01", extraction, leaderSink);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue(halfway.await(10, TimeUnit.SECONDS));
+        var followers = new ArrayList<CompletableFuture<ListSink>>();
+        for (int f = 0; f < 3; f++) {
+            followers.add(CompletableFuture.supplyAsync(() -> {
+                var sink = new ListSink();
+                try {
+                    singleFlight.run("p1|2021-01-01", extraction, sink);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                return sink;
+            }));
+        }
+        while (singleFlight.shared() < 3) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+        leader.get(10, TimeUnit.SECONDS);
+        for (var follower : followers) {
+            assertEquals(leaderSink.ids, follower.get(10, TimeUnit.SECONDS).ids);
+        }
+        assertEquals(10, leaderSink.ids.size());
+        assertEquals(1, runs.get());
+        assertEquals(0, singleFlight.inFlight());
+    }
+
+    @Test
+    public void testFollowersSeeFailure() throws Exception {
+        var singleFlight = new SingleFlight();
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var leader = CompletableFuture.runAsync(() -> {
+            try {
+                singleFlight.run("k", sink -> {
+                    sink.note(doc(0), content(0));
+                    started.countDown();
+                    release.await();
+                    throw new IllegalStateException("upstream failed");
+                }, new ListSink());
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        var sink = new ListSink();
+        var follower = CompletableFuture.runAsync(() -> {
+            try {
+                singleFlight.run("k", s -> fail("should not run"), sink);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        while (singleFlight.shared() < 1) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+        var error = assertThrows(ExecutionException.class, () -> follower.get(10, TimeUnit.SECONDS));
+        assertEquals("upstream failed", error.getCause().getCause().getMessage());
+        assertEquals(List.of("d0"), sink.ids);
+        assertThrows(ExecutionException.class, () -> leader.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testLateCallersRunTheirOwn() throws Exception {
+        var singleFlight = new SingleFlight();
+        singleFlight.replayNotes = 4;
+        var runs = new AtomicInteger();
+        var pastReplay = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var leader = CompletableFuture.runAsync(() -> {
+            try {
+                singleFlight.run("k", sink -> {
+                    runs.incrementAndGet();
+                    for (int i = 0; i < 10; i++) {
+                        sink.note(doc(i), content(i));
+                        if (i == 5) {
+                            pastReplay.countDown();
+                            assertTrue(release.await(10, TimeUnit.SECONDS));
+                        }
+                    }
+                }, new ListSink());
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue(pastReplay.await(10, TimeUnit.SECONDS));
+        var late = new ListSink();
+        singleFlight.run("k", sink -> {
+            runs.incrementAndGet();
+            sink.note(doc(0), content(0));
+        }, late);
+        release.countDown();
+        leader.get(10, TimeUnit.SECONDS);
+        assertEquals(2, runs.get());
+        assertEquals(List.of("d0"), late.ids);
+        assertEquals(0, singleFlight.shared());
+    }
+
+    @Test
+    public void testSlowFollowerGetsEveryNote() throws Exception {
+        var singleFlight = new SingleFlight();
+        singleFlight.replayNotes = 4;
+        var started = new CountDownLatch(1);
+        var joined = new CountDownLatch(1);
+        var leaderSink = new ListSink();
+        var leader = CompletableFuture.runAsync(() -> {
+            try {
+                singleFlight.run("k", sink -> {
+                    sink.note(doc(0), content(0));
+                    started.countDown();
+                    assertTrue(joined.await(10, TimeUnit.SECONDS));
+                    for (int i = 1; i < 50; i++)
+                        sink.note(doc(i), content(i));
+                }, leaderSink);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        var slow = new ListSink() {
+            @Override
+            public void note(NoteDocument doc, FhirHandler.Content content) {
+                super.note(doc, content);
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        var follower = CompletableFuture.runAsync(() -> {
+            try {
+                singleFlight.run("k", sink -> fail("should not run"), slow);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        while (singleFlight.shared() < 1) {
+            Thread.sleep(5);
+        }
+        joined.countDown();
+        leader.get(10, TimeUnit.SECONDS);
+        follower.get(10, TimeUnit.SECONDS);
+        assertEquals(50, slow.ids.size());
+        assertEquals(leaderSink.ids, slow.ids);
+    }
+
+    @Test
+    public void testSequentialCallsRunAgain() throws Exception {
+        var singleFlight = new SingleFlight();
+        var runs = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            singleFlight.run("k", sink -> runs.incrementAndGet(), new ListSink());
+        }
+        assertEquals(3, runs.get());
+        assertEquals(0, singleFlight.shared());
+    }
+}
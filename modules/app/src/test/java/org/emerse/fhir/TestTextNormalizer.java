@@ -0,0 +1,136 @@
+package org.emerse.fhir;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestTextNormalizer {
+    private final TextNormalizer normalizer = new TextNormalizer();
+
+    @Test
+    public void testHtml() throws Exception {
+        var html = "<!DOCTYPE html><html><head><title>Visit</title><style>p { color: red; }</style>"
+                + "<script>if (a < b) alert('x');</script></head><body>"
+                + "<p class=\"a > b\">Fever &amp; chills,   temp&nbsp;38&#176;C</p><!-- not <p>this</p> -->"
+                + "<ul><li>Tylenol</li><li>Fluids &unknown; &amp</li></ul>Line<br/>Next"
+                + "<table><tr><td>BP</td><td>120/80</td></tr></table></body></html>";
+        assertEquals("Visit\nFever & chills, temp 38\u00b0C\nTylenol\nFluids &unknown; &amp\nLine\nNext\nBP 120/80",
+                text(html, "text/html; charset=UTF-8"));
+    }
+
+    @Test
+    public void testRtf() throws Exception {
+        var rtf = "{\\rtf1\\ansi\\ansicpg1252\\deff0{\\fonttbl{\\f0\\fswiss Arial;}}{\\colortbl;\\red255\\green0\\blue0;}\r\n"
+                + "{\\*\\generator Riched20;}{\\info{\\author Dr. X}}\\pard\\f0\\fs20 Patient seen\\tab today.\\par\r\n"
+                + "Temp 38\\'b0C, caf\\u233?, \\{braces\\} and a back\\\\slash\\par\r\n"
+                + "{\\pict\\pngblip 89504e47}\\uc2\\u8212\\'97\\'97 done\\par}";
+        assertEquals("Patient seen\ttoday.\nTemp 38\u00b0C, caf\u00e9, {braces} and a back\\slash\n\u2014 done",
+                text(rtf, "text/rtf"));
+    }
+
+    @Test
+    public void testDispatchesByType() throws Exception {
+        assertEquals("a  b", text("a  b", "text/plain; charset=ISO-8859-1"));
+        assertEquals("a b", text("a <b>b</b>", "application/xhtml+xml"));
+        var pdf = new FhirHandler.Content(new byte[] {37, 80, 68, 70}, "application/pdf");
+        assertSame(pdf, normalizer.normalize(pdf));
+        assertSame(FhirHandler.MISSING, normalizer.normalize(FhirHandler.MISSING));
+        assertNull(normalizer.normalize(null));
+
+        normalizer.register("Application/PDF", (in, out) -> out.append("pdf text"));
+        assertEquals("pdf text", normalizer.normalize(pdf).text());
+    }
+
+    @Test
+    public void testPipelineKeepsOrder() throws Exception {
+        var pool = Executors.newFixedThreadPool(4);
+        normalizer.executor = pool;
+        normalizer.window = 3;
+        // later notes are quicker to convert, so they finish first
+        normalizer.register("text/slow", (in, out) -> {
+            var text = new StringBuilder();
+            for (int c; (c = in.read()) >= 0; )
+                text.append((char) c);
+            try {
+                Thread.sleep(50 - Integer.parseInt(text.toString()) * 2L);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            out.append(text);
+        });
+        try {
+            var seen = new ArrayList<String>();
+            var sink = normalizer.sink(new FhirHandler.NoteSink() {
+                @Override
+                public void patient(String fhirId, List<String> names) {
+                    seen.add("patient " + fhirId);
+                }
+
+                @Override
+                public void note(NoteDocument doc, FhirHandler.Content content) {
+                    assertEquals(TextNormalizer.PLAIN_TEXT, content.type());
+                    seen.add(content.text());
+                }
+
+                @Override
+                public void deleted(String id) {
+                    seen.add("deleted " + id);
+                }
+            });
+            var expected = new ArrayList<String>();
+            sink.patient("p1", List.of());
+            expected.add("patient p1");
+            for (int i = 0; i < 20; i++) {
+                sink.note(null, new FhirHandler.Content(String.valueOf(i).getBytes(StandardCharsets.UTF_8), "text/slow"));
+                expected.add(String.valueOf(i));
+                if (i == 10) {
+                    sink.deleted("n1");
+                    expected.add("deleted n1");
+                }
+            }
+            sink.finish();
+            assertEquals(expected, seen);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testPipelineFailure() throws Exception {
+        var pool = Executors.newFixedThreadPool(2);
+        normalizer.executor = pool;
+        normalizer.register("text/broken", (in, out) -> {
+            throw new IOException("unreadable");
+        });
+        try {
+            var sink = normalizer.sink(new FhirHandler.NoteSink() {
+                @Override
+                public void patient(String fhirId, List<String> names) {
+                }
+
+                @Override
+                public void note(NoteDocument doc, FhirHandler.Content content) {
+                }
+            });
+            // the failure surfaces from whichever call delivers the note, so from note() if it's already done
+            var e = assertThrows(IOException.class, () -> {
+                sink.note(null, new FhirHandler.Content(new byte[0], "text/broken"));
+                sink.finish();
+            });
+            assertEquals("unreadable", e.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private String text(String content, String type) throws Exception {
+        var charset = FhirHandler.Content.charsetOf(type);
+        return normalizer.normalize(new FhirHandler.Content(content.getBytes(charset), type)).text();
+    }
+}
@@ -0,0 +1,26 @@
+package org.emerse.fhir;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestVirtualThreads {
+    @Test
+    public void testStoppingTheServerEndsJoin() throws Exception {
+        // any executor stands in for the virtual thread one, which needs Java 21
+        var pool = new VirtualThreads.VirtualThreadPool(Executors.newCachedThreadPool());
+        var server = new Server(pool);
+        var connector = new ServerConnector(server);
+        connector.setPort(0);
+        server.addConnector(connector);
+        server.start();
+        server.stop();
+        assertTrue(pool.isStopped());
+        assertTimeoutPreemptively(Duration.ofSeconds(10), server::join);
+    }
+}
@@ -0,0 +1,63 @@
+package org.emerse.fhir.bench;
+
+import ca.uhn.fhir.parser.IParser;
+import com.fasterxml.jackson.core.JsonFactory;
+import org.emerse.fhir.BundleParser;
+import org.emerse.fhir.DocumentPages;
+import org.emerse.fhir.NoteDocument;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One page of a DocumentReference search, from response bytes to the {@link NoteDocument}s the handler works with.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BundleParseBenchmark
+{
+	@Param({"10", "100"})
+	public int pageSize;
+
+	@Param({"false", "true"})
+	public boolean inline;
+
+	private final IParser hapiParser = Notes.FHIR.newJsonParser();
+	private final BundleParser bundleParser = new BundleParser(new JsonFactory());
+	private byte[] page;
+
+	@Setup
+	public void setup()
+	{
+		page = Notes.bundle(pageSize, 4096, inline).getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public List<NoteDocument> hapiBundle()
+	{
+		var bundle = hapiParser.parseResource(Bundle.class, new ByteArrayInputStream(page));
+		var docs = new ArrayList<NoteDocument>(bundle.getEntry().size());
+		for (var entry : bundle.getEntry())
+		{
+			docs.add(NoteDocument.of((DocumentReference) entry.getResource()));
+		}
+		return docs;
+	}
+
+	@Benchmark
+	public DocumentPages.Page streamingBundle() throws IOException
+	{
+		return bundleParser.parseBundle(new ByteArrayInputStream(page));
+	}
+}
@@ -0,0 +1,76 @@
+package org.emerse.fhir.bench;
+
+import ca.uhn.fhir.parser.IParser;
+import com.fasterxml.jackson.core.JsonFactory;
+import org.emerse.fhir.BundleParser;
+import org.emerse.fhir.FhirHandler;
+import org.hl7.fhir.r4.model.Binary;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning a Binary response body into note text, the work {@code getDocumentContent} does for every URL attachment:
+ * through the HAPI model, through the streaming parser, and the final decode of the bytes into characters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentDecodeBenchmark
+{
+	@Param({"2048", "32768", "262144"})
+	public int noteSize;
+
+	private final IParser hapiParser = Notes.FHIR.newJsonParser();
+	private final BundleParser bundleParser = new BundleParser(new JsonFactory());
+	private byte[] body;
+	private FhirHandler.Content content;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		body = Notes.binary(noteSize).getBytes(StandardCharsets.UTF_8);
+		content = bundleParser.parseBinary(new ByteArrayInputStream(body));
+	}
+
+	@Benchmark
+	public String hapiBinary()
+	{
+		var binary = hapiParser.parseResource(Binary.class, new ByteArrayInputStream(body));
+		return new FhirHandler.Content(binary.getContent(), binary.getContentType()).text();
+	}
+
+	@Benchmark
+	public String streamingBinary() throws IOException
+	{
+		return bundleParser.parseBinary(new ByteArrayInputStream(body)).text();
+	}
+
+	@Benchmark
+	public String decodeText()
+	{
+		return content.text();
+	}
+
+	@Benchmark
+	public long readText() throws IOException
+	{
+		var buffer = new char[8192];
+		long total = 0;
+		try (var reader = content.reader())
+		{
+			int n;
+			while ((n = reader.read(buffer)) > 0)
+			{
+				total += n;
+			}
+		}
+		return total;
+	}
+}
@@ -0,0 +1,74 @@
+package org.emerse.fhir.bench;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+import org.emerse.fhir.AbstractHandler;
+import org.emerse.fhir.HandlerMap;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dispatch through {@link HandlerMap} to the first, last and a nested route, and a miss, with a dozen routes mapped.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerMapBenchmark
+{
+	private static final String[] ROUTES = {
+		"fhir", "batch", "metrics", "note", "search", "export", "jobs", "status", "health", "admin", "cache", "static"
+	};
+
+	private HandlerMap handlerMap;
+	private Blackhole blackhole;
+
+	@Setup
+	public void setup(Blackhole blackhole)
+	{
+		this.blackhole = blackhole;
+		handlerMap = new HandlerMap();
+		for (var route : ROUTES)
+		{
+			handlerMap.put(route, new AbstractHandler()
+			{
+				@Override
+				protected void doHandle(
+					String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response
+				)
+				{
+					HandlerMapBenchmark.this.blackhole.consume(target);
+				}
+			});
+		}
+	}
+
+	@Benchmark
+	public void first() throws Exception
+	{
+		handlerMap.doHandle("/fhir", null, null, null);
+	}
+
+	@Benchmark
+	public void last() throws Exception
+	{
+		handlerMap.doHandle("/static", null, null, null);
+	}
+
+	@Benchmark
+	public void nested() throws Exception
+	{
+		handlerMap.doHandle("/static/css/site.css", null, null, null);
+	}
+
+	@Benchmark
+	public void miss() throws Exception
+	{
+		handlerMap.doHandle("/unknown/path", null, null, null);
+	}
+}
@@ -0,0 +1,80 @@
+package org.emerse.fhir.bench;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import org.emerse.fhir.FhirHandler;
+import org.emerse.fhir.NoteDocument;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-note loop of {@code FhirHandler.doHandle}: one patient header followed by {@code notes} note objects, written
+ * through {@link FhirHandler.JsonNoteSink} to a writer over a discarding stream, as the servlet writer would be.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonWriteBenchmark
+{
+	@Param({"20", "200"})
+	public int notes;
+
+	@Param({"2048", "32768"})
+	public int noteSize;
+
+	private final JsonFactory jsonFactory = new JsonFactory();
+	private List<NoteDocument> documents;
+	private List<FhirHandler.Content> contents;
+
+	@Setup
+	public void setup()
+	{
+		documents = Notes.documents(notes);
+		contents = Notes.contents(notes, noteSize);
+	}
+
+	@Benchmark
+	public long writeNotes() throws Exception
+	{
+		var out = new CountingOutputStream();
+		var writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+		var sink = new FhirHandler.JsonNoteSink(() -> jsonFactory.createGenerator(writer));
+		try
+		{
+			sink.patient("p1", List.of("Test Patient"));
+			for (int i = 0; i < notes; i++)
+			{
+				sink.note(documents.get(i), contents.get(i));
+			}
+		}
+		finally
+		{
+			sink.close();
+		}
+		return out.count;
+	}
+
+	private static class CountingOutputStream extends OutputStream
+	{
+		long count;
+
+		@Override
+		public void write(int b)
+		{
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			count += len;
+		}
+	}
+}
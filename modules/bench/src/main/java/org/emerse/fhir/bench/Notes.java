@@ -0,0 +1,108 @@
+package org.emerse.fhir.bench;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.emerse.fhir.FhirHandler;
+import org.emerse.fhir.NoteDocument;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DocumentReference;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Deterministic synthetic notes shared by the benchmarks, shaped like the DocumentReference pages and Binary payloads
+ * Epic returns.
+ */
+final class Notes
+{
+	static final FhirContext FHIR = FhirContext.forR4();
+
+	private static final String[] WORDS = {
+		"patient", "reports", "intermittent", "chest", "pain", "denies", "fever", "history", "of", "hypertension",
+		"follow", "up", "in", "two", "weeks", "medication", "reviewed", "plan", "continue", "therapy", "and",
+		"caf\u00e9", "na\u00efve", "\u00b1", "mg"
+	};
+
+	private Notes()
+	{
+	}
+
+	static String html(int seed, int size)
+	{
+		var random = new Random(seed);
+		var text = new StringBuilder("<html><body><p>");
+		while (text.length() < size - 20)
+		{
+			text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(12) == 0 ? ".</p><p>" : " ");
+		}
+		return text.append("</p></body></html>").toString();
+	}
+
+	static DocumentReference document(int i, int size, boolean inline)
+	{
+		var doc = new DocumentReference();
+		doc.setId("d" + i);
+		doc.getMeta().setVersionId("1");
+		doc.setDate(new Date(1577836800000L + i * 3_600_000L));
+		doc.getType().setText(i % 2 == 0 ? "Progress Note" : "Discharge Summary");
+		doc.getSubject().setReference("Patient/p1");
+		var attachment = doc.addContent().getAttachment().setContentType("text/html; charset=UTF-8");
+		if (inline)
+		{
+			attachment.setData(html(i, size).getBytes(StandardCharsets.UTF_8));
+		}
+		else
+		{
+			attachment.setUrl("https://fhir.example.org/api/FHIR/R4/Binary/b" + i);
+		}
+		return doc;
+	}
+
+	static String bundle(int count, int size, boolean inline)
+	{
+		var bundle = new Bundle().setType(Bundle.BundleType.SEARCHSET);
+		for (int i = 0; i < count; i++)
+		{
+			bundle.addEntry()
+				.setFullUrl("https://fhir.example.org/api/FHIR/R4/DocumentReference/d" + i)
+				.setResource(document(i, size, inline));
+		}
+		bundle.addLink()
+			.setRelation(Bundle.LINK_NEXT)
+			.setUrl("https://fhir.example.org/api/FHIR/R4/DocumentReference?patient=p1&page=2");
+		return FHIR.newJsonParser().encodeResourceToString(bundle);
+	}
+
+	static String binary(int size)
+	{
+		var binary = new Binary();
+		binary.setId("b1");
+		binary.setContentType("text/html; charset=UTF-8");
+		binary.setContent(html(1, size).getBytes(StandardCharsets.UTF_8));
+		return FHIR.newJsonParser().encodeResourceToString(binary);
+	}
+
+	static List<NoteDocument> documents(int count)
+	{
+		var docs = new ArrayList<NoteDocument>(count);
+		for (int i = 0; i < count; i++)
+		{
+			docs.add(NoteDocument.of(document(i, 0, false)));
+		}
+		return docs;
+	}
+
+	static List<FhirHandler.Content> contents(int count, int size)
+	{
+		var contents = new ArrayList<FhirHandler.Content>(count);
+		for (int i = 0; i < count; i++)
+		{
+			contents.add(new FhirHandler.Content(html(i, size).getBytes(StandardCharsets.UTF_8), "text/html; charset=UTF-8"));
+		}
+		return contents;
+	}
+}
@@ -0,0 +1,61 @@
+package org.emerse.fhir.bench;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.util.MultiMap;
+import org.emerse.fhir.ParameterSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request parameter conversion as the handlers do it: a fresh {@link ParameterSource} per request, then typed lookups.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParameterSourceBenchmark
+{
+	private Request request;
+
+	@Setup
+	public void setup()
+	{
+		request = new Request(null, null);
+		var params = new MultiMap<String>();
+		params.put("mrn", "000012345");
+		params.put("after", "2021-11-01");
+		params.put("count", "250");
+		params.put("since", "2021-11-01T08:30:00");
+		params.put("ids", "1,2,3,4,5,6,7,8");
+		request.setQueryParameters(params);
+	}
+
+	@Benchmark
+	public String string() throws Exception
+	{
+		return new ParameterSource(request).getParameter("mrn", String.class);
+	}
+
+	@Benchmark
+	public Integer integer() throws Exception
+	{
+		return new ParameterSource(request).getParameter("count", Integer.class);
+	}
+
+	@Benchmark
+	public Date date() throws Exception
+	{
+		return new ParameterSource(request).getParameter("since", Date.class);
+	}
+
+	@Benchmark
+	public List<Integer> list() throws Exception
+	{
+		return new ParameterSource(request).getParameterList("ids", Integer.class);
+	}
+}
@@ -0,0 +1,128 @@
+package org.emerse.fhir.bench;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.emerse.fhir.AbstractHandler;
+import org.emerse.fhir.FhirHandler;
+import org.emerse.fhir.MockFhirServer;
+import org.emerse.fhir.VirtualThreads;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Whole {@code /fhir} requests through Jetty and the real {@link FhirHandler}, reading from a {@link MockFhirServer}
+ * that answers after {@code latencyMillis}, with the server on a {@link QueuedThreadPool} of {@code poolThreads} or
+ * on virtual threads as {@code --virtual-threads} runs it. Far more callers than pool threads keep the blocking
+ * upstream calls piling up. The {@code virtual} case needs Java 21 and fails its setup on older JDKs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Threads(200)
+@Fork(1)
+public class ThreadModelBenchmark
+{
+	@Param({"queued", "virtual"})
+	public String pool;
+
+	@Param({"50"})
+	public int poolThreads;
+
+	@Param({"20"})
+	public long latencyMillis;
+
+	private static final int PATIENTS = 100;
+
+	private final AtomicInteger next = new AtomicInteger();
+	private MockFhirServer upstream;
+	private ExecutorService fetchExecutor;
+	private Server server;
+	private HttpClient client;
+	private String base;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		var virtual = pool.equals("virtual");
+		if (virtual && !VirtualThreads.isSupported())
+		{
+			throw new UnsupportedOperationException("Virtual threads need Java 21 or newer");
+		}
+		upstream = new MockFhirServer();
+		upstream.patients = PATIENTS;
+		upstream.notesPerPatient = 10;
+		upstream.latencyMillis = latencyMillis;
+		var fhirHandler = upstream.handler();
+		fhirHandler.fetchExecutor = fetchExecutor = virtual
+			? VirtualThreads.newExecutor()
+			: Executors.newFixedThreadPool(poolThreads);
+		fhirHandler.fetchPermits = new Semaphore(poolThreads);
+
+		server = new Server(virtual ? VirtualThreads.newThreadPool() : new QueuedThreadPool(poolThreads));
+		server.setHandler(new AbstractHandler()
+		{
+			@Override
+			protected void doHandle(
+				String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response
+			) throws Exception
+			{
+				baseRequest.setHandled(true);
+				fhirHandler.doHandle(target, baseRequest, request, response);
+			}
+		});
+		var connector = new ServerConnector(server);
+		connector.setPort(0);
+		connector.setAcceptQueueSize(1024);
+		server.addConnector(connector);
+		server.start();
+		client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+		base = "http://localhost:" + connector.getLocalPort() + "/fhir?after=2020-01-01&mrn=";
+	}
+
+	@TearDown
+	public void tearDown() throws Exception
+	{
+		if (server != null)
+		{
+			server.stop();
+		}
+		if (fetchExecutor != null)
+		{
+			fetchExecutor.shutdownNow();
+		}
+		if (upstream != null)
+		{
+			upstream.close();
+		}
+	}
+
+	@Benchmark
+	public int extract() throws Exception
+	{
+		var mrn = MockFhirServer.mrn(1 + Math.floorMod(next.getAndIncrement(), PATIENTS));
+		var response = client.send(
+			HttpRequest.newBuilder(URI.create(base + mrn)).build(),
+			HttpResponse.BodyHandlers.ofByteArray()
+		);
+		if (response.statusCode() != HttpServletResponse.SC_OK)
+		{
+			throw new IllegalStateException("HTTP " + response.statusCode());
+		}
+		return response.body().length;
+	}
+}